@@ -15,6 +15,8 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Function;
 
 import jakarta.servlet.http.HttpServletRequest;
@@ -37,13 +39,44 @@ public abstract class AbstractRateLimitService implements RateLimitService {
 	@Setter
 	private long maxBudget = 1000000L;
 	
+	// limit per remote address, and per bucket if the handler specifies it by @RateLimited
 	@Setter
 	private Function<HttpServletRequest, RateLimitDescriptor> recoveryStrategy =
-			req -> new RateLimitDescriptor(req.getRemoteAddr(), fillRate, maxBudget)
+			req -> new RateLimitDescriptor(computeLimitationUnitName(req), fillRate, maxBudget)
 				.setCurrentBudget(maxBudget);
 	
+	/**
+	 * Strategy to resolve all limitation units of the request for {@link #consumeAll(HttpServletRequest, long)}.
+	 * If this is {@code null}, the request is limited by the unit of {@code recoveryStrategy} only.
+	 * 
+	 * @since 0.38
+	 */
+	@Setter
+	private Function<HttpServletRequest, List<RateLimitDescriptor>> recoveryStrategies;
+	
+	
+	private static String computeLimitationUnitName(HttpServletRequest request) {
+		Object bucket = request.getAttribute(RateLimitingInterceptor.BUCKET_ATTRIBUTE);
+		return bucket == null ? request.getRemoteAddr() : request.getRemoteAddr() + "/" + bucket;
+	}
 	
 	protected RateLimitDescriptor computeRateLimitRecovery(HttpServletRequest request) {
 		return recoveryStrategy.apply(request);
 	}
+	
+	/**
+	 * Compute descriptors of all limitation units of the request.
+	 * 
+	 * @param request the request
+	 * @return list of descriptors, empty if limitation is not applied
+	 * @since 0.38
+	 */
+	protected List<RateLimitDescriptor> computeRateLimitRecoveries(HttpServletRequest request) {
+		if (recoveryStrategies == null) {
+			RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+			return descriptor == null ? Collections.emptyList() : Collections.singletonList(descriptor);
+		}
+		List<RateLimitDescriptor> descriptors = recoveryStrategies.apply(request);
+		return descriptors == null ? Collections.emptyList() : descriptors;
+	}
 }
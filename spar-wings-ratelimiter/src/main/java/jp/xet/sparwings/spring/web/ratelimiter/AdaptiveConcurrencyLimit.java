@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+
+/**
+ * Concurrency limit which adapts itself to the observed latency.
+ * 
+ * <p>The limit follows the gradient between the long-term and the latest latency: while the latency is stable the
+ * limit grows by {@code sqrt(limit)}, and when the latency rises the limit shrinks down to a half. The limit is
+ * changed only if at least a half of it is in use, so an idle limiter does not grow without bound.</p>
+ * 
+ * <p>Acquisition is lock-free. Samples are taken only when no other thread is updating the limit, so a busy
+ * limiter skips some samples instead of blocking.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class AdaptiveConcurrencyLimit {
+	
+	private static final double TOLERANCE = 1.5;
+	
+	private static final double SMOOTHING = 0.2;
+	
+	private static final double LONG_WINDOW = 600;
+	
+	private final int minLimit;
+	
+	private final int maxLimit;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	private final ReentrantLock sampleLock = new ReentrantLock();
+	
+	/** Current limit */
+	@Getter
+	private volatile int limit;
+	
+	// guarded by sampleLock
+	private double estimatedLimit;
+	
+	// guarded by sampleLock
+	private double longLatency;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param initialLimit initial limit
+	 * @param minLimit minimum limit
+	 * @param maxLimit maximum limit
+	 * @throws IllegalArgumentException if {@code minLimit} is less than 1 or greater than {@code maxLimit}, or
+	 *     {@code initialLimit} is not between them
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1) {
+			throw new IllegalArgumentException("minLimit must be positive: " + minLimit);
+		}
+		if (minLimit > maxLimit) {
+			throw new IllegalArgumentException("minLimit must not exceed maxLimit: " + minLimit + " > " + maxLimit);
+		}
+		if (initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("initialLimit must be between " + minLimit + " and " + maxLimit + ": "
+					+ initialLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+		this.estimatedLimit = initialLimit;
+	}
+	
+	/**
+	 * Returns the number of in-flight requests.
+	 * 
+	 * @return the number of in-flight requests
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Acquire a permit if the number of in-flight requests is under the limit.
+	 * 
+	 * @return {@code true} if acquired
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(100);
+	}
+	
+	/**
+	 * Acquire a permit if the number of in-flight requests is under the given percentage of the limit.
+	 * 
+	 * <p>At least one permit can be acquired unless the percentage is zero, so that an idle limiter never rejects
+	 * requests.</p>
+	 * 
+	 * @param percentage the percentage of the limit which can be used
+	 * @return {@code true} if acquired
+	 * @see LoadSheddingPolicy#getConcurrencyPercentage(RequestPriority)
+	 */
+	public boolean tryAcquire(int percentage) {
+		int usable = percentage >= 100 ? limit : Math.max(percentage > 0 ? 1 : 0, limit * percentage / 100);
+		if (inFlight.incrementAndGet() > usable) {
+			inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Release the permit and take the latency as a sample.
+	 * 
+	 * @param latencyNanos latency of the request in nanosec
+	 */
+	public void release(long latencyNanos) {
+		int current = inFlight.getAndDecrement();
+		if (latencyNanos <= 0 || sampleLock.tryLock() == false) {
+			return;
+		}
+		try {
+			update(latencyNanos, current);
+		} finally {
+			sampleLock.unlock();
+		}
+	}
+	
+	private void update(long latency, int current) {
+		if (longLatency == 0) {
+			longLatency = latency;
+		} else {
+			longLatency += (latency - longLatency) / LONG_WINDOW;
+			if (longLatency / latency > 2) {
+				// recover quickly after a latency step down
+				longLatency *= 0.95;
+			}
+		}
+		if (current < estimatedLimit / 2) {
+			return; // not limited by this limiter
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / latency));
+		double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+		newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+		limit = (int) estimatedLimit;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking rate limit service keyed by an abstract request key.
+ * 
+ * <p>This is the asynchronous counterpart of {@link RateLimitService}, which does not depend on the servlet API
+ * and does not block the calling thread on I/O.</p>
+ * 
+ * @param <K> type of the request key
+ * @since 0.38
+ * @author daisuke
+ * @see RateLimitingWebFilter
+ */
+public interface AsyncRateLimitService<K> {
+	
+	/**
+	 * Consume the budget of the limitation unit of the request.
+	 * 
+	 * @param key the request key
+	 * @param consumption budget to consume
+	 * @return stage completed with {@link RateLimitDescriptor}, or with {@code null} if limitation is not applied
+	 */
+	CompletionStage<RateLimitDescriptor> consume(K key, long consumption);
+	
+	/**
+	 * Get the budget of the limitation unit of the request.
+	 * 
+	 * @param key the request key
+	 * @return stage completed with {@link RateLimitDescriptor}, or with {@code null} if limitation is not applied
+	 */
+	CompletionStage<RateLimitDescriptor> get(K key);
+}
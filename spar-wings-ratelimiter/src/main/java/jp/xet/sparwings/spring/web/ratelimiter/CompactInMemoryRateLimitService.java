@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to store values in a table of primitive {@code long}s.
+ * 
+ * <p>While {@link InMemoryRateLimitService} allocates a map entry and a bucket object per limitation unit, this
+ * service keeps all buckets in a fixed-size open-addressing table keyed by the 64-bit hash of the limitation unit
+ * name. The table is allocated once, so the GC cost does not depend on the number of tracked limitation units, and
+ * millions of units can be tracked on the heap of an edge node. The table needs 24 bytes per slot.</p>
+ * 
+ * <p>When the probe window of a new limitation unit is full, the bucket which is refilled first is dropped. Buckets
+ * which have been refilled to the maximum budget carry no information, so the table stays accurate while it has
+ * room for the active limitation units.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class CompactInMemoryRateLimitService extends AbstractRateLimitService {
+	
+	private final RateLimitBucketTable table;
+	
+	/**
+	 * Rate limiting algorithm. This must not be changed after the first consumption.
+	 */
+	@Getter
+	@Setter
+	private RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param capacity the number of slots, rounded up to a power of two. This should be about twice of the number
+	 *     of limitation units to track.
+	 * @throws IllegalArgumentException if the capacity is not positive or exceeds 2^29
+	 */
+	public CompactInMemoryRateLimitService(int capacity) {
+		table = new RateLimitBucketTable(capacity);
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		return consume(descriptor, consumption);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>Budgets are consumed one by one without lock, and the consumption is refunded when one of the limitation
+	 * units rejects it.</p>
+	 */
+	@Override
+	public List<RateLimitDescriptor> consumeAll(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
+		}
+		List<RateLimitDescriptor> result =
+				table.consumeAll(algorithm, descriptors, Clock.now().toEpochMillisec(), consumption);
+		log.debug("Budgets after current request (consumed {}): {}", consumption, result);
+		return result;
+	}
+	
+	@Override
+	public List<RateLimitDescriptor> chargeAll(HttpServletRequest request, long amount) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
+		}
+		List<RateLimitDescriptor> result =
+				table.chargeAll(algorithm, descriptors, Clock.now().toEpochMillisec(), amount);
+		log.debug("Budgets after charge {}: {}", amount, result);
+		return result;
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		
+		long budget = table.get(algorithm, descriptor, now);
+		log.debug("Current budget: {}", budget);
+		
+		return toDescriptor(descriptor, budget, now);
+	}
+	
+	/**
+	 * Release all slots whose buckets have been refilled to the maximum budget.
+	 * 
+	 * <p>This method is optional, because such slots are reused when the table is full. Calling it periodically
+	 * (e.g. by {@code @Scheduled}) keeps {@link #getBucketCount()} close to the number of active limitation
+	 * units.</p>
+	 */
+	public void expireBuckets() {
+		table.expire(Clock.now().toEpochMillisec());
+	}
+	
+	/**
+	 * Returns the number of slots.
+	 * 
+	 * @return the number of slots
+	 */
+	public int getCapacity() {
+		return table.getCapacity();
+	}
+	
+	/**
+	 * Returns the number of tracked buckets.
+	 * 
+	 * @return the number of buckets
+	 */
+	public long getBucketCount() {
+		return table.size();
+	}
+	
+	/**
+	 * Returns the number of buckets dropped after they had been refilled to the maximum budget.
+	 * 
+	 * @return the number of expired buckets
+	 */
+	public long getExpiredBucketCount() {
+		return table.getExpiredCount();
+	}
+	
+	/**
+	 * Returns the number of buckets dropped before they had been refilled, because the table was full.
+	 * 
+	 * @return the number of evicted buckets
+	 */
+	public long getEvictedBucketCount() {
+		return table.getEvictedCount();
+	}
+	
+	private RateLimitDescriptor consume(RateLimitDescriptor descriptor, long consumption) {
+		long now = Clock.now().toEpochMillisec();
+		
+		long budget = table.consume(algorithm, descriptor, now, consumption);
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+		
+		return toDescriptor(descriptor, budget, now);
+	}
+	
+	private static RateLimitDescriptor toDescriptor(RateLimitDescriptor descriptor, long budget, long now) {
+		return new RateLimitDescriptor(descriptor.getLimitationUnitName(), descriptor.getFillRate(),
+				descriptor.getMaxBudget(), budget, now);
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 同時実行数の制限を指定するアノテーション。
+ * 
+ * <p>型に付与した場合、その型のすべてのハンドラメソッドに適用する。メソッドに付与したものが優先される。</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see ConcurrencyLimitingInterceptor
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({
+	ElementType.METHOD,
+	ElementType.TYPE
+})
+public @interface ConcurrencyLimited {
+	
+	/** 制限を共有するグループ名。未指定の場合はハンドラメソッド毎 */
+	String value() default "";
+	
+	/** 同時実行数の初期値 */
+	int initialLimit() default 20;
+	
+	/** 同時実行数の最小値 */
+	int minLimit() default 1;
+	
+	/** 同時実行数の最大値 */
+	int maxLimit() default 1000;
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpServiceUnavailableException;
+
+/**
+ * リクエストの同時実行数を制限する {@link HandlerInterceptor} 実装クラス。
+ * 
+ * <p>Each handler annotated with {@link ConcurrencyLimited} has its own {@link AdaptiveConcurrencyLimit} per bean type
+ * and method (a proxy shares the limit with its target type), or shares one with the handlers of the same group.
+ * Other handlers share {@link #setDefaultLimit(AdaptiveConcurrencyLimit) defaultLimit}, and are not limited if it is
+ * {@code null}. Requests over the limit are rejected immediately with
+ * {@link HttpServiceUnavailableException}, instead of queueing in the servlet container.</p>
+ * 
+ * <p>If {@link #setSheddingPolicy(LoadSheddingPolicy) sheddingPolicy} is set, requests of low
+ * {@link RateLimited#priority() priority} can use only a part of the limit, so that the headroom is left for
+ * requests of higher priority.</p>
+ * 
+ * <p>This interceptor can be used with {@link RateLimitingInterceptor}: the rate limit bounds the budget of each
+ * client, and the concurrency limit protects the node from slow requests.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class ConcurrencyLimitingInterceptor implements HandlerInterceptor {
+	
+	private static final String PERMIT_ATTRIBUTE = ConcurrencyLimitingInterceptor.class.getName() + ".PERMIT";
+	
+	/** Marker of the handlers which are not annotated */
+	private static final AdaptiveConcurrencyLimit UNANNOTATED = new AdaptiveConcurrencyLimit(1, 1, 1);
+	
+	/** Limits keyed by the bean type and the method, consistently with {@link RateLimited} resolution */
+	private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<Method, AdaptiveConcurrencyLimit>> handlerLimits =
+			new ConcurrentHashMap<>();
+	
+	private final ConcurrentHashMap<String, AdaptiveConcurrencyLimit> groupLimits = new ConcurrentHashMap<>();
+	
+	/** Limit of the handlers which are not annotated with {@link ConcurrencyLimited} */
+	@Getter
+	@Setter
+	private AdaptiveConcurrencyLimit defaultLimit;
+	
+	/** Policy to shed low priority requests, or {@code null} to treat all requests the same */
+	@Getter
+	@Setter
+	private LoadSheddingPolicy sheddingPolicy;
+	
+	
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+			throws Exception { // NOPMD
+		if (request.getAttribute(PERMIT_ATTRIBUTE) != null) {
+			return true; // async dispatch of the request which already holds the permit
+		}
+		AdaptiveConcurrencyLimit limit = getLimit(handler);
+		if (limit == null) {
+			return true;
+		}
+		int percentage = sheddingPolicy == null ? 100
+				: sheddingPolicy.getConcurrencyPercentage(HandlerRateLimit.of(handler).getPriority());
+		if (limit.tryAcquire(percentage) == false) {
+			log.debug("Concurrency limit {} ({}%) exceeded", limit.getLimit(), percentage);
+			throw new HttpServiceUnavailableException("Concurrency limit exceeded");
+		}
+		request.setAttribute(PERMIT_ATTRIBUTE, new Permit(limit, System.nanoTime()));
+		return true;
+	}
+	
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception { // NOPMD
+		Object permit = request.getAttribute(PERMIT_ATTRIBUTE);
+		if (permit instanceof Permit == false) {
+			return;
+		}
+		request.removeAttribute(PERMIT_ATTRIBUTE);
+		Permit acquired = (Permit) permit;
+		acquired.limit.release(System.nanoTime() - acquired.startTime);
+	}
+	
+	/**
+	 * Returns the limit of the handler.
+	 * 
+	 * @param handler the handler
+	 * @return the limit, or {@code null} if the handler is not limited
+	 */
+	protected AdaptiveConcurrencyLimit getLimit(Object handler) {
+		if (handler instanceof HandlerMethod == false) {
+			return defaultLimit;
+		}
+		HandlerMethod handlerMethod = (HandlerMethod) handler;
+		AdaptiveConcurrencyLimit limit = handlerLimits
+			.computeIfAbsent(handlerMethod.getBeanType(), t -> new ConcurrentHashMap<>())
+			.computeIfAbsent(handlerMethod.getMethod(), m -> resolve(handlerMethod));
+		return limit == UNANNOTATED ? defaultLimit : limit;
+	}
+	
+	private AdaptiveConcurrencyLimit resolve(HandlerMethod handlerMethod) {
+		ConcurrencyLimited limited = handlerMethod.getMethodAnnotation(ConcurrencyLimited.class);
+		if (limited == null) {
+			limited = AnnotatedElementUtils.findMergedAnnotation(handlerMethod.getBeanType(), ConcurrencyLimited.class);
+		}
+		if (limited == null) {
+			return UNANNOTATED;
+		}
+		ConcurrencyLimited config = limited;
+		if (config.value().isEmpty()) {
+			return create(config);
+		}
+		return groupLimits.computeIfAbsent(config.value(), g -> create(config));
+	}
+	
+	private static AdaptiveConcurrencyLimit create(ConcurrencyLimited config) {
+		return new AdaptiveConcurrencyLimit(config.initialLimit(), config.minLimit(), config.maxLimit());
+	}
+	
+	
+	private static final class Permit {
+		
+		private final AdaptiveConcurrencyLimit limit;
+		
+		private final long startTime;
+		
+		
+		Permit(AdaptiveConcurrencyLimit limit, long startTime) {
+			this.limit = limit;
+			this.startTime = startTime;
+		}
+	}
+}
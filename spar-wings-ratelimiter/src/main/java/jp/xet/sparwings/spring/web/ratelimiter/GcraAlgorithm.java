@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+import org.springframework.data.redis.core.script.RedisScript;
+
+/**
+ * GCRA (generic cell rate algorithm) {@link RateLimitAlgorithm}.
+ * 
+ * <p>The state is the theoretical arrival time (TAT) expressed in points ({@code epoch millisec * fillRate}), and
+ * the budget at time {@code now} is {@code maxBudget - max(0, TAT - now * fillRate)}. Rejected requests are not
+ * charged and do not update the state.</p>
+ * 
+ * <p>In redis, the TAT is stored in a single string key.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class GcraAlgorithm implements RateLimitAlgorithm {
+	
+	/** Prefix of the redis key */
+	public static final String KEY_PREFIX = "ratelimit:g:";
+	
+	private static final RedisScript<Long> SCRIPT = RateLimitScripts.single("gcra.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> MULTI_SCRIPT = RateLimitScripts.multi("gcra.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> CHARGE_SCRIPT = RateLimitScripts.charge("gcra.lua");
+	
+	
+	@Override
+	public long initialState(long fillRate, long maxBudget, long currentBudget, long lastUpdateTime) {
+		return lastUpdateTime * fillRate + maxBudget - currentBudget;
+	}
+	
+	@Override
+	public long budget(long state, long now, long fillRate, long maxBudget) {
+		return maxBudget - Math.max(0L, state - now * fillRate);
+	}
+	
+	@Override
+	public long consume(long state, long now, long consumption, long fillRate, long maxBudget) {
+		long origin = now * fillRate;
+		long tat = Math.max(state, origin) + consumption;
+		return tat - origin > maxBudget ? state : tat;
+	}
+	
+	@Override
+	public long refund(long state, long now, long amount, long fillRate, long maxBudget) {
+		return state - amount;
+	}
+	
+	@Override
+	public RedisScript<Long> getRedisScript() {
+		return SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisMultiScript() {
+		return MULTI_SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisChargeScript() {
+		return CHARGE_SCRIPT;
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return KEY_PREFIX;
+	}
+}
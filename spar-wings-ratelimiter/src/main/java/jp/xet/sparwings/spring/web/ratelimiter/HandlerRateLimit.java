@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.method.HandlerMethod;
+
+/**
+ * Rate limit configuration of a handler, resolved from {@link RateLimited} once per handler method.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+final class HandlerRateLimit {
+	
+	private static final int DEFAULT_CONSUMPTION = 100;
+	
+	private static final HandlerRateLimit DEFAULT = new HandlerRateLimit(DEFAULT_CONSUMPTION, null, RequestPriority.NORMAL);
+	
+	private static final ClassValue<Map<Method, HandlerRateLimit>> CACHE =
+			new ClassValue<Map<Method, HandlerRateLimit>>() {
+				
+				@Override
+				protected Map<Method, HandlerRateLimit> computeValue(Class<?> beanType) {
+					return new ConcurrentHashMap<>();
+				}
+			};
+	
+	
+	/**
+	 * Resolve the configuration of the handler.
+	 * 
+	 * @param handler the handler
+	 * @return the configuration
+	 */
+	static HandlerRateLimit of(Object handler) {
+		if (handler instanceof HandlerMethod == false) {
+			return DEFAULT;
+		}
+		HandlerMethod handlerMethod = (HandlerMethod) handler;
+		return CACHE.get(handlerMethod.getBeanType())
+			.computeIfAbsent(handlerMethod.getMethod(), m -> resolve(handlerMethod));
+	}
+	
+	private static HandlerRateLimit resolve(HandlerMethod handlerMethod) {
+		RateLimited rateLimited = handlerMethod.getMethodAnnotation(RateLimited.class);
+		if (rateLimited == null) {
+			rateLimited = AnnotatedElementUtils.findMergedAnnotation(handlerMethod.getBeanType(), RateLimited.class);
+		}
+		if (rateLimited == null) {
+			return DEFAULT;
+		}
+		return new HandlerRateLimit(rateLimited.value(), rateLimited.bucket().isEmpty() ? null : rateLimited.bucket(),
+				rateLimited.priority());
+	}
+	
+	
+	/** Cost of the request */
+	@Getter
+	private final int cost;
+	
+	/** {@link #cost} formatted for the response header */
+	@Getter
+	private final String costHeaderValue;
+	
+	/** Name of the bucket, or {@code null} */
+	@Getter
+	private final String bucket;
+	
+	/** Priority of the request */
+	@Getter
+	private final RequestPriority priority;
+	
+	
+	private HandlerRateLimit(int cost, String bucket, RequestPriority priority) {
+		this.cost = cost;
+		this.costHeaderValue = String.valueOf(cost);
+		this.bucket = bucket;
+		this.priority = priority;
+	}
+}
@@ -15,11 +15,13 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import jakarta.servlet.http.HttpServletRequest;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import jp.xet.baseunits.timeutil.Clock;
@@ -27,43 +29,71 @@ import jp.xet.baseunits.timeutil.Clock;
 /**
  * {@link RateLimitService} implementation to store values in memory.
  * 
+ * <p>Each limitation unit has its own lock-free bucket, so that requests of different limitation units never
+ * contend with each other. The algorithm is {@link TokenBucketAlgorithm} by default.</p>
+ * 
+ * <p>The number of buckets is bounded by {@link #setMaxBuckets(int) maxBuckets}. When a new bucket makes the table
+ * exceed the cap, buckets which have been refilled to the maximum budget are expired first, and then the fullest
+ * buckets are evicted until the table shrinks to 90% of the cap, so that throttled clients keep their debt. The
+ * bucket being created is never evicted. The sweep runs on {@link #setSweepExecutor(Executor) sweepExecutor}, so
+ * the request which trips the cap does not pay for it. The cap is soft: the table exceeds it until the sweep
+ * finishes.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Slf4j
 public class InMemoryRateLimitService extends AbstractRateLimitService {
 	
-	private Map<String, RateLimitDescriptor> specs = new ConcurrentHashMap<>();
+	private final RateLimitBucketMap buckets = new RateLimitBucketMap();
+	
+	/**
+	 * Rate limiting algorithm. This must not be changed after the first consumption.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
 	
 	
 	@Override
 	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
-		synchronized (this) {
-			RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
-			if (descriptor == null) {
-				return null;
-			}
-			descriptor =
-					specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-			if (descriptor == null) {
-				return null;
-			}
-			long now = Clock.now().toEpochMillisec();
-			
-			long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-			log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-			long fill = secSinceLastUpdate * descriptor.getFillRate();
-			long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-			log.info("Budget before current request (filled {}): {}", fill, budget);
-			
-			budget -= consumption;
-			log.info("Budget after current request (consumed {}): {}", consumption, budget);
-			
-			descriptor.setLastUpdateTime(now);
-			descriptor.setCurrentBudget(budget);
-			
-			return descriptor;
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		return consume(descriptor, consumption);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>Budgets are consumed one by one without lock, and the consumption is refunded when one of the limitation
+	 * units rejects it.</p>
+	 */
+	@Override
+	public List<RateLimitDescriptor> consumeAll(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
 		}
+		List<RateLimitDescriptor> result =
+				buckets.consumeAll(algorithm, descriptors, Clock.now().toEpochMillisec(), consumption);
+		log.debug("Budgets after current request (consumed {}): {}", consumption, result);
+		return result;
+	}
+	
+	@Override
+	public List<RateLimitDescriptor> chargeAll(HttpServletRequest request, long amount) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
+		}
+		List<RateLimitDescriptor> result =
+				buckets.chargeAll(algorithm, descriptors, Clock.now().toEpochMillisec(), amount);
+		log.debug("Budgets after charge {}: {}", amount, result);
+		return result;
 	}
 	
 	@Override
@@ -72,20 +102,110 @@ public class InMemoryRateLimitService extends AbstractRateLimitService {
 		if (descriptor == null) {
 			return null;
 		}
-		descriptor = specs.computeIfAbsent(descriptor.getLimitationUnitName(), p -> computeRateLimitRecovery(request));
-		if (descriptor == null) {
-			return null;
-		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		RateLimitBucket bucket = getBucket(descriptor, now);
+		
+		long budget = bucket.get(algorithm, now);
+		log.debug("Current budget: {}", budget);
+		
+		return bucket.toDescriptor(limitationUnitName, budget, now);
+	}
+	
+	/**
+	 * Remove all buckets which have been refilled to the maximum budget.
+	 * 
+	 * <p>This method can be called periodically (e.g. by {@code @Scheduled}) to keep the table small even if
+	 * it does not reach {@link #getMaxBuckets() maxBuckets}.</p>
+	 * 
+	 * @since 0.38
+	 */
+	public void expireBuckets() {
+		buckets.expire(algorithm, Clock.now().toEpochMillisec());
+	}
+	
+	/**
+	 * Returns the maximum number of buckets to track.
+	 * 
+	 * @return the maximum number of buckets
+	 * @since 0.38
+	 */
+	public int getMaxBuckets() {
+		return buckets.getMaxBuckets();
+	}
+	
+	/**
+	 * Set the maximum number of buckets to track.
+	 * 
+	 * @param maxBuckets the maximum number of buckets
+	 * @since 0.38
+	 */
+	public void setMaxBuckets(int maxBuckets) {
+		buckets.setMaxBuckets(maxBuckets);
+	}
+	
+	/**
+	 * Returns the executor to sweep the buckets when their number exceeds {@link #getMaxBuckets() maxBuckets}.
+	 * 
+	 * @return the executor
+	 * @since 0.38
+	 */
+	public Executor getSweepExecutor() {
+		return buckets.getSweepExecutor();
+	}
+	
+	/**
+	 * Set the executor to sweep the buckets when their number exceeds {@link #getMaxBuckets() maxBuckets}.
+	 * By default, a daemon thread shared by all services sweeps them.
+	 * 
+	 * @param sweepExecutor the executor
+	 * @since 0.38
+	 */
+	public void setSweepExecutor(Executor sweepExecutor) {
+		buckets.setSweepExecutor(sweepExecutor);
+	}
+	
+	/**
+	 * Returns the number of tracked buckets.
+	 * 
+	 * @return the number of buckets
+	 * @since 0.38
+	 */
+	public long getBucketCount() {
+		return buckets.size();
+	}
+	
+	/**
+	 * Returns the number of buckets removed because they had been refilled to the maximum budget.
+	 * 
+	 * @return the number of expired buckets
+	 * @since 0.38
+	 */
+	public long getExpiredBucketCount() {
+		return buckets.getExpiredCount();
+	}
+	
+	/**
+	 * Returns the number of buckets removed to keep the number of buckets under {@link #getMaxBuckets() maxBuckets}.
+	 * 
+	 * @return the number of evicted buckets
+	 * @since 0.38
+	 */
+	public long getEvictedBucketCount() {
+		return buckets.getEvictedCount();
+	}
+	
+	private RateLimitDescriptor consume(RateLimitDescriptor descriptor, long consumption) {
 		long now = Clock.now().toEpochMillisec();
+		RateLimitBucket bucket = getBucket(descriptor, now);
 		
-		long secSinceLastUpdate = now - descriptor.getLastUpdateTime();
-		log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-		long fill = secSinceLastUpdate * descriptor.getFillRate();
-		long budget = Math.min(descriptor.getMaxBudget(), descriptor.getCurrentBudget() + fill);
-		descriptor.setLastUpdateTime(now);
+		long budget = bucket.consume(algorithm, now, consumption);
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
 		
-		descriptor.setCurrentBudget(budget);
-		log.info("Current budget: (filled {}) and {}", fill, descriptor.getCurrentBudget());
-		return descriptor;
+		return bucket.toDescriptor(descriptor.getLimitationUnitName(), budget, now);
+	}
+	
+	private RateLimitBucket getBucket(RateLimitDescriptor descriptor, long now) {
+		return buckets.getOrCreate(algorithm, descriptor, now);
 	}
 }
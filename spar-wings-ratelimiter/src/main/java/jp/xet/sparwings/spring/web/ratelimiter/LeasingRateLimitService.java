@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to lease chunks of budget from the bucket in redis.
+ * 
+ * <p>Each node leases a part of the shared bucket (10% of the maximum budget by default) into a local bucket and
+ * spends it without network I/O. When the local budget falls below a half of the lease, the next lease is requested
+ * asynchronously, so that most requests never wait for redis. Budget leased by a node is not available for the
+ * other nodes until it is spent, so the error of the global limit is bounded by
+ * {@code nodes * leaseSize}.</p>
+ * 
+ * <p>When the local budget runs out, the request leases synchronously. Concurrent requests of the same limitation
+ * unit wait for the lease in flight instead of sending their own, so a burst sends one lease script per key.
+ * Rejected requests do not consume the local budget.</p>
+ * 
+ * <p>Local buckets which have not been used for {@link #setLeaseIdleTimeout(long) leaseIdleTimeout} are discarded
+ * on {@link #setExecutor(ExecutorService) executor} once per the timeout, triggered by consumption.</p>
+ * 
+ * <p>The bucket in redis is compatible with {@link RedisRateLimitService} using {@link TokenBucketAlgorithm}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class LeasingRateLimitService extends AbstractRateLimitService {
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> LEASE_SCRIPT =
+			RedisScript.of(new ClassPathResource("token-bucket-lease.lua", LeasingRateLimitService.class), List.class);
+	
+	private static final int LEASE_THREADS = 4;
+	
+	private static final int LEASE_QUEUE_SIZE = 1000;
+	
+	@Getter
+	private final RedisTemplate<String, Long> redisTemplate;
+	
+	private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+	
+	private final AtomicLong nextExpiryTime = new AtomicLong();
+	
+	/**
+	 * Percentage of the maximum budget to lease at once.
+	 */
+	@Getter
+	@Setter
+	private int leasePercentage = 10;
+	
+	/**
+	 * Idle time in millisec to discard the local bucket.
+	 */
+	@Getter
+	@Setter
+	private long leaseIdleTimeout = 60000L;
+	
+	/**
+	 * Executor of asynchronous leases. By default, up to {@value #LEASE_THREADS} threads request leases and at most
+	 * {@value #LEASE_QUEUE_SIZE} leases wait, so that a stalled redis does not pile up threads. A rejected lease is
+	 * requested again by a later consumption.
+	 */
+	@Getter
+	@Setter
+	private ExecutorService executor = newLeaseExecutor();
+	
+	/**
+	 * Listener to be notified of the latency of redis calls, or {@code null}.
+	 */
+	@Getter
+	@Setter
+	private RateLimitListener listener;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param redisTemplate {@link RedisTemplate} to access the shared bucket
+	 */
+	public LeasingRateLimitService(RedisTemplate<String, Long> redisTemplate) {
+		this.redisTemplate = redisTemplate;
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		scheduleExpiry(now);
+		Lease lease = leases.computeIfAbsent(descriptor.getLimitationUnitName(), p -> new Lease());
+		lease.lastAccessTime = now;
+		
+		long leaseSize = computeLeaseSize(descriptor);
+		long budget = lease.budget.addAndGet(-consumption);
+		if (budget < 0) {
+			if (now >= lease.exhaustedUntil) {
+				budget = leaseOnce(lease, descriptor, leaseSize - budget, now);
+			}
+			if (budget < 0) {
+				// rejected: refund, so that the debt of rejected requests is not leased from the shared bucket later
+				lease.budget.addAndGet(consumption);
+			}
+		} else if (budget < leaseSize / 2 && now >= lease.exhaustedUntil
+				&& lease.leasing.compareAndSet(false, true)) {
+			try {
+				executor.execute(() -> {
+					try {
+						lease(lease, descriptor, leaseSize, Clock.now().toEpochMillisec());
+					} catch (RuntimeException e) { // NOPMD
+						log.warn("Failed to lease budget for {}", descriptor.getLimitationUnitName(), e);
+					} finally {
+						lease.leasing.set(false);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				log.debug("Lease for {} is rejected: {}", descriptor.getLimitationUnitName(), e.getMessage());
+				lease.leasing.set(false);
+			}
+		}
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+		
+		return toDescriptor(descriptor, lease, budget, now);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		long now = Clock.now().toEpochMillisec();
+		Lease lease = leases.get(descriptor.getLimitationUnitName());
+		if (lease == null) {
+			descriptor.setCurrentBudget(descriptor.getMaxBudget());
+			descriptor.setLastUpdateTime(now);
+			return descriptor;
+		}
+		return toDescriptor(descriptor, lease, lease.budget.get(), now);
+	}
+	
+	/**
+	 * Discard local buckets which have not been used for {@link #getLeaseIdleTimeout() leaseIdleTimeout}.
+	 * 
+	 * <p>This method is called on {@link #getExecutor() executor} once per {@link #getLeaseIdleTimeout()
+	 * leaseIdleTimeout} by consumption, so calling it periodically is optional. Unspent budget of a discarded
+	 * bucket is not returned to redis, and it is recovered by the fill rate of the shared bucket.</p>
+	 */
+	public void expireLeases() {
+		long threshold = Clock.now().toEpochMillisec() - leaseIdleTimeout;
+		Iterator<Lease> iterator = leases.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().lastAccessTime < threshold) {
+				iterator.remove();
+			}
+		}
+	}
+	
+	private void scheduleExpiry(long now) {
+		long expiryTime = nextExpiryTime.get();
+		if (now < expiryTime || nextExpiryTime.compareAndSet(expiryTime, now + leaseIdleTimeout) == false) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					expireLeases();
+				} catch (RuntimeException e) { // NOPMD
+					log.warn("Failed to expire leases", e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("Expiry of leases is rejected: {}", e.getMessage());
+		}
+	}
+	
+	private long computeLeaseSize(RateLimitDescriptor descriptor) {
+		return Math.max(1L, descriptor.getMaxBudget() * leasePercentage / 100);
+	}
+	
+	/**
+	 * Lease synchronously, or wait for the synchronous lease of another request in flight.
+	 */
+	private long leaseOnce(Lease lease, RateLimitDescriptor descriptor, long requested, long now) {
+		CompletableFuture<Void> pending = new CompletableFuture<>();
+		CompletableFuture<Void> inFlight = lease.pending.compareAndExchange(null, pending);
+		if (inFlight != null) {
+			try {
+				inFlight.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+			return lease.budget.get();
+		}
+		try {
+			long budget = lease(lease, descriptor, requested, now);
+			pending.complete(null);
+			return budget;
+		} catch (RuntimeException e) {
+			pending.completeExceptionally(e);
+			throw e;
+		} finally {
+			lease.pending.set(null);
+		}
+	}
+	
+	private long lease(Lease lease, RateLimitDescriptor descriptor, long requested, long now) {
+		String key = TokenBucketAlgorithm.KEY_PREFIX + descriptor.getLimitationUnitName();
+		RateLimitListener currentListener = listener;
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		List<?> result;
+		try {
+			result = redisTemplate.execute(LEASE_SCRIPT, Collections.singletonList(key),
+					descriptor.getFillRate(), descriptor.getMaxBudget(), now, requested);
+			succeeded = true;
+		} finally {
+			if (currentListener != null) {
+				currentListener.onRedisCall(System.nanoTime() - start, succeeded);
+			}
+		}
+		if (result == null || result.size() != 2) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		long granted = ((Number) result.get(0)).longValue();
+		long globalBudget = ((Number) result.get(1)).longValue();
+		log.debug("Leased {} (requested {}) for {}: remaining {}",
+				granted, requested, descriptor.getLimitationUnitName(), globalBudget);
+		
+		lease.globalBudget = globalBudget;
+		if (granted < requested) {
+			// do not ask redis again until the shared bucket is refilled by the requested budget
+			lease.exhaustedUntil = now + (requested - granted) / descriptor.getFillRate();
+		}
+		return lease.budget.addAndGet(granted);
+	}
+	
+	private RateLimitDescriptor toDescriptor(RateLimitDescriptor descriptor, Lease lease, long budget, long now) {
+		descriptor.setCurrentBudget(budget < 0 ? budget : budget + Math.max(0L, lease.globalBudget));
+		descriptor.setLastUpdateTime(now);
+		return descriptor;
+	}
+	
+	private static ExecutorService newLeaseExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(LEASE_THREADS, LEASE_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(LEASE_QUEUE_SIZE), r -> {
+					Thread thread = new Thread(r, "rate-limit-lease");
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	
+	private static final class Lease {
+		
+		private final AtomicLong budget = new AtomicLong();
+		
+		private final AtomicBoolean leasing = new AtomicBoolean();
+		
+		// synchronous lease in flight
+		private final AtomicReference<CompletableFuture<Void>> pending = new AtomicReference<>();
+		
+		private volatile long globalBudget;
+		
+		private volatile long exhaustedUntil;
+		
+		private volatile long lastAccessTime;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Policy to shed low priority requests first when the budget or the concurrency headroom runs low.
+ * 
+ * <p>Each {@link RequestPriority} has two thresholds:</p>
+ * 
+ * <ul>
+ *   <li>budget reserve percentage: the request is rejected by {@link RateLimitingInterceptor} if the remaining
+ *     budget after the consumption is less than this percentage of the maximum budget.</li>
+ *   <li>concurrency percentage: the request is rejected by {@link ConcurrencyLimitingInterceptor} if the number of
+ *     in-flight requests reaches this percentage of the concurrency limit.</li>
+ * </ul>
+ * 
+ * <p>The concurrency percentage reflects the load of the whole node. The budget reserve is evaluated against the
+ * most restrictive limitation unit of the request, so with a per-client limitation unit it only sheds the client's
+ * own low priority requests. To shed by the load of the whole service, add a shared limitation unit (e.g. per node
+ * or per tenant) by {@link AbstractRateLimitService#setRecoveryStrategies(java.util.function.Function)
+ * recoveryStrategies}.</p>
+ * 
+ * <p>By default, {@link RequestPriority#CRITICAL} uses the whole budget and concurrency limit, and lower
+ * priorities leave a larger reserve for higher ones. Like other rejected requests, shed requests are charged
+ * against the budget.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class LoadSheddingPolicy {
+	
+	private final Map<RequestPriority, Integer> budgetReservePercentages = new EnumMap<>(RequestPriority.class);
+	
+	private final Map<RequestPriority, Integer> concurrencyPercentages = new EnumMap<>(RequestPriority.class);
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 */
+	public LoadSheddingPolicy() {
+		budgetReservePercentages.put(RequestPriority.CRITICAL, 0);
+		budgetReservePercentages.put(RequestPriority.HIGH, 0);
+		budgetReservePercentages.put(RequestPriority.NORMAL, 10);
+		budgetReservePercentages.put(RequestPriority.LOW, 30);
+		concurrencyPercentages.put(RequestPriority.CRITICAL, 100);
+		concurrencyPercentages.put(RequestPriority.HIGH, 95);
+		concurrencyPercentages.put(RequestPriority.NORMAL, 85);
+		concurrencyPercentages.put(RequestPriority.LOW, 60);
+	}
+	
+	/**
+	 * Returns the percentage of the maximum budget which must remain after the consumption.
+	 * 
+	 * @param priority the priority
+	 * @return the percentage
+	 */
+	public int getBudgetReservePercentage(RequestPriority priority) {
+		return budgetReservePercentages.get(priority);
+	}
+	
+	/**
+	 * Set the percentage of the maximum budget which must remain after the consumption.
+	 * 
+	 * @param priority the priority
+	 * @param percentage the percentage (0-100)
+	 * @throws IllegalArgumentException if the percentage is out of range
+	 */
+	public void setBudgetReservePercentage(RequestPriority priority, int percentage) {
+		budgetReservePercentages.put(priority, checkPercentage(percentage));
+	}
+	
+	/**
+	 * Returns the percentage of the concurrency limit which the requests can use.
+	 * 
+	 * @param priority the priority
+	 * @return the percentage
+	 */
+	public int getConcurrencyPercentage(RequestPriority priority) {
+		return concurrencyPercentages.get(priority);
+	}
+	
+	/**
+	 * Set the percentage of the concurrency limit which the requests can use.
+	 * 
+	 * @param priority the priority
+	 * @param percentage the percentage (0-100)
+	 * @throws IllegalArgumentException if the percentage is out of range
+	 */
+	public void setConcurrencyPercentage(RequestPriority priority, int percentage) {
+		concurrencyPercentages.put(priority, checkPercentage(percentage));
+	}
+	
+	/**
+	 * Compute the budget which must remain after the consumption.
+	 * 
+	 * @param priority the priority of the request
+	 * @param descriptor the descriptor after the consumption
+	 * @return the reserved budget
+	 */
+	public long computeReservedBudget(RequestPriority priority, RateLimitDescriptor descriptor) {
+		return descriptor.getMaxBudget() * budgetReservePercentages.get(priority) / 100;
+	}
+	
+	private static int checkPercentage(int percentage) {
+		if (percentage < 0 || percentage > 100) {
+			throw new IllegalArgumentException("percentage must be in 0-100: " + percentage);
+		}
+		return percentage;
+	}
+}
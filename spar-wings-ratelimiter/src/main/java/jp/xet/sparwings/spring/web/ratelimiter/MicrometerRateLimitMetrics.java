@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * {@link RateLimitListener} to record metrics to Micrometer.
+ * 
+ * <p>Meters are registered when this binder is bound to a {@link MeterRegistry}, e.g. by Spring Boot when a registry
+ * is present. Events before binding are ignored. The following meters are recorded:</p>
+ * 
+ * <ul>
+ *   <li>{@code ratelimit.requests}: requests evaluated, tagged by {@code bucket}, {@code unit} and {@code result}
+ *     ({@code accepted} or {@code rejected})</li>
+ *   <li>{@code ratelimit.budget.remaining}: ratio of the remaining budget to the maximum budget after the
+ *     consumption, tagged by {@code bucket} and {@code unit}</li>
+ *   <li>{@code ratelimit.redis.calls}: latency of redis calls, tagged by {@code outcome}</li>
+ *   <li>{@code ratelimit.buckets}: number of tracked buckets, if {@link #setBucketCount(LongSupplier) bucketCount} is
+ *     set (e.g. {@link InMemoryRateLimitService#getBucketCount()})</li>
+ * </ul>
+ * 
+ * <p>Limitation unit names are not used as tags, because they are unbounded. Buckets of {@link RateLimited#bucket()}
+ * are tagged instead, and requests without a bucket are tagged as {@code default}. The {@code unit} tag is the type of
+ * the limitation unit which decided the result, classified by {@link #setUnitType(Function) unitType} (e.g.
+ * {@code name -> name.startsWith("tenant:") ? "tenant" : "user"}), and it is {@code default} unless configured.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class MicrometerRateLimitMetrics implements RateLimitListener, MeterBinder {
+	
+	private static final String DEFAULT_BUCKET = "default";
+	
+	private static final String DEFAULT_UNIT_TYPE = "default";
+	
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, BucketMeters>> bucketMeters =
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * Supplier of the number of tracked buckets, or {@code null} not to record it.
+	 */
+	@Getter
+	@Setter
+	private LongSupplier bucketCount;
+	
+	/**
+	 * Function to classify a limitation unit name into its type, which must return one of a few values.
+	 */
+	@Getter
+	@Setter
+	private Function<String, String> unitType = name -> DEFAULT_UNIT_TYPE;
+	
+	private volatile MeterRegistry registry;
+	
+	private volatile Timer redisSucceeded;
+	
+	private volatile Timer redisFailed;
+	
+	
+	@Override
+	public void bindTo(MeterRegistry meterRegistry) {
+		redisSucceeded = Timer.builder("ratelimit.redis.calls")
+			.description("Latency of redis calls by the rate limiter")
+			.tag("outcome", "success")
+			.register(meterRegistry);
+		redisFailed = Timer.builder("ratelimit.redis.calls")
+			.description("Latency of redis calls by the rate limiter")
+			.tag("outcome", "failure")
+			.register(meterRegistry);
+		LongSupplier supplier = bucketCount;
+		if (supplier != null) {
+			Gauge.builder("ratelimit.buckets", supplier, s -> s.getAsLong())
+				.description("Number of buckets tracked in memory")
+				.register(meterRegistry);
+		}
+		bucketMeters.clear();
+		registry = meterRegistry;
+	}
+	
+	@Override
+	public void onEvaluated(String bucket, RateLimitDescriptor descriptor, long cost, boolean rejected) {
+		MeterRegistry meterRegistry = registry;
+		if (meterRegistry == null) {
+			return;
+		}
+		String tag = bucket == null ? DEFAULT_BUCKET : bucket;
+		String type = unitType.apply(descriptor.getLimitationUnitName());
+		BucketMeters meters = bucketMeters.computeIfAbsent(tag, t -> new ConcurrentHashMap<>())
+			.computeIfAbsent(type == null ? DEFAULT_UNIT_TYPE : type, u -> new BucketMeters(meterRegistry, tag, u));
+		if (rejected) {
+			meters.rejected.increment();
+		} else {
+			meters.accepted.increment();
+		}
+		if (descriptor.getMaxBudget() > 0) {
+			meters.remaining.record(Math.max(0d, (double) descriptor.getCurrentBudget() / descriptor.getMaxBudget()));
+		}
+	}
+	
+	@Override
+	public void onRedisCall(long nanos, boolean succeeded) {
+		Timer timer = succeeded ? redisSucceeded : redisFailed;
+		if (timer != null) {
+			timer.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	
+	/**
+	 * Meters of a bucket and a type of limitation unit.
+	 */
+	private static final class BucketMeters {
+		
+		private final Counter accepted;
+		
+		private final Counter rejected;
+		
+		private final DistributionSummary remaining;
+		
+		
+		BucketMeters(MeterRegistry registry, String bucket, String unitType) {
+			accepted = Counter.builder("ratelimit.requests")
+				.description("Requests evaluated by the rate limiter")
+				.tags("bucket", bucket, "unit", unitType, "result", "accepted")
+				.register(registry);
+			rejected = Counter.builder("ratelimit.requests")
+				.description("Requests evaluated by the rate limiter")
+				.tags("bucket", bucket, "unit", unitType, "result", "rejected")
+				.register(registry);
+			remaining = DistributionSummary.builder("ratelimit.budget.remaining")
+				.description("Ratio of the remaining budget to the maximum budget after consumption")
+				.tags("bucket", bucket, "unit", unitType)
+				.register(registry);
+		}
+	}
+}
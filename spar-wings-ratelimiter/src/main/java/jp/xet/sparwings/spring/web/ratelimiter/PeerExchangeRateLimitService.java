@@ -0,0 +1,504 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link RateLimitService} implementation to share consumption among nodes without redis.
+ * 
+ * <p>Each node consumes the budget from its local buckets without network I/O, and sends the consumption of each
+ * limitation unit since the last exchange to its peers over UDP every {@link #setExchangeInterval(long)
+ * exchangeInterval}. Received consumption is charged to the local buckets, so that every node enforces the global
+ * limit approximately, lagging behind by the exchange interval.</p>
+ * 
+ * <p>Only the {@link #setMaxKeysPerExchange(int) maxKeysPerExchange} limitation units which consumed most are sent
+ * in each exchange. The other units consumed little and are not close to their limits, so dropping them keeps the
+ * exchange compact at the cost of accuracy for light clients. Datagrams may be lost, which makes the limit looser
+ * but never stricter.</p>
+ * 
+ * <p>Peers are given by {@link #setPeers(List) peers}, or by {@link #setPeersFile(Path) peersFile} which lists
+ * {@code host:port} per line and is reloaded when modified. The file is checked at most once every
+ * {@link #setPeersFileCheckInterval(long) peersFileCheckInterval}, not on every datagram. The list may include this
+ * node itself. Datagrams from other addresses are dropped, and received consumption is charged only to the buckets
+ * which this node already tracks, with the fill rate and maximum budget given by its own recovery strategy. It is
+ * charged even beyond the local budget, as the peer has already admitted it.</p>
+ * 
+ * <p>The source address of UDP is easily spoofed. Bind {@link #setPort(int) port} to a trusted network, and set
+ * {@link #setSecret(String) secret} shared among the nodes to sign the datagrams by HMAC-SHA256. The signature
+ * does not prevent replay of captured datagrams, which can only make the limit stricter.</p>
+ * 
+ * <p>The number of buckets is bounded by {@link #setMaxBuckets(int) maxBuckets} in the same way as
+ * {@link InMemoryRateLimitService}, and buckets refilled to the maximum budget are expired every
+ * {@link #setExpireInterval(long) expireInterval}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class PeerExchangeRateLimitService extends AbstractRateLimitService implements InitializingBean,
+		DisposableBean {
+	
+	private static final int MAGIC = 0x524c5832; // "RLX2"
+	
+	private static final int SIGNED_MAGIC = 0x524c5332; // "RLS2"
+	
+	private static final int MAX_DATAGRAM_SIZE = 1400;
+	
+	/** magic and node ID */
+	private static final int HEADER_SIZE = 12;
+	
+	/** length of name and amount */
+	private static final int ENTRY_SIZE = 10;
+	
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int MAC_SIZE = 32;
+	
+	private final long nodeId = ThreadLocalRandom.current().nextLong();
+	
+	private final RateLimitBucketMap buckets = new RateLimitBucketMap();
+	
+	private final ConcurrentHashMap<String, Delta> deltas = new ConcurrentHashMap<>();
+	
+	/**
+	 * Rate limiting algorithm. This must not be changed after the first consumption.
+	 */
+	@Getter
+	@Setter
+	private RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
+	
+	/**
+	 * UDP port to receive the consumption of peers, or {@code 0} to use an ephemeral port.
+	 */
+	@Getter
+	@Setter
+	private int port;
+	
+	/**
+	 * Interval of exchange in millisec.
+	 */
+	@Getter
+	@Setter
+	private long exchangeInterval = 1000L;
+	
+	/**
+	 * Interval of expiry of the buckets in millisec.
+	 */
+	@Getter
+	@Setter
+	private long expireInterval = 60000L;
+	
+	/**
+	 * Maximum number of limitation units sent in each exchange.
+	 */
+	@Getter
+	@Setter
+	private int maxKeysPerExchange = 1000;
+	
+	/**
+	 * Static list of peers.
+	 */
+	@Getter
+	@Setter
+	private List<InetSocketAddress> peers = Collections.emptyList();
+	
+	/**
+	 * File which lists peers, or {@code null} to use {@link #peers}.
+	 */
+	@Getter
+	@Setter
+	private Path peersFile;
+	
+	/**
+	 * Minimum interval in millisec to check whether {@link #peersFile} is modified.
+	 */
+	@Getter
+	@Setter
+	private long peersFileCheckInterval = 10000L;
+	
+	/**
+	 * Secret shared among the nodes to sign the datagrams, or {@code null} not to sign them.
+	 */
+	@Getter
+	@Setter
+	private String secret;
+	
+	private volatile long peersFileModified;
+	
+	// the file from which filePeers is loaded
+	private volatile Path loadedPeersFile;
+	
+	// System.nanoTime() of the last check of peersFile
+	private volatile long peersFileCheckedAt;
+	
+	private volatile List<InetSocketAddress> filePeers = Collections.emptyList();
+	
+	// the list from which knownPeers is built
+	private List<InetSocketAddress> knownPeersSource;
+	
+	private Set<InetSocketAddress> knownPeers = Collections.emptySet();
+	
+	private DatagramSocket socket;
+	
+	private ScheduledExecutorService scheduler;
+	
+	
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		socket = new DatagramSocket(port);
+		scheduler = Executors.newScheduledThreadPool(2, r -> {
+			Thread thread = new Thread(r, "rate-limit-exchange");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.execute(this::receive);
+		scheduler.scheduleWithFixedDelay(this::exchange, exchangeInterval, exchangeInterval, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::expireBuckets, expireInterval, expireInterval, TimeUnit.MILLISECONDS);
+		log.info("Exchanging rate limit consumption on UDP port {}", socket.getLocalPort());
+	}
+	
+	@Override
+	public void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (socket != null) {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Returns the UDP port bound to receive the consumption of peers.
+	 * 
+	 * @return the port, or {@code -1} if not started
+	 */
+	public int getLocalPort() {
+		return socket == null ? -1 : socket.getLocalPort();
+	}
+	
+	/**
+	 * Returns the maximum number of buckets to track.
+	 * 
+	 * @return the maximum number of buckets
+	 */
+	public int getMaxBuckets() {
+		return buckets.getMaxBuckets();
+	}
+	
+	/**
+	 * Set the maximum number of buckets to track.
+	 * 
+	 * @param maxBuckets the maximum number of buckets
+	 */
+	public void setMaxBuckets(int maxBuckets) {
+		buckets.setMaxBuckets(maxBuckets);
+	}
+	
+	/**
+	 * Returns the number of tracked buckets.
+	 * 
+	 * @return the number of buckets
+	 */
+	public long getBucketCount() {
+		return buckets.size();
+	}
+	
+	@Override
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		RateLimitBucket bucket = buckets.getOrCreate(algorithm, descriptor, now);
+		
+		long budget = bucket.consume(algorithm, now, consumption);
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+		if (budget >= 0 && consumption > 0) {
+			deltas.computeIfAbsent(limitationUnitName, n -> new Delta()).amount.add(consumption);
+		}
+		return bucket.toDescriptor(limitationUnitName, budget, now);
+	}
+	
+	@Override
+	public RateLimitDescriptor get(HttpServletRequest request) {
+		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
+		if (descriptor == null) {
+			return null;
+		}
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		long now = Clock.now().toEpochMillisec();
+		RateLimitBucket bucket = buckets.getOrCreate(algorithm, descriptor, now);
+		
+		long budget = bucket.get(algorithm, now);
+		log.debug("Current budget: {}", budget);
+		
+		return bucket.toDescriptor(limitationUnitName, budget, now);
+	}
+	
+	/**
+	 * Remove all buckets which have been refilled to the maximum budget.
+	 * 
+	 * <p>This method is called every {@link #expireInterval} after {@link #afterPropertiesSet()}.</p>
+	 */
+	public void expireBuckets() {
+		try {
+			buckets.expire(algorithm, Clock.now().toEpochMillisec());
+		} catch (RuntimeException e) {
+			log.warn("Failed to expire rate limit buckets", e);
+		}
+	}
+	
+	/**
+	 * Send the consumption since the last exchange to the peers.
+	 * 
+	 * <p>This method is called every {@link #exchangeInterval} after {@link #afterPropertiesSet()}.</p>
+	 */
+	public synchronized void exchange() {
+		try {
+			List<InetSocketAddress> targets = resolvePeers();
+			List<Map.Entry<String, Delta>> entries = collectDeltas();
+			if (entries.isEmpty() || targets.isEmpty()) {
+				return;
+			}
+			for (byte[] datagram : encode(entries)) {
+				for (InetSocketAddress peer : targets) {
+					socket.send(new DatagramPacket(datagram, datagram.length, peer));
+				}
+			}
+			log.debug("Sent consumption of {} limitation units to {} peers", entries.size(), targets.size());
+		} catch (IOException | RuntimeException e) {
+			log.warn("Failed to exchange rate limit consumption", e);
+		}
+	}
+	
+	private List<Map.Entry<String, Delta>> collectDeltas() {
+		List<Map.Entry<String, Delta>> entries = new ArrayList<>();
+		Iterator<Map.Entry<String, Delta>> iterator = deltas.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Delta> entry = iterator.next();
+			Delta delta = entry.getValue();
+			delta.sending = delta.amount.sumThenReset();
+			if (delta.sending != 0) {
+				entries.add(Map.entry(entry.getKey(), delta));
+			} else if (delta.amount.sum() == 0 && deltas.remove(entry.getKey(), delta)) {
+				// idle since the last exchange, but carry over consumption added while removing
+				long late = delta.amount.sumThenReset();
+				if (late > 0) {
+					deltas.computeIfAbsent(entry.getKey(), n -> new Delta()).amount.add(late);
+				}
+			}
+		}
+		if (entries.size() > maxKeysPerExchange) {
+			entries.sort(Comparator.comparingLong((Map.Entry<String, Delta> e) -> e.getValue().sending).reversed());
+			entries = entries.subList(0, maxKeysPerExchange);
+		}
+		return entries;
+	}
+	
+	private List<byte[]> encode(List<Map.Entry<String, Delta>> entries) throws IOException {
+		String key = secret;
+		List<byte[]> datagrams = new ArrayList<>();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(MAX_DATAGRAM_SIZE);
+		DataOutputStream out = new DataOutputStream(buffer);
+		for (Map.Entry<String, Delta> entry : entries) {
+			Delta delta = entry.getValue();
+			byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			if (name.length > MAX_DATAGRAM_SIZE - HEADER_SIZE - ENTRY_SIZE - MAC_SIZE) {
+				continue; // too long to send
+			}
+			if (buffer.size() > 0 && buffer.size() + name.length + ENTRY_SIZE + MAC_SIZE > MAX_DATAGRAM_SIZE) {
+				datagrams.add(seal(key, buffer));
+				buffer.reset();
+			}
+			if (buffer.size() == 0) {
+				out.writeInt(key == null ? MAGIC : SIGNED_MAGIC);
+				out.writeLong(nodeId);
+			}
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeLong(delta.sending);
+		}
+		if (buffer.size() > 0) {
+			datagrams.add(seal(key, buffer));
+		}
+		return datagrams;
+	}
+	
+	private static byte[] seal(String key, ByteArrayOutputStream buffer) {
+		byte[] payload = buffer.toByteArray();
+		if (key == null) {
+			return payload;
+		}
+		byte[] datagram = Arrays.copyOf(payload, payload.length + MAC_SIZE);
+		System.arraycopy(sign(key, payload, payload.length), 0, datagram, payload.length, MAC_SIZE);
+		return datagram;
+	}
+	
+	private static byte[] sign(String key, byte[] data, int length) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM));
+			mac.update(data, 0, length);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void receive() {
+		byte[] data = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		while (socket.isClosed() == false) {
+			try {
+				socket.receive(packet);
+				if (isPeer(packet.getSocketAddress()) == false) {
+					log.debug("Datagram from unknown address is dropped: {}", packet.getSocketAddress());
+					continue;
+				}
+				apply(data, packet.getLength());
+			} catch (SocketException e) {
+				log.debug("Socket is closed", e);
+			} catch (IOException | RuntimeException e) {
+				log.warn("Failed to receive rate limit consumption", e);
+			}
+		}
+	}
+	
+	private void apply(byte[] data, int length) throws IOException {
+		String key = secret;
+		int payloadLength = key == null ? length : length - MAC_SIZE;
+		if (payloadLength < HEADER_SIZE) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, payloadLength));
+		if (in.readInt() != (key == null ? MAGIC : SIGNED_MAGIC) || in.readLong() == nodeId) {
+			return; // unknown or sent by this node itself
+		}
+		if (key != null && MessageDigest.isEqual(sign(key, data, payloadLength),
+				Arrays.copyOfRange(data, payloadLength, length)) == false) {
+			log.warn("Datagram with invalid signature is dropped");
+			return;
+		}
+		long now = Clock.now().toEpochMillisec();
+		while (in.available() > 0) {
+			byte[] name = new byte[in.readUnsignedShort()];
+			in.readFully(name);
+			String limitationUnitName = new String(name, StandardCharsets.UTF_8);
+			long amount = in.readLong();
+			RateLimitBucket bucket = buckets.get(limitationUnitName);
+			if (amount > 0 && bucket != null) {
+				bucket.charge(algorithm, now, amount); // consumed by the peer regardless of the local budget
+			}
+		}
+	}
+	
+	private boolean isPeer(SocketAddress address) throws IOException {
+		List<InetSocketAddress> current = resolvePeers();
+		if (current != knownPeersSource) {
+			knownPeers = new HashSet<>(current);
+			knownPeersSource = current;
+		}
+		return knownPeers.contains(address);
+	}
+	
+	private List<InetSocketAddress> resolvePeers() throws IOException {
+		Path file = peersFile;
+		if (file == null) {
+			return peers;
+		}
+		long checkedAt = System.nanoTime();
+		if (file.equals(loadedPeersFile)
+				&& checkedAt - peersFileCheckedAt < TimeUnit.MILLISECONDS.toNanos(peersFileCheckInterval)) {
+			return filePeers;
+		}
+		peersFileCheckedAt = checkedAt;
+		long modified = Files.getLastModifiedTime(file).toMillis();
+		if (modified != peersFileModified || file.equals(loadedPeersFile) == false) {
+			List<InetSocketAddress> loaded = new ArrayList<>();
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				String peer = line.trim();
+				int colon = peer.lastIndexOf(':');
+				if (peer.isEmpty() || peer.startsWith("#") || colon < 0) {
+					continue;
+				}
+				loaded.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+			}
+			filePeers = loaded;
+			peersFileModified = modified;
+			loadedPeersFile = file;
+			log.info("Peers are loaded from {}: {}", file, loaded);
+		}
+		return filePeers;
+	}
+	
+	
+	/**
+	 * Consumption of a limitation unit since the last exchange.
+	 */
+	private static final class Delta {
+		
+		private final LongAdder amount = new LongAdder();
+		
+		// amount taken by the current exchange
+		private long sending;
+	}
+}
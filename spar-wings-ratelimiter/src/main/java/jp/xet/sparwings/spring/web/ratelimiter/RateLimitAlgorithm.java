@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+import org.springframework.data.redis.core.script.RedisScript;
+
+/**
+ * Strategy of rate limiting algorithm.
+ * 
+ * <p>The state of a limitation unit is a single {@code long} value, so that the in-memory backend can update it by
+ * one CAS. The redis backend evaluates the scripts of the algorithm, which are composed by a library defining the
+ * function {@code rate_limit(key, fill_rate, max_budget, now, consumption, commit)} (see {@link RateLimitScripts}).
+ * </p>
+ * 
+ * <p>Time is expressed in epoch millisec, and budget is expressed in points. Fill rate is points per millisec.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see TokenBucketAlgorithm
+ * @see GcraAlgorithm
+ * @see SlidingWindowAlgorithm
+ */
+public interface RateLimitAlgorithm {
+	
+	/**
+	 * Compute the initial state of the limitation unit.
+	 * 
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @param currentBudget initial budget
+	 * @param lastUpdateTime time at which the budget is {@code currentBudget}
+	 * @return the state
+	 */
+	long initialState(long fillRate, long maxBudget, long currentBudget, long lastUpdateTime);
+	
+	/**
+	 * Compute the budget at {@code now}.
+	 * 
+	 * @param state the state
+	 * @param now current time
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @return the budget, never greater than {@code maxBudget}
+	 */
+	long budget(long state, long now, long fillRate, long maxBudget);
+	
+	/**
+	 * Compute the next state after consumption.
+	 * 
+	 * <p>The budget of the next state is {@code budget(state, now) - consumption} if the consumption is accepted.
+	 * Algorithms which do not charge rejected requests return {@code state} itself.</p>
+	 * 
+	 * @param state the state
+	 * @param now current time
+	 * @param consumption budget to consume
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @return the next state
+	 */
+	long consume(long state, long now, long consumption, long fillRate, long maxBudget);
+	
+	/**
+	 * Compute the next state after charging the amount which must not be rejected, e.g. the cost known after the
+	 * request has been processed.
+	 * 
+	 * <p>The default implementation charges up to the budget at {@code now}, leaving the limitation unit exhausted
+	 * rather than in debt, for algorithms which do not charge rejected requests. Algorithms which can represent debt
+	 * charge the amount in full.</p>
+	 * 
+	 * @param state the state
+	 * @param now current time
+	 * @param amount budget to charge
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @return the next state
+	 */
+	default long charge(long state, long now, long amount, long fillRate, long maxBudget) {
+		long charged = Math.min(amount, Math.max(0L, budget(state, now, fillRate, maxBudget)));
+		return charged == 0 ? state : consume(state, now, charged, fillRate, maxBudget);
+	}
+	
+	/**
+	 * Compute the state after refund of the consumption.
+	 * 
+	 * <p>This is used to roll back the consumption when one of several limitation units rejects it.</p>
+	 * 
+	 * @param state the state
+	 * @param now current time
+	 * @param amount budget to refund
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @return the next state
+	 */
+	long refund(long state, long now, long amount, long fillRate, long maxBudget);
+	
+	/**
+	 * Compute the time when the budget is refilled to {@code maxBudget}, if nothing is consumed after {@code now}.
+	 * 
+	 * <p>The default implementation assumes that the budget recovers by {@code fillRate} per millisec.</p>
+	 * 
+	 * @param state the state
+	 * @param now current time
+	 * @param fillRate fill rate per millisec
+	 * @param maxBudget maximum budget
+	 * @return the time in epoch millisec, or {@code now} if the budget is already full
+	 */
+	default long refilledAt(long state, long now, long fillRate, long maxBudget) {
+		long deficit = maxBudget - budget(state, now, fillRate, maxBudget);
+		return now + (deficit + fillRate - 1) / fillRate;
+	}
+	
+	/**
+	 * Returns the script to evaluate consumption of a limitation unit in redis.
+	 * 
+	 * <p>The script takes the key as {@code KEYS[1]} and fill rate, maximum budget, current time and consumption as
+	 * {@code ARGV[1..4]}, and returns the budget after consumption. The state is not updated when the consumption
+	 * is {@code 0}.</p>
+	 * 
+	 * @return the script
+	 */
+	RedisScript<Long> getRedisScript();
+	
+	/**
+	 * Returns the script to evaluate consumption of several limitation units in redis atomically.
+	 * 
+	 * <p>The script takes the keys as {@code KEYS}, current time and consumption as {@code ARGV[1..2]}, and fill rate
+	 * and maximum budget of each key as the rest of {@code ARGV}. It returns the list of budgets after consumption,
+	 * and consumes the budgets only if all of them are not negative. Otherwise, only the keys whose budgets are
+	 * negative are charged as the single script does, by the rule of {@link RateLimitService#consumeAll}.</p>
+	 * 
+	 * @return the script
+	 */
+	@SuppressWarnings("rawtypes")
+	RedisScript<List> getRedisMultiScript();
+	
+	/**
+	 * Returns the script to charge several limitation units in redis regardless of their budgets.
+	 * 
+	 * <p>The script takes the same keys and arguments as {@link #getRedisMultiScript()}, charges each key as
+	 * {@link #charge(long, long, long, long, long)} does, and returns the list of budgets after the charge.</p>
+	 * 
+	 * @return the script
+	 */
+	@SuppressWarnings("rawtypes")
+	RedisScript<List> getRedisChargeScript();
+	
+	/**
+	 * Returns the prefix of the redis key for limitation units.
+	 * 
+	 * @return the prefix
+	 */
+	String getRedisKeyPrefix();
+}
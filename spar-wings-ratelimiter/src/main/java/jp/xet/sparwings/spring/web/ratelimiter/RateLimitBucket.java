@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock-free bucket of a limitation unit.
+ * 
+ * <p>The state of the bucket is a single {@code long} interpreted by {@link RateLimitAlgorithm}, so that
+ * consumption is done by one CAS on the state and different buckets never contend with each other.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+final class RateLimitBucket {
+	
+	private static final VarHandle STATE;
+	
+	static {
+		try {
+			STATE = MethodHandles.lookup().findVarHandle(RateLimitBucket.class, "state", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private final long fillRate;
+	
+	private final long maxBudget;
+	
+	@SuppressWarnings("unused") // accessed via STATE
+	private volatile long state;
+	
+	
+	/**
+	 * Create instance initialized by the descriptor.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param initial initial state of the bucket
+	 */
+	RateLimitBucket(RateLimitAlgorithm algorithm, RateLimitDescriptor initial) {
+		fillRate = initial.getFillRate();
+		maxBudget = initial.getMaxBudget();
+		state = algorithm.initialState(fillRate, maxBudget, initial.getCurrentBudget(), initial.getLastUpdateTime());
+	}
+	
+	/**
+	 * Consume the budget at {@code now}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption, negative if the consumption exceeds the budget
+	 */
+	long consume(RateLimitAlgorithm algorithm, long now, long consumption) {
+		long current;
+		long next;
+		long budget;
+		do {
+			current = (long) STATE.getVolatile(this);
+			budget = algorithm.budget(current, now, fillRate, maxBudget) - consumption;
+			next = algorithm.consume(current, now, consumption, fillRate, maxBudget);
+		} while (next != current && STATE.compareAndSet(this, current, next) == false);
+		return budget;
+	}
+	
+	/**
+	 * Consume the budget at {@code now} only if the budget is enough.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption, negative if the consumption is rejected
+	 */
+	long tryConsume(RateLimitAlgorithm algorithm, long now, long consumption) {
+		long current;
+		long next;
+		long budget;
+		do {
+			current = (long) STATE.getVolatile(this);
+			budget = algorithm.budget(current, now, fillRate, maxBudget) - consumption;
+			if (budget < 0) {
+				return budget;
+			}
+			next = algorithm.consume(current, now, consumption, fillRate, maxBudget);
+		} while (next != current && STATE.compareAndSet(this, current, next) == false);
+		return budget;
+	}
+	
+	/**
+	 * Charge the consumption at {@code now} as {@link #consume(RateLimitAlgorithm, long, long)} does, only if the
+	 * budget is not enough.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption if the consumption is rejected, otherwise the current budget
+	 */
+	long chargeIfRejected(RateLimitAlgorithm algorithm, long now, long consumption) {
+		long current;
+		long next;
+		long budget;
+		do {
+			current = (long) STATE.getVolatile(this);
+			budget = algorithm.budget(current, now, fillRate, maxBudget);
+			if (budget >= consumption) {
+				return budget;
+			}
+			next = algorithm.consume(current, now, consumption, fillRate, maxBudget);
+		} while (next != current && STATE.compareAndSet(this, current, next) == false);
+		return budget - consumption;
+	}
+	
+	/**
+	 * Charge the amount at {@code now} regardless of the budget, as {@link RateLimitAlgorithm#charge} does.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @param amount budget to charge
+	 * @return budget after the charge
+	 */
+	long charge(RateLimitAlgorithm algorithm, long now, long amount) {
+		long current;
+		long next;
+		do {
+			current = (long) STATE.getVolatile(this);
+			next = algorithm.charge(current, now, amount, fillRate, maxBudget);
+		} while (next != current && STATE.compareAndSet(this, current, next) == false);
+		return algorithm.budget(next, now, fillRate, maxBudget);
+	}
+	
+	/**
+	 * Refund the consumption at {@code now}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @param amount budget to refund
+	 */
+	void refund(RateLimitAlgorithm algorithm, long now, long amount) {
+		long current;
+		do {
+			current = (long) STATE.getVolatile(this);
+		} while (STATE.compareAndSet(this, current, algorithm.refund(current, now, amount, fillRate, maxBudget)) == false);
+	}
+	
+	/**
+	 * Get the budget at {@code now} without consumption.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @return current budget
+	 */
+	long get(RateLimitAlgorithm algorithm, long now) {
+		return algorithm.budget((long) STATE.getVolatile(this), now, fillRate, maxBudget);
+	}
+	
+	/**
+	 * Check whether the bucket has been refilled to the maximum budget at {@code now}.
+	 * 
+	 * <p>A full bucket carries no information and can be dropped, because a newly created bucket is equivalent.</p>
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @return {@code true} if the bucket is full
+	 */
+	boolean isFull(RateLimitAlgorithm algorithm, long now) {
+		return get(algorithm, now) >= maxBudget;
+	}
+	
+	/**
+	 * Returns the ratio of the budget to the maximum budget at {@code now}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 * @return the ratio, {@code 1.0} if the bucket is full and negative if the bucket is in debt
+	 */
+	double getFullness(RateLimitAlgorithm algorithm, long now) {
+		return (double) get(algorithm, now) / maxBudget;
+	}
+	
+	/**
+	 * Create the snapshot of this bucket.
+	 * 
+	 * @param limitationUnitName name of limitation unit
+	 * @param budget current budget
+	 * @param now current time in epoch millisec
+	 * @return the snapshot
+	 */
+	RateLimitDescriptor toDescriptor(String limitationUnitName, long budget, long now) {
+		return new RateLimitDescriptor(limitationUnitName, fillRate, maxBudget, budget, now);
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Map of {@link RateLimitBucket}s keyed by limitation unit name, bounded by {@link #setMaxBuckets(int) maxBuckets}.
+ * 
+ * <p>When a new bucket makes the map exceed the cap, buckets which have been refilled to the maximum budget are
+ * expired first, and then the fullest bucket of each group of {@value #EVICTION_SAMPLES} buckets is evicted until
+ * the map shrinks to 90% of the cap, so that throttled clients keep their debt. The bucket being created is never
+ * evicted. The sweep is O(n), so it runs on {@link #setSweepExecutor(Executor) sweepExecutor} rather than on the
+ * request thread which trips the cap. The cap is soft: the map exceeds it until the sweep finishes.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+final class RateLimitBucketMap implements RateLimitBucketStore {
+	
+	private static final int EVICTION_PERCENTAGE = 10;
+	
+	private static final int EVICTION_SAMPLES = 5;
+	
+	/** Shared by all maps, and only one sweep of each map is queued at a time */
+	private static final Executor DEFAULT_SWEEP_EXECUTOR = newSweepExecutor();
+	
+	private final ConcurrentHashMap<String, RateLimitBucket> buckets = new ConcurrentHashMap<>();
+	
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	
+	private final LongAdder expiredCount = new LongAdder();
+	
+	private final LongAdder evictedCount = new LongAdder();
+	
+	/** Maximum number of buckets */
+	@Getter
+	@Setter
+	private volatile int maxBuckets = 1000000;
+	
+	/** Executor to sweep the map when it exceeds {@link #maxBuckets} */
+	@Getter
+	@Setter
+	private volatile Executor sweepExecutor = DEFAULT_SWEEP_EXECUTOR;
+	
+	
+	/**
+	 * Returns the bucket of the limitation unit.
+	 * 
+	 * @param limitationUnitName name of limitation unit
+	 * @return the bucket, or {@code null} if not tracked
+	 */
+	RateLimitBucket get(String limitationUnitName) {
+		return buckets.get(limitationUnitName);
+	}
+	
+	/**
+	 * Returns the bucket of the limitation unit, or create it initialized by the descriptor.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @return the bucket
+	 */
+	RateLimitBucket getOrCreate(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now) {
+		String limitationUnitName = descriptor.getLimitationUnitName();
+		RateLimitBucket bucket = buckets.get(limitationUnitName);
+		if (bucket == null) {
+			bucket = buckets.computeIfAbsent(limitationUnitName, p -> new RateLimitBucket(algorithm, descriptor));
+			if (size() > maxBuckets) {
+				scheduleSweep(algorithm, limitationUnitName, now);
+			}
+		}
+		return bucket;
+	}
+	
+	@Override
+	public long consume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption) {
+		return getOrCreate(algorithm, descriptor, now).consume(algorithm, now, consumption);
+	}
+	
+	@Override
+	public long tryConsume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption) {
+		return getOrCreate(algorithm, descriptor, now).tryConsume(algorithm, now, consumption);
+	}
+	
+	@Override
+	public long chargeIfRejected(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now,
+			long consumption) {
+		return getOrCreate(algorithm, descriptor, now).chargeIfRejected(algorithm, now, consumption);
+	}
+	
+	@Override
+	public long charge(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount) {
+		return getOrCreate(algorithm, descriptor, now).charge(algorithm, now, amount);
+	}
+	
+	@Override
+	public void refund(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount) {
+		getOrCreate(algorithm, descriptor, now).refund(algorithm, now, amount);
+	}
+	
+	@Override
+	public long get(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now) {
+		return getOrCreate(algorithm, descriptor, now).get(algorithm, now);
+	}
+	
+	/**
+	 * Remove all buckets which have been refilled to the maximum budget, unless another thread is sweeping.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param now current time in epoch millisec
+	 */
+	void expire(RateLimitAlgorithm algorithm, long now) {
+		if (sweeping.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			expireBuckets(algorithm, now);
+		} finally {
+			sweeping.set(false);
+		}
+	}
+	
+	/**
+	 * Remove all buckets.
+	 */
+	void clear() {
+		buckets.clear();
+	}
+	
+	long size() {
+		return buckets.mappingCount();
+	}
+	
+	long getExpiredCount() {
+		return expiredCount.sum();
+	}
+	
+	long getEvictedCount() {
+		return evictedCount.sum();
+	}
+	
+	private void scheduleSweep(RateLimitAlgorithm algorithm, String insertedKey, long now) {
+		if (sweeping.compareAndSet(false, true) == false) {
+			return; // another thread is sweeping
+		}
+		try {
+			sweepExecutor.execute(() -> sweep(algorithm, insertedKey, now));
+		} catch (RejectedExecutionException e) {
+			log.warn("Sweep of buckets is rejected: {}", e.getMessage());
+			sweeping.set(false);
+		}
+	}
+	
+	private void sweep(RateLimitAlgorithm algorithm, String insertedKey, long now) {
+		try {
+			expireBuckets(algorithm, now);
+			long excess = size() - (maxBuckets - (long) maxBuckets * EVICTION_PERCENTAGE / 100);
+			Iterator<Map.Entry<String, RateLimitBucket>> iterator = buckets.entrySet().iterator();
+			while (excess > 0 && iterator.hasNext()) {
+				Map.Entry<String, RateLimitBucket> victim = null;
+				double victimFullness = 0;
+				for (int i = 0; i < EVICTION_SAMPLES && iterator.hasNext(); i++) {
+					Map.Entry<String, RateLimitBucket> candidate = iterator.next();
+					if (candidate.getKey().equals(insertedKey)) {
+						continue;
+					}
+					double fullness = candidate.getValue().getFullness(algorithm, now);
+					if (victim == null || fullness > victimFullness) {
+						victim = candidate;
+						victimFullness = fullness;
+					}
+				}
+				if (victim != null && buckets.remove(victim.getKey(), victim.getValue())) {
+					evictedCount.increment();
+					excess--;
+				}
+			}
+			log.debug("Buckets are swept: {} buckets remain", size());
+		} finally {
+			sweeping.set(false);
+		}
+	}
+	
+	private void expireBuckets(RateLimitAlgorithm algorithm, long now) {
+		Iterator<RateLimitBucket> iterator = buckets.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isFull(algorithm, now)) {
+				iterator.remove();
+				expiredCount.increment();
+			}
+		}
+	}
+	
+	private static Executor newSweepExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				r -> {
+					Thread thread = new Thread(r, "rate-limit-sweep");
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	@Override
+	public String toString() {
+		return "RateLimitBucketMap(maxBuckets=" + maxBuckets + ", size=" + size() + ")";
+	}
+}
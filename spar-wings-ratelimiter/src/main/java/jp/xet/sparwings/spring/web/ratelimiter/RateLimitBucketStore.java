@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local store of buckets keyed by limitation unit, on which several limitation units are consumed without lock.
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see RateLimitBucketMap
+ * @see RateLimitBucketTable
+ */
+interface RateLimitBucketStore {
+	
+	/**
+	 * Consume the budget at {@code now}, with the same semantics as {@link RateLimitBucket}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption, negative if the consumption exceeds the budget
+	 */
+	long consume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption);
+	
+	/**
+	 * Consume the budget at {@code now} only if the budget is enough.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption, negative if the consumption is rejected
+	 */
+	long tryConsume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption);
+	
+	/**
+	 * Charge the consumption at {@code now} as {@link #consume(RateLimitAlgorithm, RateLimitDescriptor, long, long)}
+	 * does, only if the budget is not enough.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return budget after consumption if the consumption is rejected, otherwise the current budget
+	 */
+	long chargeIfRejected(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption);
+	
+	/**
+	 * Charge the amount at {@code now} regardless of the budget, as {@link RateLimitAlgorithm#charge} does.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @param amount budget to charge
+	 * @return budget after the charge
+	 */
+	long charge(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount);
+	
+	/**
+	 * Refund the consumption at {@code now}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @param amount budget to refund
+	 */
+	void refund(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount);
+	
+	/**
+	 * Get the budget at {@code now} without consumption.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptor descriptor of the limitation unit
+	 * @param now current time in epoch millisec
+	 * @return current budget
+	 */
+	long get(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now);
+	
+	/**
+	 * Consume the budgets of all limitation units by the rule of {@link RateLimitService#consumeAll}.
+	 * 
+	 * <p>Budgets are consumed one by one without lock. When one of the limitation units rejects the consumption,
+	 * the consumption is refunded to the preceding ones, and the rejecting ones are charged as
+	 * {@link #chargeIfRejected(RateLimitAlgorithm, RateLimitDescriptor, long, long)} does.</p>
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptors descriptors of the limitation units
+	 * @param now current time in epoch millisec
+	 * @param consumption budget to consume
+	 * @return snapshots of the limitation units, in the same order as {@code descriptors}
+	 */
+	default List<RateLimitDescriptor> consumeAll(RateLimitAlgorithm algorithm, List<RateLimitDescriptor> descriptors,
+			long now, long consumption) {
+		int size = descriptors.size();
+		long[] budgets = new long[size];
+		int rejected = -1;
+		for (int i = 0; i < size; i++) {
+			budgets[i] = tryConsume(algorithm, descriptors.get(i), now, consumption);
+			if (budgets[i] < 0) {
+				rejected = i;
+				break;
+			}
+		}
+		if (rejected >= 0) {
+			for (int i = 0; i < rejected; i++) {
+				refund(algorithm, descriptors.get(i), now, consumption);
+				budgets[i] = get(algorithm, descriptors.get(i), now);
+			}
+			// keep the rejection even if the budget has been refilled since tryConsume
+			budgets[rejected] = Math.min(budgets[rejected],
+					chargeIfRejected(algorithm, descriptors.get(rejected), now, consumption));
+			for (int i = rejected + 1; i < size; i++) {
+				budgets[i] = chargeIfRejected(algorithm, descriptors.get(i), now, consumption);
+			}
+		}
+		
+		return toDescriptors(descriptors, budgets, now);
+	}
+	
+	/**
+	 * Charge the amount to all limitation units regardless of their budgets, by the rule of
+	 * {@link RateLimitService#chargeAll}.
+	 * 
+	 * @param algorithm rate limiting algorithm
+	 * @param descriptors descriptors of the limitation units
+	 * @param now current time in epoch millisec
+	 * @param amount budget to charge
+	 * @return snapshots of the limitation units, in the same order as {@code descriptors}
+	 */
+	default List<RateLimitDescriptor> chargeAll(RateLimitAlgorithm algorithm, List<RateLimitDescriptor> descriptors,
+			long now, long amount) {
+		long[] budgets = new long[descriptors.size()];
+		for (int i = 0; i < budgets.length; i++) {
+			budgets[i] = charge(algorithm, descriptors.get(i), now, amount);
+		}
+		return toDescriptors(descriptors, budgets, now);
+	}
+	
+	private static List<RateLimitDescriptor> toDescriptors(List<RateLimitDescriptor> descriptors, long[] budgets,
+			long now) {
+		List<RateLimitDescriptor> result = new ArrayList<>(budgets.length);
+		for (int i = 0; i < budgets.length; i++) {
+			RateLimitDescriptor descriptor = descriptors.get(i);
+			result.add(new RateLimitDescriptor(descriptor.getLimitationUnitName(), descriptor.getFillRate(),
+					descriptor.getMaxBudget(), budgets[i], now));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free open-addressing table of buckets, stored in a single {@code long[]}.
+ * 
+ * <p>Each slot consists of three {@code long}s: the 64-bit hash of the limitation unit name, the state interpreted
+ * by {@link RateLimitAlgorithm}, and the time when the bucket is refilled to the maximum budget, which is computed by
+ * {@link RateLimitAlgorithm#refilledAt(long, long, long, long)} on each update. Lookups probe at most
+ * {@value #PROBE_LIMIT} slots. When all of them are occupied, the slot which expires first is reused, so the
+ * table never grows and never allocates after construction.</p>
+ * 
+ * <p>The table is best-effort in a few races: limitation units whose hashes collide share a bucket, and a
+ * consumption which races with the eviction of its bucket may be lost. Neither lets a client exceed its budget by
+ * more than a single consumption.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+final class RateLimitBucketTable implements RateLimitBucketStore {
+	
+	/** Maximum capacity, so that the table fits in a single array */
+	static final int MAX_CAPACITY = 1 << 29;
+	
+	private static final int PROBE_LIMIT = 16;
+	
+	private static final int STRIDE = 3;
+	
+	private static final int KEY = 0;
+	
+	private static final int STATE = 1;
+	
+	private static final int EXPIRE_AT = 2;
+	
+	private static final long EMPTY_KEY = 0L;
+	
+	/** Key of a slot whose state is being reset before it is freed */
+	private static final long RELEASING_KEY = Long.MIN_VALUE;
+	
+	private static final long EMPTY_STATE = Long.MIN_VALUE;
+	
+	/** Update modes of {@link #update(RateLimitAlgorithm, long, RateLimitDescriptor, long, long, int)} */
+	private static final int ALWAYS = 0;
+	
+	private static final int IF_ACCEPTED = 1;
+	
+	private static final int IF_REJECTED = 2;
+	
+	private static final int CHARGE = 3;
+	
+	private static final VarHandle ARRAY = MethodHandles.arrayElementVarHandle(long[].class);
+	
+	
+	/**
+	 * Compute 64-bit hash of the limitation unit name.
+	 * 
+	 * @param limitationUnitName name of limitation unit
+	 * @return hash which is neither {@link #EMPTY_KEY} nor {@link #RELEASING_KEY}
+	 */
+	static long hash(String limitationUnitName) {
+		// FNV-1a followed by the finalizer of MurmurHash3
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < limitationUnitName.length(); i++) {
+			h ^= limitationUnitName.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == EMPTY_KEY || h == RELEASING_KEY ? 1L : h;
+	}
+	
+	
+	private final long[] table;
+	
+	private final int mask;
+	
+	private final LongAdder size = new LongAdder();
+	
+	private final LongAdder expiredCount = new LongAdder();
+	
+	private final LongAdder evictedCount = new LongAdder();
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param capacity the number of slots, rounded up to a power of two
+	 * @throws IllegalArgumentException if the capacity is not positive or exceeds {@link #MAX_CAPACITY}
+	 */
+	RateLimitBucketTable(int capacity) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("capacity must be in 1-" + MAX_CAPACITY + ": " + capacity);
+		}
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity) {
+			slots <<= 1;
+		}
+		mask = slots - 1;
+		table = new long[slots * STRIDE];
+		for (int i = STATE; i < table.length; i += STRIDE) {
+			table[i] = EMPTY_STATE;
+		}
+	}
+	
+	/**
+	 * Returns the number of slots.
+	 * 
+	 * @return the number of slots
+	 */
+	int getCapacity() {
+		return mask + 1;
+	}
+	
+	/**
+	 * Returns the number of occupied slots.
+	 * 
+	 * @return the number of buckets
+	 */
+	long size() {
+		return size.sum();
+	}
+	
+	long getExpiredCount() {
+		return expiredCount.sum();
+	}
+	
+	long getEvictedCount() {
+		return evictedCount.sum();
+	}
+	
+	@Override
+	public long consume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption) {
+		return update(algorithm, hash(descriptor.getLimitationUnitName()), descriptor, now, consumption, ALWAYS);
+	}
+	
+	@Override
+	public long tryConsume(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long consumption) {
+		return update(algorithm, hash(descriptor.getLimitationUnitName()), descriptor, now, consumption, IF_ACCEPTED);
+	}
+	
+	@Override
+	public long chargeIfRejected(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now,
+			long consumption) {
+		return update(algorithm, hash(descriptor.getLimitationUnitName()), descriptor, now, consumption, IF_REJECTED);
+	}
+	
+	@Override
+	public long charge(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount) {
+		return update(algorithm, hash(descriptor.getLimitationUnitName()), descriptor, now, amount, CHARGE);
+	}
+	
+	@Override
+	public void refund(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now, long amount) {
+		long key = hash(descriptor.getLimitationUnitName());
+		long fillRate = descriptor.getFillRate();
+		long maxBudget = descriptor.getMaxBudget();
+		int base = locate(algorithm, key, descriptor, now);
+		for (;;) {
+			long current = (long) ARRAY.getVolatile(table, base + STATE);
+			if (current == EMPTY_STATE || (long) ARRAY.getVolatile(table, base + KEY) != key) {
+				return; // evicted
+			}
+			long next = algorithm.refund(current, now, amount, fillRate, maxBudget);
+			if (ARRAY.compareAndSet(table, base + STATE, current, next)) {
+				postpone(base, algorithm.refilledAt(next, now, fillRate, maxBudget));
+				return;
+			}
+		}
+	}
+	
+	@Override
+	public long get(RateLimitAlgorithm algorithm, RateLimitDescriptor descriptor, long now) {
+		return update(algorithm, hash(descriptor.getLimitationUnitName()), descriptor, now, 0L, IF_ACCEPTED);
+	}
+	
+	/**
+	 * Release all slots whose buckets have been refilled to the maximum budget.
+	 * 
+	 * @param now current time in epoch millisec
+	 */
+	void expire(long now) {
+		for (int base = 0; base < table.length; base += STRIDE) {
+			long key = (long) ARRAY.getVolatile(table, base + KEY);
+			if (key != EMPTY_KEY && key != RELEASING_KEY && (long) ARRAY.getOpaque(table, base + EXPIRE_AT) <= now
+					&& release(base, key)) {
+				expiredCount.increment();
+			}
+		}
+	}
+	
+	private long update(RateLimitAlgorithm algorithm, long key, RateLimitDescriptor descriptor, long now,
+			long consumption, int mode) {
+		long fillRate = descriptor.getFillRate();
+		long maxBudget = descriptor.getMaxBudget();
+		int base = locate(algorithm, key, descriptor, now);
+		for (;;) {
+			long current = (long) ARRAY.getVolatile(table, base + STATE);
+			if (current == EMPTY_STATE || (long) ARRAY.getVolatile(table, base + KEY) != key) {
+				base = locate(algorithm, key, descriptor, now); // evicted by another thread
+				continue;
+			}
+			long budget = algorithm.budget(current, now, fillRate, maxBudget) - consumption;
+			if (consumption == 0 || mode == IF_ACCEPTED && budget < 0) {
+				return budget;
+			} else if (mode == IF_REJECTED && budget >= 0) {
+				return budget + consumption;
+			}
+			long next;
+			if (mode == CHARGE) {
+				next = algorithm.charge(current, now, consumption, fillRate, maxBudget);
+				budget = algorithm.budget(next, now, fillRate, maxBudget);
+			} else {
+				next = algorithm.consume(current, now, consumption, fillRate, maxBudget);
+			}
+			if (next == current) {
+				return budget;
+			}
+			if (ARRAY.compareAndSet(table, base + STATE, current, next)) {
+				postpone(base, algorithm.refilledAt(next, now, fillRate, maxBudget));
+				return budget;
+			}
+		}
+	}
+	
+	/**
+	 * Find the slot of the key, or occupy a new slot for it.
+	 * 
+	 * @return the index of the slot whose state is initialized
+	 */
+	private int locate(RateLimitAlgorithm algorithm, long key, RateLimitDescriptor descriptor, long now) {
+		int start = (int) key;
+		for (;;) {
+			int free = -1;
+			int victim = -1;
+			long victimExpireAt = Long.MAX_VALUE;
+			for (int i = 0; i < PROBE_LIMIT; i++) {
+				int base = ((start + i) & mask) * STRIDE;
+				long occupant = (long) ARRAY.getVolatile(table, base + KEY);
+				if (occupant == key) {
+					initialize(algorithm, base, descriptor, now);
+					return base;
+				} else if (occupant == EMPTY_KEY) {
+					if (free < 0) {
+						free = base;
+					}
+				} else if (occupant != RELEASING_KEY) {
+					long expireAt = (long) ARRAY.getOpaque(table, base + EXPIRE_AT);
+					if (expireAt < victimExpireAt) {
+						victim = base;
+						victimExpireAt = expireAt;
+					}
+				}
+			}
+			if (free < 0 && victim >= 0) {
+				long occupant = (long) ARRAY.getVolatile(table, victim + KEY);
+				if (occupant != EMPTY_KEY && occupant != RELEASING_KEY && release(victim, occupant)) {
+					if (victimExpireAt <= now) {
+						expiredCount.increment();
+					} else {
+						evictedCount.increment();
+					}
+				}
+				free = victim;
+			}
+			if (free >= 0 && ARRAY.compareAndSet(table, free + KEY, EMPTY_KEY, key)) {
+				size.increment();
+				int base = deduplicate(start, free, key);
+				initialize(algorithm, base, descriptor, now);
+				return base;
+			}
+		}
+	}
+	
+	/**
+	 * Keep the first slot of the key in probe order, if another thread has occupied one concurrently.
+	 */
+	private int deduplicate(int start, int claimed, long key) {
+		for (int i = 0; i < PROBE_LIMIT; i++) {
+			int base = ((start + i) & mask) * STRIDE;
+			if (base == claimed) {
+				return claimed;
+			}
+			if ((long) ARRAY.getVolatile(table, base + KEY) == key) {
+				release(claimed, key);
+				return base;
+			}
+		}
+		return claimed;
+	}
+	
+	private void initialize(RateLimitAlgorithm algorithm, int base, RateLimitDescriptor descriptor, long now) {
+		if ((long) ARRAY.getVolatile(table, base + STATE) != EMPTY_STATE) {
+			return;
+		}
+		long fillRate = descriptor.getFillRate();
+		long maxBudget = descriptor.getMaxBudget();
+		long initial = algorithm.initialState(fillRate, maxBudget, descriptor.getCurrentBudget(),
+				descriptor.getLastUpdateTime());
+		if (ARRAY.compareAndSet(table, base + STATE, EMPTY_STATE, initial)) {
+			ARRAY.setOpaque(table, base + EXPIRE_AT, algorithm.refilledAt(initial, now, fillRate, maxBudget));
+		}
+	}
+	
+	/**
+	 * Postpone the expiry of the slot. The expiry is never brought forward, so that a racing update which computed an
+	 * earlier expiry cannot expire the bucket before it is refilled.
+	 */
+	private void postpone(int base, long expireAt) {
+		for (;;) {
+			long current = (long) ARRAY.getOpaque(table, base + EXPIRE_AT);
+			if (current >= expireAt || ARRAY.compareAndSet(table, base + EXPIRE_AT, current, expireAt)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Release the slot occupied by the key.
+	 * 
+	 * <p>The state is reset before the key is freed, so that a thread which claims the slot always finds the empty
+	 * state and initializes its own bucket, rather than consuming the bucket of the released key.</p>
+	 * 
+	 * @return {@code true} if released by this thread
+	 */
+	private boolean release(int base, long key) {
+		if (ARRAY.compareAndSet(table, base + KEY, key, RELEASING_KEY) == false) {
+			return false;
+		}
+		// threads still holding the index see the empty state or another key, and locate the bucket again
+		ARRAY.setVolatile(table, base + STATE, EMPTY_STATE);
+		// never chosen as a victim until the next occupant initializes the expiry
+		ARRAY.setOpaque(table, base + EXPIRE_AT, Long.MAX_VALUE);
+		ARRAY.setVolatile(table, base + KEY, EMPTY_KEY);
+		size.decrement();
+		return true;
+	}
+	
+	@Override
+	public String toString() {
+		return "RateLimitBucketTable(capacity=" + getCapacity() + ", size=" + size() + ")";
+	}
+}
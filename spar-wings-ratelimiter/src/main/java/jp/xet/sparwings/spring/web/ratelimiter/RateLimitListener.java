@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * Listener of rate limiting events, e.g. to record metrics.
+ * 
+ * <p>Methods are called on the request thread and must return quickly.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see MicrometerRateLimitMetrics
+ */
+public interface RateLimitListener {
+	
+	/**
+	 * Called when a request is evaluated by {@link RateLimitingInterceptor}.
+	 * 
+	 * @param bucket name of the bucket specified by {@link RateLimited#bucket()}, or {@code null}
+	 * @param descriptor the most restrictive descriptor after the consumption
+	 * @param cost cost of the request
+	 * @param rejected {@code true} if the request is rejected
+	 */
+	default void onEvaluated(String bucket, RateLimitDescriptor descriptor, long cost, boolean rejected) {
+		// nothing to do
+	}
+	
+	/**
+	 * Called when a call to redis by {@link RedisRateLimitService}, {@link LeasingRateLimitService} or
+	 * {@link ReactiveRedisRateLimitService} is finished.
+	 * 
+	 * @param nanos elapsed time in nanosec
+	 * @param succeeded {@code true} if the call succeeded
+	 */
+	default void onRedisCall(long nanos, boolean succeeded) {
+		// nothing to do
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Factory of redis scripts for {@link RateLimitAlgorithm}.
+ * 
+ * <p>The script of an algorithm is a library which defines the local function
+ * {@code rate_limit(key, fill_rate, max_budget, now, consumption, commit)} returning the budget after consumption,
+ * and the local variable {@code charge_in_full} which tells whether a committed consumption may exceed the budget.
+ * The library is combined with a driver which evaluates the function for one or several limitation units.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+final class RateLimitScripts {
+	
+	/**
+	 * Create the script to consume the budget of a limitation unit.
+	 * 
+	 * @param library resource name of the library
+	 * @return the script
+	 */
+	static RedisScript<Long> single(String library) {
+		return RedisScript.of(load(library) + load("single.lua"), Long.class);
+	}
+	
+	/**
+	 * Create the script to consume the budgets of several limitation units.
+	 * 
+	 * @param library resource name of the library
+	 * @return the script
+	 */
+	@SuppressWarnings("rawtypes")
+	static RedisScript<List> multi(String library) {
+		return RedisScript.of(load(library) + load("multi.lua"), List.class);
+	}
+	
+	/**
+	 * Create the script to charge several limitation units regardless of their budgets.
+	 * 
+	 * @param library resource name of the library
+	 * @return the script
+	 */
+	@SuppressWarnings("rawtypes")
+	static RedisScript<List> charge(String library) {
+		return RedisScript.of(load(library) + load("charge.lua"), List.class);
+	}
+	
+	private static String load(String name) {
+		try {
+			return StreamUtils.copyToString(
+					new ClassPathResource(name, RateLimitScripts.class).getInputStream(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private RateLimitScripts() {
+	}
+}
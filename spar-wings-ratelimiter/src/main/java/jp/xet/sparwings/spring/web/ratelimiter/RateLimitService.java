@@ -15,6 +15,9 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.Collections;
+import java.util.List;
+
 import jakarta.servlet.http.HttpServletRequest;
 
 /**
@@ -36,6 +39,46 @@ public interface RateLimitService {
 	 */
 	RateLimitDescriptor consume(HttpServletRequest request, long consumption);
 	
+	/**
+	 * Consume the budgets of all limitation units (e.g. per client, per user and per tenant) of the request.
+	 * 
+	 * <p>Implementations which support several limitation units consume the budgets only if all of them accept the
+	 * consumption. When the consumption is rejected, nothing is consumed from the limitation units which accept it,
+	 * and each limitation unit which rejects it is charged as {@link #consume(HttpServletRequest, long)} charges a
+	 * rejected consumption (e.g. {@link TokenBucketAlgorithm} puts the bucket into debt). So the penalty of a
+	 * limitation unit does not depend on the other limitation units, and a single limitation unit behaves the same
+	 * as {@link #consume(HttpServletRequest, long)}. The rejecting limitation units report their negative budgets
+	 * after consumption, and the others report their current budgets. The default implementation delegates to
+	 * {@link #consume(HttpServletRequest, long)}.</p>
+	 * 
+	 * @param request the request
+	 * @param consumption budget to consume
+	 * @return list of {@link RateLimitDescriptor}, empty if limitation is not applied.
+	 * @since 0.38
+	 */
+	default List<RateLimitDescriptor> consumeAll(HttpServletRequest request, long consumption) {
+		RateLimitDescriptor descriptor = consume(request, consumption);
+		return descriptor == null ? Collections.emptyList() : Collections.singletonList(descriptor);
+	}
+	
+	/**
+	 * Charge the amount to all limitation units of the request regardless of their budgets, e.g. the cost which is
+	 * known only after the request has been processed.
+	 * 
+	 * <p>Unlike {@link #consumeAll(HttpServletRequest, long)}, the charge is never rejected. Algorithms which can
+	 * represent debt (e.g. {@link TokenBucketAlgorithm}) charge the amount in full, and the others charge it up to
+	 * the current budget. The default implementation delegates to {@link #consumeAll(HttpServletRequest, long)},
+	 * which may drop a charge exceeding the budget.</p>
+	 * 
+	 * @param request the request
+	 * @param amount budget to charge
+	 * @return list of {@link RateLimitDescriptor} after the charge, empty if limitation is not applied.
+	 * @since 0.38
+	 */
+	default List<RateLimitDescriptor> chargeAll(HttpServletRequest request, long amount) {
+		return consumeAll(request, amount);
+	}
+	
 	/**
 	 * TODO for daisuke
 	 * 
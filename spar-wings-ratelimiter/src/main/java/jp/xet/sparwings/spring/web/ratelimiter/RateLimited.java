@@ -23,14 +23,38 @@ import java.lang.annotation.Target;
 /**
  * レートリミットの消費量を指定するアノテーション。
  * 
+ * <p>型に付与した場合、その型のすべてのハンドラメソッドに適用する。メソッドに付与したものが優先される。</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target(ElementType.METHOD)
+@Target({
+	ElementType.METHOD,
+	ElementType.TYPE
+})
 public @interface RateLimited {
 	
 	/** 消費量 */
 	int value() default 100;
 	
+	/**
+	 * バケット名。
+	 * 
+	 * <p>指定した場合、リクエスト属性 {@link RateLimitingInterceptor#BUCKET_ATTRIBUTE} に設定され、
+	 * リミット単位をバケット毎に分ける。</p>
+	 * 
+	 * @since 0.38
+	 */
+	String bucket() default "";
+	
+	/**
+	 * 優先度。
+	 * 
+	 * <p>{@link LoadSheddingPolicy} が設定されている場合、優先度の低いリクエストから先に拒否される。</p>
+	 * 
+	 * @since 0.38
+	 */
+	RequestPriority priority() default RequestPriority.NORMAL;
+
 }
@@ -15,15 +15,17 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
-import java.util.Optional;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 
-import org.springframework.web.method.HandlerMethod;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
@@ -31,19 +33,83 @@ import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
 /**
  * リクエスト毎にレートリミットを判断する {@link HandlerInterceptor} 実装クラス。
  * 
+ * <p>The cost and the bucket of the request are resolved from {@link RateLimited} once per handler method.</p>
+ * 
+ * <p>If {@link #setSheddingPolicy(LoadSheddingPolicy) sheddingPolicy} is set, requests of low
+ * {@link RateLimited#priority() priority} are rejected before the budget runs out, so that the rest of the budget
+ * is left for requests of higher priority.</p>
+ * 
+ * <p>If {@link #setBytesPerPoint(long) bytesPerPoint} or {@link #setCpuNanosPerPoint(long) cpuNanosPerPoint} is set,
+ * the cost of {@link RateLimited} is charged as a base cost before the handler, and the cost derived from the size of
+ * the response and the CPU time of the handler is charged against the same limitation units after completion. The
+ * post-hoc cost never rejects the request itself, and it is charged by
+ * {@link RateLimitService#chargeAll(HttpServletRequest, long)} even if it exceeds the budget, so that it reduces the
+ * budget for the following requests. The size of the response is counted by {@link ResponseSizeCountingFilter}, or
+ * taken from the {@code Content-Length} header.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
+@Slf4j
 public class RateLimitingInterceptor implements HandlerInterceptor {
 	
-	private static final int DEFAULT_CONSUMPTION = 100;
+	/**
+	 * Name of the request attribute to which the bucket name of {@link RateLimited#bucket()} is set.
+	 * 
+	 * @since 0.38
+	 */
+	public static final String BUCKET_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".BUCKET";
+	
+	private static final String USAGE_ATTRIBUTE = RateLimitingInterceptor.class.getName() + ".USAGE";
+	
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
 	
 	private final RateLimitService rateLimitService;
 	
+	private final boolean costOverridden;
+	
 	@Getter
 	@Setter
 	private boolean responseHeader = true;
 	
+	/**
+	 * Policy to shed low priority requests, or {@code null} to treat all requests the same.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private LoadSheddingPolicy sheddingPolicy;
+	
+	/**
+	 * Size of the response in bytes charged as one point after completion, or {@code 0} not to charge it.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long bytesPerPoint;
+	
+	/**
+	 * CPU time of the handler in nanosec charged as one point after completion, or {@code 0} not to charge it.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long cpuNanosPerPoint;
+	
+	/**
+	 * Listener of rate limiting events, or {@code null}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private RateLimitListener listener;
+	
+	private volatile HeaderValues headerValues = new HeaderValues(0L, 0L);
+	
 	
 	/**
 	 * インスタンスを生成する。
@@ -53,17 +119,44 @@ public class RateLimitingInterceptor implements HandlerInterceptor {
 	 */
 	public RateLimitingInterceptor(RateLimitService rateLimitService) {
 		this.rateLimitService = rateLimitService;
+		costOverridden = ReflectionUtils.findMethod(getClass(), "computeCost", HttpServletRequest.class, Object.class)
+			.getDeclaringClass() != RateLimitingInterceptor.class;
 	}
 	
 	@Override
 	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
 			throws Exception { // NOPMD
 		if (rateLimitService != null && isRateLimitTarget(request, response, handler)) {
-			rateLimit(request, response, handler);
+			rateLimit(request, response, handler, HandlerRateLimit.of(handler));
+			if (bytesPerPoint > 0 || cpuNanosPerPoint > 0) {
+				request.setAttribute(USAGE_ATTRIBUTE,
+						new Usage(Thread.currentThread(), THREAD_MX_BEAN.getCurrentThreadCpuTime()));
+			}
 		}
 		return true;
 	}
 	
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) throws Exception { // NOPMD
+		Object attribute = request.getAttribute(USAGE_ATTRIBUTE);
+		if (attribute instanceof Usage == false) {
+			return;
+		}
+		request.removeAttribute(USAGE_ATTRIBUTE);
+		Usage usage = (Usage) attribute;
+		long cpuNanos = -1L;
+		if (usage.thread == Thread.currentThread() && usage.cpuTime >= 0) {
+			long cpuTime = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+			cpuNanos = cpuTime >= 0 ? cpuTime - usage.cpuTime : -1L;
+		}
+		long cost = computeAdditionalCost(request, response, handler, cpuNanos);
+		if (cost > 0) {
+			rateLimitService.chargeAll(request, cost);
+			log.debug("Additional cost {} is charged", cost);
+		}
+	}
+	
 	/**
 	 * TODO for daisuke
 	 * 
@@ -76,24 +169,44 @@ public class RateLimitingInterceptor implements HandlerInterceptor {
 		return true;
 	}
 	
-	private void rateLimit(HttpServletRequest request, HttpServletResponse response, Object handler)
-			throws HttpTooManyRequestsException {
-		int cost = computeCost(request, handler);
-		RateLimitDescriptor desc = rateLimitService.consume(request, cost);
+	private void rateLimit(HttpServletRequest request, HttpServletResponse response, Object handler,
+			HandlerRateLimit handlerRateLimit) throws HttpTooManyRequestsException {
+		if (handlerRateLimit.getBucket() != null) {
+			request.setAttribute(BUCKET_ATTRIBUTE, handlerRateLimit.getBucket());
+		}
+		int cost = costOverridden ? computeCost(request, handler) : handlerRateLimit.getCost();
+		RateLimitDescriptor desc = null;
+		for (RateLimitDescriptor candidate : rateLimitService.consumeAll(request, cost)) {
+			if (desc == null || isMoreRestrictive(candidate, desc, cost)) {
+				desc = candidate;
+			}
+		}
 		if (desc == null) {
 			return; // through
 		}
 		
 		if (responseHeader) {
+			HeaderValues values = headerValues;
+			if (values.maxBudget != desc.getMaxBudget() || values.fillRate != desc.getFillRate()) {
+				values = new HeaderValues(desc.getMaxBudget(), desc.getFillRate());
+				headerValues = values;
+			}
 			response.setHeader("RateLimit-Unit", desc.getLimitationUnitName());
-			response.setHeader("RateLimit-Cost", String.valueOf(cost));
+			response.setHeader("RateLimit-Cost",
+					cost == handlerRateLimit.getCost() ? handlerRateLimit.getCostHeaderValue() : String.valueOf(cost));
 			response.setHeader("RateLimit-CurrentBudget", String.valueOf(desc.getCurrentBudget()));
-			response.setHeader("RateLimit-MaximumBudget", String.valueOf(desc.getMaxBudget()));
-			response.setHeader("RateLimit-FillRate", String.valueOf(desc.getFillRate()));
+			response.setHeader("RateLimit-MaximumBudget", values.maxBudgetHeaderValue);
+			response.setHeader("RateLimit-FillRate", values.fillRateHeaderValue);
 		}
 		
-		if (desc.getCurrentBudget() < 0) {
-			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost);
+		long reserved = sheddingPolicy == null ? 0L
+				: sheddingPolicy.computeReservedBudget(handlerRateLimit.getPriority(), desc);
+		boolean rejected = desc.getCurrentBudget() < reserved;
+		if (listener != null) {
+			listener.onEvaluated(handlerRateLimit.getBucket(), desc, cost, rejected);
+		}
+		if (rejected) {
+			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost + reserved);
 			if (responseHeader) {
 				long secsToWait = Math.floorDiv(millisecsToWait, 1000L);
 				response.setHeader("Retry-After", String.valueOf(secsToWait));
@@ -102,6 +215,13 @@ public class RateLimitingInterceptor implements HandlerInterceptor {
 		}
 	}
 	
+	private static boolean isMoreRestrictive(RateLimitDescriptor desc, RateLimitDescriptor other, int cost) {
+		if (desc.getCurrentBudget() < 0 && other.getCurrentBudget() < 0) {
+			return desc.computeWaitMillisecsToConsume(cost) > other.computeWaitMillisecsToConsume(cost);
+		}
+		return desc.getCurrentBudget() < other.getCurrentBudget();
+	}
+	
 	/**
 	 * Compute cost of request.
 	 * 
@@ -110,11 +230,84 @@ public class RateLimitingInterceptor implements HandlerInterceptor {
 	 * @return cost
 	 */
 	protected int computeCost(HttpServletRequest request, Object handler) {
-		RateLimited rateLimited = null;
-		if (handler instanceof HandlerMethod) {
-			rateLimited = ((HandlerMethod) handler).getMethodAnnotation(RateLimited.class);
+		return HandlerRateLimit.of(handler).getCost();
+	}
+	
+	/**
+	 * Compute cost of request charged after completion, in addition to {@link #computeCost(HttpServletRequest, Object)}.
+	 * 
+	 * @param request The request
+	 * @param response The response
+	 * @param handler The handler of request
+	 * @param cpuNanos CPU time of the handler in nanosec, or {@code -1} if unknown (e.g. the request was processed
+	 *     asynchronously)
+	 * @return additional cost
+	 * @since 0.38
+	 */
+	protected long computeAdditionalCost(HttpServletRequest request, HttpServletResponse response, Object handler,
+			long cpuNanos) {
+		long cost = 0;
+		if (bytesPerPoint > 0) {
+			long size = ResponseSizeCountingFilter.getResponseSize(request);
+			if (size < 0) {
+				size = getContentLength(response);
+			}
+			cost += size / bytesPerPoint;
+		}
+		if (cpuNanosPerPoint > 0 && cpuNanos > 0) {
+			cost += cpuNanos / cpuNanosPerPoint;
+		}
+		return cost;
+	}
+	
+	private static long getContentLength(HttpServletResponse response) {
+		String contentLength = response.getHeader("Content-Length");
+		if (contentLength == null) {
+			return 0L;
+		}
+		try {
+			return Long.parseLong(contentLength);
+		} catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+	
+	
+	/**
+	 * Resource usage at the start of the handler.
+	 */
+	private static final class Usage {
+		
+		private final Thread thread;
+		
+		private final long cpuTime;
+		
+		
+		Usage(Thread thread, long cpuTime) {
+			this.thread = thread;
+			this.cpuTime = cpuTime;
+		}
+	}
+	
+	/**
+	 * Header values of the last descriptor, which are usually the same for all requests.
+	 */
+	private static final class HeaderValues {
+		
+		private final long maxBudget;
+		
+		private final long fillRate;
+		
+		private final String maxBudgetHeaderValue;
+		
+		private final String fillRateHeaderValue;
+		
+		
+		HeaderValues(long maxBudget, long fillRate) {
+			this.maxBudget = maxBudget;
+			this.fillRate = fillRate;
+			maxBudgetHeaderValue = String.valueOf(maxBudget);
+			fillRateHeaderValue = String.valueOf(fillRate);
 		}
-		int cost = Optional.ofNullable(rateLimited).map(RateLimited::value).orElse(DEFAULT_CONSUMPTION);
-		return cost; // NOPMD
 	}
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * リクエスト毎にレートリミットを判断する {@link WebFilter} 実装クラス。
+ * 
+ * <p>This is the WebFlux counterpart of {@link RateLimitingInterceptor}. The cost of the request is resolved from
+ * {@link RateLimited} of the handler if {@link #setHandlerMapping(HandlerMapping) handlerMapping} is set, and the
+ * bucket name is set to the exchange attribute {@link RateLimitingInterceptor#BUCKET_ATTRIBUTE}.</p>
+ * 
+ * <p>The resolved handler is set to the exchange attribute {@link #HANDLER_ATTRIBUTE}. Register
+ * {@link ResolvedHandlerMapping} so that {@code DispatcherHandler} reuses it instead of looking up the handler
+ * again. {@link RateLimited} of the handler is resolved once per handler method.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class RateLimitingWebFilter implements WebFilter {
+	
+	/**
+	 * Name of the exchange attribute to which the handler resolved by {@link #setHandlerMapping(HandlerMapping)
+	 * handlerMapping} is set.
+	 */
+	public static final String HANDLER_ATTRIBUTE = RateLimitingWebFilter.class.getName() + ".HANDLER";
+	
+	private static final int DEFAULT_CONSUMPTION = 100;
+	
+	private final AsyncRateLimitService<ServerWebExchange> rateLimitService;
+	
+	@Getter
+	@Setter
+	private boolean responseHeader = true;
+	
+	@Getter
+	@Setter
+	private HandlerMapping handlerMapping;
+	
+	
+	/**
+	 * インスタンスを生成する。
+	 * 
+	 * @param rateLimitService {@link AsyncRateLimitService}
+	 */
+	public RateLimitingWebFilter(AsyncRateLimitService<ServerWebExchange> rateLimitService) {
+		this.rateLimitService = rateLimitService;
+	}
+	
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		if (rateLimitService == null || isRateLimitTarget(exchange) == false) {
+			return chain.filter(exchange);
+		}
+		return computeCost(exchange)
+			.flatMap(cost -> Mono.fromCompletionStage(() -> rateLimitService.consume(exchange, cost))
+				.flatMap(desc -> rateLimit(exchange, desc, cost)))
+			.then(Mono.defer(() -> chain.filter(exchange)));
+	}
+	
+	/**
+	 * Returns whether the request is the target of rate limiting.
+	 * 
+	 * @param exchange the exchange
+	 * @return {@code true} if the request is the target
+	 */
+	protected boolean isRateLimitTarget(ServerWebExchange exchange) {
+		return true;
+	}
+	
+	/**
+	 * Compute cost of request.
+	 * 
+	 * @param exchange the exchange
+	 * @return cost
+	 */
+	protected Mono<Integer> computeCost(ServerWebExchange exchange) {
+		if (handlerMapping == null) {
+			return Mono.just(DEFAULT_CONSUMPTION);
+		}
+		return handlerMapping.getHandler(exchange)
+			.map(handler -> {
+				exchange.getAttributes().put(HANDLER_ATTRIBUTE, handler);
+				HandlerRateLimit handlerRateLimit = HandlerRateLimit.of(handler);
+				if (handlerRateLimit.getBucket() != null) {
+					exchange.getAttributes().put(RateLimitingInterceptor.BUCKET_ATTRIBUTE, handlerRateLimit.getBucket());
+				}
+				return handlerRateLimit.getCost();
+			})
+			.defaultIfEmpty(DEFAULT_CONSUMPTION);
+	}
+	
+	private Mono<Void> rateLimit(ServerWebExchange exchange, RateLimitDescriptor desc, int cost) {
+		HttpHeaders headers = exchange.getResponse().getHeaders();
+		if (responseHeader) {
+			headers.set("RateLimit-Unit", desc.getLimitationUnitName());
+			headers.set("RateLimit-Cost", String.valueOf(cost));
+			headers.set("RateLimit-CurrentBudget", String.valueOf(desc.getCurrentBudget()));
+			headers.set("RateLimit-MaximumBudget", String.valueOf(desc.getMaxBudget()));
+			headers.set("RateLimit-FillRate", String.valueOf(desc.getFillRate()));
+		}
+		
+		if (desc.getCurrentBudget() < 0) {
+			long millisecsToWait = desc.computeWaitMillisecsToConsume(cost);
+			if (responseHeader) {
+				long secsToWait = Math.floorDiv(millisecsToWait, 1000L);
+				headers.set("Retry-After", String.valueOf(secsToWait));
+			}
+			return Mono.error(new HttpTooManyRequestsException(millisecsToWait));
+		}
+		return Mono.empty();
+	}
+}
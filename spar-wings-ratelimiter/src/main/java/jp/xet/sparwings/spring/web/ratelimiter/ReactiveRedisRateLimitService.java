@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+
+import jp.xet.baseunits.timeutil.Clock;
+
+/**
+ * {@link AsyncRateLimitService} implementation to store values in redis without blocking.
+ * 
+ * <p>Consumption is evaluated by the same script as {@link RedisRateLimitService}, so both services can share the
+ * limitation units in redis. {@link ReactiveRedisTemplate} requires a reactive connection factory (e.g. Lettuce).</p>
+ * 
+ * @param <K> type of the request key
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class ReactiveRedisRateLimitService<K> implements AsyncRateLimitService<K> {
+	
+	@Getter
+	private final ReactiveRedisTemplate<String, Long> redisTemplate;
+	
+	private final Function<K, RateLimitDescriptor> recoveryStrategy;
+	
+	/**
+	 * Rate limiting algorithm.
+	 */
+	@Getter
+	@Setter
+	private RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
+	
+	/**
+	 * Listener to be notified of the latency of redis calls, or {@code null}.
+	 */
+	@Getter
+	@Setter
+	private RateLimitListener listener;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param redisTemplate {@link ReactiveRedisTemplate}
+	 * @param recoveryStrategy strategy to compute {@link RateLimitDescriptor} of the request key,
+	 *     which returns {@code null} if limitation is not applied
+	 */
+	public ReactiveRedisRateLimitService(ReactiveRedisTemplate<String, Long> redisTemplate,
+			Function<K, RateLimitDescriptor> recoveryStrategy) {
+		this.redisTemplate = redisTemplate;
+		this.recoveryStrategy = recoveryStrategy;
+	}
+	
+	@Override
+	public CompletionStage<RateLimitDescriptor> consume(K key, long consumption) {
+		RateLimitDescriptor descriptor = recoveryStrategy.apply(key);
+		if (descriptor == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return execute(descriptor, consumption);
+	}
+	
+	@Override
+	public CompletionStage<RateLimitDescriptor> get(K key) {
+		RateLimitDescriptor descriptor = recoveryStrategy.apply(key);
+		if (descriptor == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return execute(descriptor, 0L);
+	}
+	
+	private CompletionStage<RateLimitDescriptor> execute(RateLimitDescriptor descriptor, long consumption) {
+		long now = Clock.now().toEpochMillisec();
+		String key = algorithm.getRedisKeyPrefix() + descriptor.getLimitationUnitName();
+		List<Long> args = Arrays.asList(descriptor.getFillRate(), descriptor.getMaxBudget(), now, consumption);
+		RateLimitListener currentListener = listener;
+		long start = System.nanoTime();
+		CompletableFuture<RateLimitDescriptor> future = redisTemplate
+			.execute(algorithm.getRedisScript(), Collections.singletonList(key), args)
+			.single()
+			.map(budget -> {
+				log.debug("Budget after current request (consumed {}): {}", consumption, budget);
+				return descriptor.setCurrentBudget(budget).setLastUpdateTime(now);
+			})
+			.toFuture();
+		if (currentListener == null) {
+			return future;
+		}
+		return future.whenComplete((result, e) -> {
+			currentListener.onRedisCall(System.nanoTime() - start, e == null);
+		});
+	}
+}
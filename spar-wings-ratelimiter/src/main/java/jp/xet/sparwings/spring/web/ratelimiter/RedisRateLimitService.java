@@ -15,21 +15,58 @@
  */
 package jp.xet.sparwings.spring.web.ratelimiter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import jakarta.servlet.http.HttpServletRequest;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 
 import jp.xet.baseunits.timeutil.Clock;
 
 /**
  * {@link RateLimitService} implementation to store values in redis.
  * 
+ * <p>Consumption is evaluated atomically by the server-side script of {@link RateLimitAlgorithm} in one round trip.
+ * The algorithm is {@link TokenBucketAlgorithm} by default.</p>
+ * 
+ * <p>If {@link #setFailOpen(boolean) failOpen} is enabled, each call to redis is bounded by
+ * {@link #setLatencyBudget(long) latencyBudget}. After {@link #setFailureThreshold(int) failureThreshold}
+ * consecutive failures or timeouts, the circuit opens and the budget is consumed from in-process buckets scaled to
+ * {@code 1/}{@link #setFallbackDivisor(int) fallbackDivisor} of the global budget, for
+ * {@link #setOpenDuration(long) openDuration}. Then one call probes redis, and if it succeeds the consumption during
+ * the outage is charged to redis asynchronously. Otherwise, failures of redis are thrown to the caller.</p>
+ * 
+ * <p>A timed out call is abandoned, but it keeps running until the redis client gives up, because blocking I/O is
+ * not interrupted. At most {@link #setMaxConcurrentCalls(int) maxConcurrentCalls} calls run at a time, and calls
+ * beyond it are treated as failures without waiting. Configure the command timeout of the redis client close to
+ * the latency budget, so that abandoned calls release their threads soon.</p>
+ * 
+ * <p>The in-process buckets and the consumption waiting to be charged to redis are bounded by
+ * {@link #setMaxFallbackBuckets(int) maxFallbackBuckets} limitation units. Consumption of limitation units beyond
+ * it is enforced by the in-process buckets, but not charged to redis after the outage.</p>
+ * 
  * @since 0.8
  * @author daisuke
  */
@@ -40,49 +77,170 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 	@Getter
 	private final RedisTemplate<String, Long> redisTemplate;
 	
+	/**
+	 * Rate limiting algorithm.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private RateLimitAlgorithm algorithm = new TokenBucketAlgorithm();
+	
+	/**
+	 * Whether to fall back to in-process buckets when redis is slow or unavailable.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private boolean failOpen;
+	
+	/**
+	 * Timeout of each call to redis in millisec, when {@link #failOpen} is enabled.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long latencyBudget = 5L;
+	
+	/**
+	 * Number of consecutive failures to open the circuit.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private int failureThreshold = 3;
+	
+	/**
+	 * Duration in millisec to keep the circuit open before probing redis.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long openDuration = 5000L;
+	
+	/**
+	 * Divisor of the budget of the in-process buckets, typically the number of nodes.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private int fallbackDivisor = 1;
+	
+	/**
+	 * Maximum number of concurrent calls to redis, when {@link #failOpen} is enabled.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private int maxConcurrentCalls = 64;
+	
+	/**
+	 * Executor to call redis with {@link #latencyBudget}. The number of its threads in use is bounded by
+	 * {@link #maxConcurrentCalls}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "rate-limit-redis");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Listener to be notified of the latency of redis calls, or {@code null}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private RateLimitListener listener;
+	
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	
+	private final AtomicBoolean probing = new AtomicBoolean();
+	
+	private final AtomicBoolean reconciling = new AtomicBoolean();
+	
+	private volatile Semaphore permits = new Semaphore(maxConcurrentCalls);
+	
+	private volatile long openUntil;
+	
+	private final RateLimitBucketMap fallbackBuckets = new RateLimitBucketMap();
+	
+	private final Map<String, Unreconciled> unreconciled = new ConcurrentHashMap<>();
+	
 	
 	@Override
-	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) { // NOPMD - nc
+	public RateLimitDescriptor consume(HttpServletRequest request, long consumption) {
 		RateLimitDescriptor descriptor = computeRateLimitRecovery(request);
 		if (descriptor == null) {
 			return null;
 		}
-		String limitationUnitName = descriptor.getLimitationUnitName();
-		long fillRate = descriptor.getFillRate();
-		long maxBudget = descriptor.getMaxBudget();
+		return consume(descriptor, consumption);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>All limitation units are evaluated atomically by one script call. In Redis Cluster, the keys of the
+	 * limitation units must be in the same hash slot (e.g. by hash tags in the limitation unit names).</p>
+	 */
+	@Override
+	public List<RateLimitDescriptor> consumeAll(HttpServletRequest request, long consumption) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
+		} else if (descriptors.size() == 1) {
+			return Collections.singletonList(consume(descriptors.get(0), consumption)); // same rule as multi script
+		}
 		long now = Clock.now().toEpochMillisec();
-		
-		String tKey = "ratelimit:t:" + limitationUnitName;
-		String cKey = "ratelimit:c:" + limitationUnitName;
-		
-		long delta = consumption;
-		Long ts = redisTemplate.opsForValue().getAndSet(tKey, now);
-		if (ts != null) {
-			long secSinceLastUpdate = now - ts;
-			log.debug("Time (sec) since last update = {}", secSinceLastUpdate);
-			delta -= secSinceLastUpdate * fillRate;
+		List<?> budgets = invoke(() -> evaluate(algorithm.getRedisMultiScript(), descriptors, now, consumption));
+		if (budgets == null) {
+			return fallback(descriptors, now, consumption, false);
 		}
-		Long carma = redisTemplate.opsForValue().increment(cKey, delta);
-		if (carma == null) {
-			throw new AssertionError("Unexpected condition. can not do in transaction");
+		boolean rejected = budgets.stream().anyMatch(budget -> ((Number) budget).longValue() < 0);
+		for (int i = 0; i < descriptors.size(); i++) {
+			long budget = ((Number) budgets.get(i)).longValue();
+			if (rejected && budget >= 0) {
+				budget += consumption; // not consumed
+			}
+			descriptors.get(i).setCurrentBudget(budget);
+			descriptors.get(i).setLastUpdateTime(now);
 		}
-		
-		if (carma < consumption) {
-			redisTemplate.opsForValue().set(cKey, consumption);
-			carma = consumption;
+		log.debug("Budgets after current request (consumed {}): {}", consumption, budgets);
+		return descriptors;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>All limitation units are charged atomically by one script call, with the same constraint on Redis Cluster
+	 * as {@link #consumeAll(HttpServletRequest, long)}.</p>
+	 */
+	@Override
+	public List<RateLimitDescriptor> chargeAll(HttpServletRequest request, long amount) {
+		List<RateLimitDescriptor> descriptors = computeRateLimitRecoveries(request);
+		if (descriptors.isEmpty()) {
+			return descriptors;
 		}
-		
-		log.info("Budget before current request (filled {}): {}",
-				ts == null ? "<unknown>" : (now - ts) * fillRate,
-				ts == null ? maxBudget : maxBudget - carma + consumption);
-		log.info("Budget after current request (consumed {}): {}", consumption, maxBudget - carma);
-		
-		long expire = carma / fillRate;
-		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
-		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
-		
-		descriptor.setCurrentBudget(maxBudget - carma);
-		return descriptor;
+		long now = Clock.now().toEpochMillisec();
+		List<?> budgets = invoke(() -> evaluate(algorithm.getRedisChargeScript(), descriptors, now, amount));
+		if (budgets == null) {
+			return fallback(descriptors, now, amount, true);
+		}
+		for (int i = 0; i < descriptors.size(); i++) {
+			descriptors.get(i).setCurrentBudget(((Number) budgets.get(i)).longValue());
+			descriptors.get(i).setLastUpdateTime(now);
+		}
+		log.debug("Budgets after charge {}: {}", amount, budgets);
+		return descriptors;
 	}
 	
 	@Override
@@ -91,32 +249,302 @@ public class RedisRateLimitService extends AbstractRateLimitService {
 		if (descriptor == null) {
 			return null;
 		}
-		String limitationUnitName = descriptor.getLimitationUnitName();
-		long fillRate = descriptor.getFillRate();
-		long maxBudget = descriptor.getMaxBudget();
+		long now = Clock.now().toEpochMillisec();
+		Long budget = invoke(() -> execute(descriptor, now, 0L));
+		if (budget == null) {
+			return fallback(Collections.singletonList(descriptor), now, 0L, false).get(0);
+		}
+		log.debug("Current budget: {}", budget);
 		
+		descriptor.setCurrentBudget(budget);
+		descriptor.setLastUpdateTime(now);
+		return descriptor;
+	}
+	
+	/**
+	 * Returns whether the circuit is open and the budget is consumed from the in-process buckets.
+	 * 
+	 * @return {@code true} if the circuit is open
+	 * @since 0.38
+	 */
+	public boolean isCircuitOpen() {
+		return consecutiveFailures.get() >= failureThreshold;
+	}
+	
+	/**
+	 * Set the maximum number of concurrent calls to redis, when {@link #failOpen} is enabled.
+	 * 
+	 * @param maxConcurrentCalls the maximum number of concurrent calls
+	 * @throws IllegalArgumentException if {@code maxConcurrentCalls} is not positive
+	 * @since 0.38
+	 */
+	public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+		if (maxConcurrentCalls <= 0) {
+			throw new IllegalArgumentException("maxConcurrentCalls must be positive: " + maxConcurrentCalls);
+		}
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		permits = new Semaphore(maxConcurrentCalls);
+	}
+	
+	/**
+	 * Returns the maximum number of limitation units tracked in-process while the circuit is open.
+	 * 
+	 * @return the maximum number of limitation units
+	 * @since 0.38
+	 */
+	public int getMaxFallbackBuckets() {
+		return fallbackBuckets.getMaxBuckets();
+	}
+	
+	/**
+	 * Set the maximum number of limitation units tracked in-process while the circuit is open.
+	 * 
+	 * @param maxFallbackBuckets the maximum number of limitation units
+	 * @throws IllegalArgumentException if {@code maxFallbackBuckets} is not positive
+	 * @since 0.38
+	 */
+	public void setMaxFallbackBuckets(int maxFallbackBuckets) {
+		if (maxFallbackBuckets <= 0) {
+			throw new IllegalArgumentException("maxFallbackBuckets must be positive: " + maxFallbackBuckets);
+		}
+		fallbackBuckets.setMaxBuckets(maxFallbackBuckets);
+	}
+	
+	private RateLimitDescriptor consume(RateLimitDescriptor descriptor, long consumption) {
 		long now = Clock.now().toEpochMillisec();
-		String tKey = "ratelimit:t:" + limitationUnitName;
-		String cKey = "ratelimit:c:" + limitationUnitName;
+		Long budget = invoke(() -> execute(descriptor, now, consumption));
+		if (budget == null) {
+			return fallback(Collections.singletonList(descriptor), now, consumption, false).get(0);
+		}
+		log.debug("Budget after current request (consumed {}): {}", consumption, budget);
 		
-		long delta = 0;
-		Long ts = redisTemplate.opsForValue().getAndSet(tKey, now);
-		if (ts != null) {
-			long msSinceLastUpdate = now - ts;
-			log.debug("Time (ms) since last update = {}", msSinceLastUpdate);
-			delta -= msSinceLastUpdate * fillRate;
+		descriptor.setCurrentBudget(budget);
+		descriptor.setLastUpdateTime(now);
+		return descriptor;
+	}
+	
+	/**
+	 * Call redis within the latency budget.
+	 * 
+	 * @return the result, or {@code null} to fall back to the in-process buckets
+	 */
+	private <T> T invoke(Supplier<T> call) {
+		if (failOpen == false) {
+			return timed(call);
+		}
+		long now = System.currentTimeMillis();
+		boolean probe = false;
+		if (isCircuitOpen()) {
+			if (now < openUntil || probing.compareAndSet(false, true) == false) {
+				return null;
+			}
+			probe = true;
+		}
+		Semaphore currentPermits = permits;
+		Future<T> future = null;
+		T result;
+		boolean recovered;
+		try {
+			if (currentPermits.tryAcquire() == false) {
+				throw new RejectedExecutionException("Too many concurrent calls to redis");
+			}
+			try {
+				future = CompletableFuture.supplyAsync(() -> {
+					try {
+						return timed(call);
+					} finally {
+						currentPermits.release();
+					}
+				}, executor);
+			} catch (RuntimeException e) {
+				currentPermits.release(); // rejected by the executor
+				throw e;
+			}
+			result = future.get(latencyBudget, TimeUnit.MILLISECONDS);
+			recovered = consecutiveFailures.getAndSet(0) >= failureThreshold;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (TimeoutException | ExecutionException | RuntimeException e) {
+			if (future != null) {
+				future.cancel(true);
+			}
+			if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+				openUntil = now + openDuration;
+				if (probe || consecutiveFailures.get() == failureThreshold) {
+					log.warn("Redis is unavailable, the circuit is open for {} ms", openDuration, e);
+				}
+			} else {
+				log.debug("Call to redis failed", e);
+			}
+			return null;
+		} finally {
+			if (probe) {
+				probing.set(false);
+			}
+		}
+		if (recovered) {
+			log.info("Redis recovered, the circuit is closed");
+			startReconcile(); // outside the try, so that it never turns the successful call into a failure
+		}
+		return result;
+	}
+	
+	private <T> T timed(Supplier<T> call) {
+		RateLimitListener currentListener = listener;
+		if (currentListener == null) {
+			return call.get();
+		}
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			T result = call.get();
+			succeeded = true;
+			return result;
+		} finally {
+			currentListener.onRedisCall(System.nanoTime() - start, succeeded);
+		}
+	}
+	
+	/**
+	 * Consume the budget from the in-process buckets by the same rule as redis, and record the consumption which
+	 * is actually consumed or charged to reconcile it later.
+	 */
+	private List<RateLimitDescriptor> fallback(List<RateLimitDescriptor> descriptors, long now, long consumption,
+			boolean charge) {
+		List<RateLimitDescriptor> scaled = new ArrayList<>(descriptors.size());
+		for (RateLimitDescriptor descriptor : descriptors) {
+			long fillRate = Math.max(1L, descriptor.getFillRate() / fallbackDivisor);
+			long maxBudget = Math.max(1L, descriptor.getMaxBudget() / fallbackDivisor);
+			scaled.add(new RateLimitDescriptor(descriptor.getLimitationUnitName(), fillRate, maxBudget, maxBudget, now));
+		}
+		List<RateLimitDescriptor> result;
+		if (consumption <= 0) {
+			result = new ArrayList<>(scaled.size());
+			for (RateLimitDescriptor descriptor : scaled) {
+				result.add(descriptor.setCurrentBudget(fallbackBuckets.get(algorithm, descriptor, now)));
+			}
+		} else if (charge) {
+			result = fallbackBuckets.chargeAll(algorithm, scaled, now, consumption);
+			descriptors.forEach(descriptor -> record(descriptor, consumption));
+		} else {
+			result = fallbackBuckets.consumeAll(algorithm, scaled, now, consumption);
+			boolean rejected = result.stream().anyMatch(descriptor -> descriptor.getCurrentBudget() < 0);
+			for (int i = 0; i < descriptors.size(); i++) {
+				// rejecting units are charged only by algorithms which charge rejected consumption
+				if (rejected == false || (result.get(i).getCurrentBudget() < 0 && chargesRejected(algorithm))) {
+					record(descriptors.get(i), consumption);
+				}
+			}
 		}
-		Long carma = redisTemplate.opsForValue().increment(cKey, delta);
-		if (carma == null) {
-			throw new AssertionError("Unexpected condition. can not do in transaction");
+		log.debug("Budgets in fallback buckets (consumed {}): {}", consumption, result);
+		return result;
+	}
+	
+	private void record(RateLimitDescriptor descriptor, long consumption) {
+		String name = descriptor.getLimitationUnitName();
+		if (unreconciled.size() < fallbackBuckets.getMaxBuckets() || unreconciled.containsKey(name)) {
+			unreconciled.merge(name, new Unreconciled(descriptor, consumption), Unreconciled::add);
+		} else {
+			log.debug("Consumption of {} is not reconciled: too many limitation units", name);
+		}
+	}
+	
+	private static boolean chargesRejected(RateLimitAlgorithm algorithm) {
+		long exhausted = algorithm.initialState(1L, 1L, 0L, 0L);
+		return algorithm.consume(exhausted, 0L, 1L, 1L, 1L) != exhausted;
+	}
+	
+	/**
+	 * Start to reconcile in a new thread, unless it is already running. The thread is not taken from
+	 * {@link #executor}, because each charge is called through it within the latency budget.
+	 */
+	private void startReconcile() {
+		if (reconciling.compareAndSet(false, true) == false) {
+			return;
+		}
+		Thread thread = new Thread(this::reconcile, "rate-limit-reconcile");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Charge the consumption during the outage to redis, and discard the in-process buckets.
+	 * 
+	 * <p>The consumption is charged by {@link RateLimitAlgorithm#getRedisChargeScript()}: {@link TokenBucketAlgorithm}
+	 * charges it in full as debt, and the other algorithms charge it up to the current budget, leaving the limitation
+	 * unit exhausted. Each charge is called within the latency budget and the limit of concurrent calls. When one of
+	 * them fails, the rest is kept until redis recovers again.</p>
+	 */
+	private void reconcile() {
+		try {
+			fallbackBuckets.clear();
+			long now = Clock.now().toEpochMillisec();
+			for (String name : unreconciled.keySet()) {
+				Unreconciled entry = unreconciled.remove(name);
+				if (entry == null) {
+					continue;
+				}
+				List<?> budgets = invoke(() -> evaluate(algorithm.getRedisChargeScript(),
+						Collections.singletonList(entry.descriptor), now, entry.consumption));
+				if (budgets == null) {
+					unreconciled.merge(name, entry, Unreconciled::add);
+					log.warn("Failed to reconcile consumption during the outage, retried after redis recovers");
+					return;
+				}
+			}
+		} finally {
+			reconciling.set(false);
+		}
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private List<?> evaluate(RedisScript<List> script, List<RateLimitDescriptor> descriptors, long now, long amount) {
+		List<String> keys = new ArrayList<>(descriptors.size());
+		Object[] args = new Object[descriptors.size() * 2 + 2];
+		args[0] = now;
+		args[1] = amount;
+		for (int i = 0; i < descriptors.size(); i++) {
+			RateLimitDescriptor descriptor = descriptors.get(i);
+			keys.add(algorithm.getRedisKeyPrefix() + descriptor.getLimitationUnitName());
+			args[i * 2 + 2] = descriptor.getFillRate();
+			args[i * 2 + 3] = descriptor.getMaxBudget();
 		}
+		List<?> result = redisTemplate.execute(script, keys, args);
+		if (result == null || result.size() != descriptors.size()) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		return result;
+	}
+	
+	private long execute(RateLimitDescriptor descriptor, long now, long consumption) {
+		String key = algorithm.getRedisKeyPrefix() + descriptor.getLimitationUnitName();
+		Long budget = redisTemplate.execute(algorithm.getRedisScript(), Collections.singletonList(key),
+				descriptor.getFillRate(), descriptor.getMaxBudget(), now, consumption);
+		if (budget == null) {
+			throw new AssertionError("Unexpected condition. can not do in pipeline or transaction");
+		}
+		return budget;
+	}
+	
+	
+	/**
+	 * Consumption from the in-process bucket which is not charged to redis yet.
+	 */
+	private static final class Unreconciled {
 		
-		long expire = carma / fillRate;
-		redisTemplate.expire(tKey, expire, TimeUnit.SECONDS);
-		redisTemplate.expire(cKey, expire, TimeUnit.SECONDS);
+		private final RateLimitDescriptor descriptor;
 		
-		descriptor.setCurrentBudget(maxBudget - carma);
-		log.info("Current budget: (filled {}) and {}", delta, descriptor.getCurrentBudget());
-		return descriptor;
+		private final long consumption;
+		
+		
+		Unreconciled(RateLimitDescriptor descriptor, long consumption) {
+			this.descriptor = descriptor;
+			this.consumption = consumption;
+		}
+		
+		Unreconciled add(Unreconciled other) {
+			return new Unreconciled(descriptor, consumption + other.consumption);
+		}
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+/**
+ * リクエストの優先度。
+ * 
+ * <p>{@link LoadSheddingPolicy} sheds lower priority requests first.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ * @see RateLimited#priority()
+ */
+public enum RequestPriority {
+	
+	/** Requests which must keep flowing, such as health checks */
+	CRITICAL,
+	
+	/** Requests which are important for users, such as authentication and checkout */
+	HIGH,
+	
+	/** Ordinary requests */
+	NORMAL,
+	
+	/** Requests which can be retried later, such as bulk exports */
+	LOW
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import org.springframework.core.Ordered;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link HandlerMapping} which returns the handler already resolved by {@link RateLimitingWebFilter}, so that
+ * {@code DispatcherHandler} does not look up the handler twice per request.
+ * 
+ * <p>This mapping takes precedence over the other mappings by default. Register it only if the handler mapping of
+ * {@link RateLimitingWebFilter} resolves the same handler as {@code DispatcherHandler} does, e.g. when all handlers
+ * are annotated controllers of {@code RequestMappingHandlerMapping}. Requests for which the filter resolved no
+ * handler fall through to the other mappings.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class ResolvedHandlerMapping implements HandlerMapping, Ordered {
+	
+	@Getter
+	@Setter
+	private int order = Ordered.HIGHEST_PRECEDENCE;
+	
+	
+	@Override
+	public Mono<Object> getHandler(ServerWebExchange exchange) {
+		return Mono.justOrEmpty(exchange.getAttributes().get(RateLimitingWebFilter.HANDLER_ATTRIBUTE));
+	}
+}
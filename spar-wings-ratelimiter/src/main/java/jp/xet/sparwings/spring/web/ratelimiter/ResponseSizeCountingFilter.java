@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Servlet filter to count the size of the response body, for
+ * {@link RateLimitingInterceptor#setBytesPerPoint(long) post-hoc charging}.
+ * 
+ * <p>The response body is not buffered: the bytes written to the output stream, or the characters written to the
+ * writer, are only counted. Without this filter, {@link RateLimitingInterceptor} falls back to the
+ * {@code Content-Length} header.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class ResponseSizeCountingFilter extends OncePerRequestFilter {
+	
+	private static final String COUNTER_ATTRIBUTE = ResponseSizeCountingFilter.class.getName() + ".COUNTER";
+	
+	
+	/**
+	 * Returns the size of the response body written so far.
+	 * 
+	 * @param request the request
+	 * @return the size in bytes, or {@code -1} if the request is not filtered by this filter
+	 */
+	public static long getResponseSize(HttpServletRequest request) {
+		Object counter = request.getAttribute(COUNTER_ATTRIBUTE);
+		return counter instanceof AtomicLong ? ((AtomicLong) counter).get() : -1L;
+	}
+	
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		AtomicLong counter = new AtomicLong();
+		request.setAttribute(COUNTER_ATTRIBUTE, counter);
+		filterChain.doFilter(request, new CountingResponse(response, counter));
+	}
+	
+	
+	private static final class CountingResponse extends HttpServletResponseWrapper {
+		
+		private final AtomicLong counter;
+		
+		private ServletOutputStream outputStream;
+		
+		private PrintWriter writer;
+		
+		
+		CountingResponse(HttpServletResponse response, AtomicLong counter) {
+			super(response);
+			this.counter = counter;
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new CountingOutputStream(super.getOutputStream(), counter);
+			}
+			return outputStream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new CountingWriter(super.getWriter(), counter));
+			}
+			return writer;
+		}
+	}
+	
+	private static final class CountingOutputStream extends ServletOutputStream {
+		
+		private final ServletOutputStream delegate;
+		
+		private final AtomicLong counter;
+		
+		
+		CountingOutputStream(ServletOutputStream delegate, AtomicLong counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			counter.incrementAndGet();
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			counter.addAndGet(len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+		
+		@Override
+		public boolean isReady() {
+			return delegate.isReady();
+		}
+		
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			delegate.setWriteListener(writeListener);
+		}
+	}
+	
+	/**
+	 * Writer to count characters, which approximate bytes without encoding them twice.
+	 */
+	private static final class CountingWriter extends Writer {
+		
+		private final Writer delegate;
+		
+		private final AtomicLong counter;
+		
+		
+		CountingWriter(Writer delegate, AtomicLong counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+		
+		@Override
+		public void write(int c) throws IOException {
+			delegate.write(c);
+			counter.incrementAndGet();
+		}
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			delegate.write(cbuf, off, len);
+			counter.addAndGet(len);
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			delegate.write(str, off, len);
+			counter.addAndGet(len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+import org.springframework.data.redis.core.script.RedisScript;
+
+/**
+ * Sliding window counter {@link RateLimitAlgorithm}.
+ * 
+ * <p>The length of the window is the time to fill the empty budget ({@code maxBudget / fillRate} millisec), and
+ * at most {@code maxBudget} points can be consumed within a window. The consumption in the sliding window is
+ * estimated by weighting the count of the previous fixed window by its overlap with the sliding window.
+ * Rejected requests are not charged and do not update the state.</p>
+ * 
+ * <p>In memory, the state packs the lower 16 bits of the window index and the counts of the previous and current
+ * windows (24 bits each), so {@code maxBudget} must be less than {@code 2^24}. This is validated once by
+ * {@link #initialState(long, long, long, long)} when a bucket is created. In redis, the window index and the counts
+ * are stored in a hash key without the limit.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class SlidingWindowAlgorithm implements RateLimitAlgorithm {
+	
+	/** Prefix of the redis key */
+	public static final String KEY_PREFIX = "ratelimit:w:";
+	
+	private static final RedisScript<Long> SCRIPT = RateLimitScripts.single("sliding-window.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> MULTI_SCRIPT = RateLimitScripts.multi("sliding-window.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> CHARGE_SCRIPT = RateLimitScripts.charge("sliding-window.lua");
+	
+	private static final int COUNT_BITS = 24;
+	
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	
+	private static final long TAG_MASK = 0xFFFFL;
+	
+	
+	@Override
+	public long initialState(long fillRate, long maxBudget, long currentBudget, long lastUpdateTime) {
+		if (maxBudget > COUNT_MASK) {
+			throw new IllegalArgumentException("maxBudget must be less than 2^24: " + maxBudget);
+		}
+		long window = computeWindow(fillRate, maxBudget);
+		long count = Math.min(COUNT_MASK, Math.max(0L, maxBudget - currentBudget));
+		return encode(lastUpdateTime / window, 0L, count);
+	}
+	
+	@Override
+	public long budget(long state, long now, long fillRate, long maxBudget) {
+		long window = computeWindow(fillRate, maxBudget);
+		long index = now / window;
+		long previous = previousCount(state, index);
+		long current = currentCount(state, index);
+		return maxBudget - estimate(previous, current, now - index * window, window);
+	}
+	
+	@Override
+	public long consume(long state, long now, long consumption, long fillRate, long maxBudget) {
+		long window = computeWindow(fillRate, maxBudget);
+		long index = now / window;
+		long previous = previousCount(state, index);
+		long current = currentCount(state, index);
+		if (estimate(previous, current, now - index * window, window) + consumption > maxBudget) {
+			return state;
+		}
+		return encode(index, previous, current + consumption);
+	}
+	
+	@Override
+	public long refund(long state, long now, long amount, long fillRate, long maxBudget) {
+		long index = now / computeWindow(fillRate, maxBudget);
+		long previous = previousCount(state, index);
+		long current = currentCount(state, index);
+		if (current > 0) {
+			return encode(index, previous, Math.max(0L, current - amount));
+		}
+		return encode(index, Math.max(0L, previous - amount), 0L);
+	}
+	
+	@Override
+	public long refilledAt(long state, long now, long fillRate, long maxBudget) {
+		// the count of a window is forgotten at the end of the next window
+		long window = computeWindow(fillRate, maxBudget);
+		long index = now / window;
+		if (currentCount(state, index) > 0) {
+			return (index + 2) * window;
+		} else if (previousCount(state, index) > 0) {
+			return (index + 1) * window;
+		}
+		return now;
+	}
+	
+	@Override
+	public RedisScript<Long> getRedisScript() {
+		return SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisMultiScript() {
+		return MULTI_SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisChargeScript() {
+		return CHARGE_SCRIPT;
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return KEY_PREFIX;
+	}
+	
+	private static long computeWindow(long fillRate, long maxBudget) {
+		return Math.max(1L, maxBudget / fillRate);
+	}
+	
+	private static long estimate(long previous, long current, long elapsed, long window) {
+		return previous * (window - elapsed) / window + current;
+	}
+	
+	private static long previousCount(long state, long index) {
+		long tag = state >>> (COUNT_BITS * 2);
+		if (tag == (index & TAG_MASK)) {
+			return (state >>> COUNT_BITS) & COUNT_MASK;
+		} else if (tag == ((index - 1) & TAG_MASK)) {
+			return state & COUNT_MASK;
+		}
+		return 0L;
+	}
+	
+	private static long currentCount(long state, long index) {
+		long tag = state >>> (COUNT_BITS * 2);
+		return tag == (index & TAG_MASK) ? state & COUNT_MASK : 0L;
+	}
+	
+	private static long encode(long index, long previous, long current) {
+		return (index & TAG_MASK) << (COUNT_BITS * 2) | previous << COUNT_BITS | current;
+	}
+}
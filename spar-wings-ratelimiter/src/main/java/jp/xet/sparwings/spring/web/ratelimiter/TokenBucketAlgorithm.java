@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import java.util.List;
+
+import org.springframework.data.redis.core.script.RedisScript;
+
+/**
+ * Token bucket {@link RateLimitAlgorithm}.
+ * 
+ * <p>The budget and the last update time are packed into the "virtual clock" of the bucket expressed in points
+ * ({@code lastUpdateTime * fillRate - currentBudget}). The budget at time {@code now} is
+ * {@code min(maxBudget, now * fillRate - state)}. Rejected requests are also charged, so the budget may be
+ * negative.</p>
+ * 
+ * <p>In redis, the last update time and the budget are stored in a hash key.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class TokenBucketAlgorithm implements RateLimitAlgorithm {
+	
+	/** Prefix of the redis key */
+	public static final String KEY_PREFIX = "ratelimit:b:";
+	
+	private static final RedisScript<Long> SCRIPT = RateLimitScripts.single("token-bucket.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> MULTI_SCRIPT = RateLimitScripts.multi("token-bucket.lua");
+	
+	@SuppressWarnings("rawtypes")
+	private static final RedisScript<List> CHARGE_SCRIPT = RateLimitScripts.charge("token-bucket.lua");
+	
+	
+	@Override
+	public long initialState(long fillRate, long maxBudget, long currentBudget, long lastUpdateTime) {
+		return lastUpdateTime * fillRate - currentBudget;
+	}
+	
+	@Override
+	public long budget(long state, long now, long fillRate, long maxBudget) {
+		return Math.min(maxBudget, now * fillRate - state);
+	}
+	
+	@Override
+	public long consume(long state, long now, long consumption, long fillRate, long maxBudget) {
+		return state + Math.max(0L, now * fillRate - state - maxBudget) + consumption;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * <p>The amount is charged in full, and the budget may be negative.</p>
+	 */
+	@Override
+	public long charge(long state, long now, long amount, long fillRate, long maxBudget) {
+		return consume(state, now, amount, fillRate, maxBudget);
+	}
+	
+	@Override
+	public long refund(long state, long now, long amount, long fillRate, long maxBudget) {
+		return state - amount;
+	}
+	
+	@Override
+	public RedisScript<Long> getRedisScript() {
+		return SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisMultiScript() {
+		return MULTI_SCRIPT;
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public RedisScript<List> getRedisChargeScript() {
+		return CHARGE_SCRIPT;
+	}
+	
+	@Override
+	public String getRedisKeyPrefix() {
+		return KEY_PREFIX;
+	}
+}
@@ -0,0 +1,23 @@
+
+-- Charge several limitation units regardless of their budgets, e.g. the cost known after the request.
+-- The amount is charged in full if the algorithm can represent debt, and up to the budget otherwise.
+--
+-- KEYS: keys of the limitation units
+-- ARGV[1]: current time in epoch millisec
+-- ARGV[2]: amount to charge
+-- ARGV[2i+1], ARGV[2i+2]: fill rate per millisec and maximum budget of KEYS[i]
+--
+-- returns the budgets after the charge
+local now = tonumber(ARGV[1])
+local amount = tonumber(ARGV[2])
+local budgets = {}
+for i, key in ipairs(KEYS) do
+	local fill_rate = tonumber(ARGV[i * 2 + 1])
+	local max_budget = tonumber(ARGV[i * 2 + 2])
+	local charged = amount
+	if not charge_in_full then
+		charged = math.min(amount, math.max(0, rate_limit(key, fill_rate, max_budget, now, 0, false)))
+	end
+	budgets[i] = rate_limit(key, fill_rate, max_budget, now, charged, charged > 0)
+end
+return budgets
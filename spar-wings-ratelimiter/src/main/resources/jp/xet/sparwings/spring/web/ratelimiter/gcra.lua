@@ -0,0 +1,20 @@
+-- GCRA (generic cell rate algorithm).
+--
+-- The state is a string key of the theoretical arrival time (TAT) expressed in points (epoch millisec * fill rate).
+-- When commit is true, the state is updated only if the budget after consumption is not negative.
+--
+-- returns the budget after consumption
+local function rate_limit(key, fill_rate, max_budget, now, consumption, commit)
+	local origin = now * fill_rate
+	local tat = math.max(tonumber(redis.call('GET', key) or origin), origin)
+	local budget = max_budget - (tat - origin) - consumption
+
+	if commit and budget >= 0 then
+		tat = tat + consumption
+		redis.call('SET', key, string.format('%.0f', tat), 'PX', math.max(1, math.ceil((tat - origin) / fill_rate)))
+	end
+	return budget
+end
+
+-- a committed consumption never exceeds the budget
+local charge_in_full = false
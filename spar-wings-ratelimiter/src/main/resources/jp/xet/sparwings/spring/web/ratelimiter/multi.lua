@@ -0,0 +1,30 @@
+
+-- Evaluate rate_limit of several limitation units atomically.
+-- The budgets are consumed only if all of the limitation units accept the consumption. Otherwise, only the
+-- limitation units which reject it are charged as single.lua does (e.g. the token bucket falls into debt).
+--
+-- KEYS: keys of the limitation units
+-- ARGV[1]: current time in epoch millisec
+-- ARGV[2]: consumption
+-- ARGV[2i+1], ARGV[2i+2]: fill rate per millisec and maximum budget of KEYS[i]
+--
+-- returns the budgets after consumption
+local now = tonumber(ARGV[1])
+local consumption = tonumber(ARGV[2])
+local budgets = {}
+local accepted = true
+for i, key in ipairs(KEYS) do
+	budgets[i] = rate_limit(key, tonumber(ARGV[i * 2 + 1]), tonumber(ARGV[i * 2 + 2]), now, consumption, false)
+	if budgets[i] < 0 then
+		accepted = false
+	end
+end
+
+if consumption > 0 then
+	for i, key in ipairs(KEYS) do
+		if accepted or budgets[i] < 0 then
+			rate_limit(key, tonumber(ARGV[i * 2 + 1]), tonumber(ARGV[i * 2 + 2]), now, consumption, true)
+		end
+	end
+end
+return budgets
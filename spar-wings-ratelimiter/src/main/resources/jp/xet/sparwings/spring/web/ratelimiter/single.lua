@@ -0,0 +1,12 @@
+
+-- Evaluate rate_limit of a limitation unit atomically.
+--
+-- KEYS[1]: key of the limitation unit
+-- ARGV[1]: fill rate per millisec
+-- ARGV[2]: maximum budget
+-- ARGV[3]: current time in epoch millisec
+-- ARGV[4]: consumption (0 to read the budget without update)
+--
+-- returns the budget after consumption
+local consumption = tonumber(ARGV[4])
+return rate_limit(KEYS[1], tonumber(ARGV[1]), tonumber(ARGV[2]), tonumber(ARGV[3]), consumption, consumption > 0)
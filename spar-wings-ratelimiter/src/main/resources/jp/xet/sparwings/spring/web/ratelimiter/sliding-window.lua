@@ -0,0 +1,35 @@
+-- Sliding window counter.
+--
+-- The state is a hash key ("w": index of the current window, "p": count of the previous window,
+-- "c": count of the current window). The length of the window is max_budget / fill_rate millisec.
+-- When commit is true, the state is updated only if the budget after consumption is not negative.
+--
+-- returns the budget after consumption
+local function rate_limit(key, fill_rate, max_budget, now, consumption, commit)
+	local window = math.max(1, math.floor(max_budget / fill_rate))
+	local index = math.floor(now / window)
+	local previous = 0
+	local current = 0
+	local state = redis.call('HMGET', key, 'w', 'p', 'c')
+	if state[1] and state[2] and state[3] then
+		local stored = tonumber(state[1])
+		if stored == index then
+			previous = tonumber(state[2])
+			current = tonumber(state[3])
+		elseif stored == index - 1 then
+			previous = tonumber(state[3])
+		end
+	end
+
+	local elapsed = now - index * window
+	local budget = max_budget - (math.floor(previous * (window - elapsed) / window) + current) - consumption
+
+	if commit and budget >= 0 then
+		redis.call('HSET', key, 'w', string.format('%.0f', index), 'p', previous, 'c', current + consumption)
+		redis.call('PEXPIRE', key, 2 * window)
+	end
+	return budget
+end
+
+-- a committed consumption never exceeds the budget
+local charge_in_full = false
@@ -0,0 +1,28 @@
+-- Refill the token bucket and lease a part of the budget atomically.
+--
+-- KEYS[1]: hash key of the bucket ("t": last update time, "b": budget at the last update time)
+-- ARGV[1]: fill rate per millisec
+-- ARGV[2]: maximum budget
+-- ARGV[3]: current time in epoch millisec
+-- ARGV[4]: requested budget
+--
+-- returns {granted budget, budget after lease}
+local key = KEYS[1]
+local fill_rate = tonumber(ARGV[1])
+local max_budget = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+local budget = max_budget
+local state = redis.call('HMGET', key, 't', 'b')
+if state[1] and state[2] then
+	budget = math.min(max_budget, tonumber(state[2]) + (now - tonumber(state[1])) * fill_rate)
+end
+
+local granted = math.max(0, math.min(requested, budget))
+if granted > 0 then
+	budget = budget - granted
+	redis.call('HSET', key, 't', now, 'b', budget)
+	redis.call('PEXPIRE', key, math.max(1, math.ceil((max_budget - budget) / fill_rate)))
+end
+return {granted, budget}
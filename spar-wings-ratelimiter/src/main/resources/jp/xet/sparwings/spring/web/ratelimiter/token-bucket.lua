@@ -0,0 +1,24 @@
+-- Token bucket.
+--
+-- The state is a hash key ("t": last update time, "b": budget at the last update time).
+-- When commit is true, the state is updated even if the budget after consumption is negative.
+--
+-- returns the budget after consumption
+local function rate_limit(key, fill_rate, max_budget, now, consumption, commit)
+	local budget = max_budget
+	local state = redis.call('HMGET', key, 't', 'b')
+	if state[1] and state[2] then
+		budget = math.min(max_budget, tonumber(state[2]) + (now - tonumber(state[1])) * fill_rate)
+	end
+	budget = budget - consumption
+
+	if commit then
+		redis.call('HSET', key, 't', now, 'b', budget)
+		-- the bucket is equivalent to a new one after it is refilled to the maximum budget
+		redis.call('PEXPIRE', key, math.max(1, math.ceil((max_budget - budget) / fill_rate)))
+	end
+	return budget
+end
+
+-- a committed consumption may exceed the budget
+local charge_in_full = true
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link AdaptiveConcurrencyLimit}.
+ */
+public class AdaptiveConcurrencyLimitTest {
+	
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	
+	@Test
+	public void rejectOverLimit() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(2, 1, 10);
+		// exercise
+		boolean first = sut.tryAcquire();
+		boolean second = sut.tryAcquire();
+		boolean third = sut.tryAcquire();
+		// verify
+		assertThat(first, is(true));
+		assertThat(second, is(true));
+		assertThat(third, is(false));
+		assertThat(sut.getInFlight(), is(2));
+	}
+	
+	@Test
+	public void lowPercentageUsesPartOfLimit() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(10, 1, 100);
+		// exercise
+		int acquired = 0;
+		while (sut.tryAcquire(60)) {
+			acquired++;
+		}
+		// verify
+		assertThat(acquired, is(6));
+		assertThat(sut.tryAcquire(), is(true));
+	}
+	
+	@Test
+	public void lowPercentageAcquiresAtLeastOnePermit() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(1, 1, 100);
+		// exercise
+		boolean actual = sut.tryAcquire(60);
+		// verify
+		assertThat(actual, is(true));
+		assertThat(sut.tryAcquire(60), is(false));
+	}
+	
+	@Test
+	public void releaseGivesPermitBack() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(1, 1, 10);
+		sut.tryAcquire();
+		// exercise
+		sut.release(FAST);
+		// verify
+		assertThat(sut.getInFlight(), is(0));
+		assertThat(sut.tryAcquire(), is(true));
+	}
+	
+	@Test
+	public void limitGrowsWhileLatencyIsStable() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(10, 1, 100);
+		saturate(sut);
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.release(FAST);
+			saturate(sut);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(greaterThan(10)));
+	}
+	
+	@Test
+	public void limitShrinksWhenLatencyRises() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(10, 1, 100);
+		saturate(sut);
+		sut.release(FAST);
+		saturate(sut);
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.release(SLOW);
+			saturate(sut);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(lessThan(10)));
+		assertThat(sut.getInFlight(), is(sut.getLimit()));
+	}
+	
+	@Test
+	public void limitDoesNotGrowWhileIdle() {
+		// setup
+		AdaptiveConcurrencyLimit sut = new AdaptiveConcurrencyLimit(10, 1, 100);
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.tryAcquire();
+			sut.release(FAST);
+		}
+		// verify
+		assertThat(sut.getLimit(), is(10));
+	}
+	
+	@Test
+	public void rejectInvalidLimits() {
+		// exercise & verify
+		assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyLimit(1, 0, 10));
+		assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyLimit(10, 20, 10));
+		assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyLimit(1, 2, 10));
+		assertThrows(IllegalArgumentException.class, () -> new AdaptiveConcurrencyLimit(11, 1, 10));
+	}
+	
+	private static void saturate(AdaptiveConcurrencyLimit sut) {
+		while (sut.tryAcquire()) {
+			// acquire all permits
+		}
+	}
+}
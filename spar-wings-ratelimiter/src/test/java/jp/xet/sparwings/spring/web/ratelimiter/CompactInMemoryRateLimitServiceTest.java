@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Test for {@link CompactInMemoryRateLimitService}.
+ */
+@Slf4j
+@ExtendWith(MockitoExtension.class)
+public class CompactInMemoryRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	CompactInMemoryRateLimitService sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new CompactInMemoryRateLimitService(16);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L)
+			.setCurrentBudget(1000L));
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+		reset(request);
+	}
+	
+	@Test
+	public void consume100() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getBucketCount(), is(1L));
+	}
+	
+	@Test
+	public void consume100_recover20_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(720L));
+		assertThat(sut.get(request).getCurrentBudget(), is(720L));
+	}
+	
+	@Test
+	public void consume100_recoverAll_expire() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1001L)));
+		// exercise
+		sut.expireBuckets();
+		// verify
+		assertThat(sut.getBucketCount(), is(0L));
+		assertThat(sut.getExpiredBucketCount(), is(1L));
+		assertThat(sut.getEvictedBucketCount(), is(0L));
+	}
+	
+	@Test
+	public void consume3000_expireAfterDebtIsRecovered() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 3000); // refilled at 1500
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1001L)));
+		sut.expireBuckets();
+		assertThat(sut.getBucketCount(), is(1L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1500L)));
+		// exercise
+		sut.expireBuckets();
+		// verify
+		assertThat(sut.getBucketCount(), is(0L));
+		assertThat(sut.getExpiredBucketCount(), is(1L));
+	}
+	
+	@Test
+	public void slidingWindow_consume100_expireAfterNextWindow() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm()); // window is 500
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(100L)));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(999L)));
+		sut.expireBuckets();
+		assertThat(sut.getBucketCount(), is(1L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(1000L)));
+		// exercise
+		sut.expireBuckets();
+		// verify
+		assertThat(sut.getBucketCount(), is(0L));
+	}
+	
+	@Test
+	public void consume100_17units_evict() {
+		// setup
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		for (int i = 0; i < 16; i++) {
+			when(request.getRemoteAddr()).thenReturn("192.0.2." + i);
+			sut.consume(request, 100);
+		}
+		when(request.getRemoteAddr()).thenReturn("192.0.2.16");
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getBucketCount(), is(16L));
+		assertThat(sut.getEvictedBucketCount(), is(1L));
+	}
+	
+	@Test
+	public void gcra_consume100_consume1000_consume100() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		RateLimitDescriptor rejected = sut.consume(request, 1000);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(800L)); // rejected request is not charged
+	}
+	
+	@Test
+	public void consumeAll100_consumeAll100_rejectedByTenant() {
+		// setup
+		sut.setRecoveryStrategies(req -> Arrays.asList(
+				new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L),
+				new RateLimitDescriptor("tenant1", 2, 150L).setCurrentBudget(150L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		List<RateLimitDescriptor> accepted = sut.consumeAll(request, 100);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(request, 100);
+		// verify
+		assertThat(accepted.get(0).getCurrentBudget(), is(900L));
+		assertThat(accepted.get(1).getCurrentBudget(), is(50L));
+		assertThat(actual.get(0).getCurrentBudget(), is(900L)); // refunded
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		List<RateLimitDescriptor> after = sut.consumeAll(request, 0);
+		assertThat(after.get(0).getCurrentBudget(), is(900L)); // refunded
+		assertThat(after.get(1).getCurrentBudget(), is(-50L)); // charged as if it were the only limitation unit
+	}
+	
+	@Test
+	public void consume10_50threads() throws InterruptedException {
+		// setup
+		int threadCount = 50;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(threadCount);
+		ExecutorService ex = Executors.newFixedThreadPool(threadCount);
+		long consume = 10;
+		for (int i = 0; i < threadCount; i++) {
+			ex.submit(() -> {
+				try {
+					startLatch.await();
+				} catch (InterruptedException e) {
+					log.error("error", e);
+				}
+				sut.consume(request, consume);
+				endLatch.countDown();
+			});
+		}
+		// exercise
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		startLatch.countDown();
+		endLatch.await();
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(500L));
+		assertThat(sut.getBucketCount(), is(1L));
+	}
+}
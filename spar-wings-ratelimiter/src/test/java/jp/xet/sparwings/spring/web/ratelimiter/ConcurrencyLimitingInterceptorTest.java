@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.web.method.HandlerMethod;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.xet.sparwings.spring.web.httpexceptions.HttpServiceUnavailableException;
+
+/**
+ * Test for {@link ConcurrencyLimitingInterceptor}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class ConcurrencyLimitingInterceptorTest {
+	
+	@Mock
+	HttpServletResponse response;
+	
+	ConcurrencyLimitingInterceptor sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new ConcurrencyLimitingInterceptor();
+	}
+	
+	static HttpServletRequest newRequest() {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		Map<String, Object> attributes = new HashMap<>();
+		lenient().doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+			.when(request).setAttribute(anyString(), any());
+		lenient().doAnswer(invocation -> attributes.get(invocation.getArgument(0)))
+			.when(request).getAttribute(anyString());
+		lenient().doAnswer(invocation -> attributes.remove(invocation.getArgument(0)))
+			.when(request).removeAttribute(anyString());
+		return request;
+	}
+	
+	@Test
+	public void rejectOverLimitAndReleaseAfterCompletion() throws Exception {
+		// setup
+		HandlerMethod handler = new HandlerMethod(new LimitedController(), "get");
+		HttpServletRequest first = newRequest();
+		HttpServletRequest second = newRequest();
+		sut.preHandle(first, response, handler);
+		// exercise
+		assertThrows(HttpServiceUnavailableException.class, () -> sut.preHandle(second, response, handler));
+		sut.afterCompletion(first, response, handler, null);
+		// verify
+		assertThat(sut.getLimit(handler).getInFlight(), is(0));
+		assertThat(sut.preHandle(second, response, handler), is(true));
+		assertThat(sut.getLimit(handler).getInFlight(), is(1));
+	}
+	
+	@Test
+	public void asyncDispatchKeepsPermit() throws Exception {
+		// setup
+		HandlerMethod handler = new HandlerMethod(new LimitedController(), "get");
+		HttpServletRequest request = newRequest();
+		sut.preHandle(request, response, handler);
+		// exercise
+		boolean actual = sut.preHandle(request, response, handler); // async dispatch
+		// verify
+		assertThat(actual, is(true));
+		assertThat(sut.getLimit(handler).getInFlight(), is(1));
+		sut.afterCompletion(request, response, handler, null);
+		sut.afterCompletion(request, response, handler, null); // released only once
+		assertThat(sut.getLimit(handler).getInFlight(), is(0));
+	}
+	
+	@Test
+	public void unannotatedUsesDefaultLimit() throws Exception {
+		// setup
+		HandlerMethod handler = new HandlerMethod(new HandlerRateLimitTest.PlainController(), "get");
+		// exercise
+		AdaptiveConcurrencyLimit unlimited = sut.getLimit(handler);
+		AdaptiveConcurrencyLimit defaultLimit = new AdaptiveConcurrencyLimit(1, 1, 1);
+		sut.setDefaultLimit(defaultLimit);
+		// verify
+		assertThat(unlimited, is(nullValue()));
+		assertThat(sut.getLimit(handler), is(sameInstance(defaultLimit)));
+		assertThat(sut.getLimit(new Object()), is(sameInstance(defaultLimit)));
+	}
+	
+	@Test
+	public void limitPerBeanType() throws Exception {
+		// setup
+		ProxyFactory factory = new ProxyFactory(new LimitedController());
+		factory.setProxyTargetClass(true);
+		// exercise
+		AdaptiveConcurrencyLimit base = sut.getLimit(new HandlerMethod(new LimitedController(), "get"));
+		AdaptiveConcurrencyLimit sub = sut.getLimit(new HandlerMethod(new SubLimitedController(), "get"));
+		AdaptiveConcurrencyLimit proxy = sut.getLimit(new HandlerMethod(factory.getProxy(), "get"));
+		// verify
+		assertThat(sub, is(not(sameInstance(base))));
+		assertThat(proxy, is(sameInstance(base)));
+	}
+	
+	@Test
+	public void limitPerGroup() throws Exception {
+		// exercise
+		AdaptiveConcurrencyLimit first = sut.getLimit(new HandlerMethod(new LimitedController(), "grouped"));
+		AdaptiveConcurrencyLimit second = sut.getLimit(new HandlerMethod(new SubLimitedController(), "grouped"));
+		// verify
+		assertThat(second, is(sameInstance(first)));
+	}
+	
+	@Test
+	public void shedLowPriorityButAdmitCritical() throws Exception {
+		// setup
+		sut.setSheddingPolicy(new LoadSheddingPolicy()); // LOW uses 60%, CRITICAL uses 100%
+		sut.setDefaultLimit(new AdaptiveConcurrencyLimit(10, 10, 10));
+		HandlerMethod low = new HandlerMethod(new RateLimitingInterceptorTest.PriorityController(), "low");
+		HandlerMethod critical = new HandlerMethod(new RateLimitingInterceptorTest.PriorityController(), "critical");
+		for (int i = 0; i < 6; i++) {
+			sut.preHandle(newRequest(), response, low);
+		}
+		// exercise
+		assertThrows(HttpServiceUnavailableException.class, () -> sut.preHandle(newRequest(), response, low));
+		for (int i = 0; i < 4; i++) {
+			sut.preHandle(newRequest(), response, critical);
+		}
+		// verify
+		assertThat(sut.getDefaultLimit().getInFlight(), is(10));
+		assertThrows(HttpServiceUnavailableException.class, () -> sut.preHandle(newRequest(), response, critical));
+	}
+	
+	
+	public static class LimitedController {
+		
+		@ConcurrencyLimited(initialLimit = 1, maxLimit = 1)
+		public void get() {
+			// nothing to do
+		}
+		
+		@ConcurrencyLimited("group")
+		public void grouped() {
+			// nothing to do
+		}
+	}
+	
+	public static class SubLimitedController extends LimitedController {
+	}
+}
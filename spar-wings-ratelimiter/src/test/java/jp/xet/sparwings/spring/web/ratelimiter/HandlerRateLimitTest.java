@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.web.method.HandlerMethod;
+
+/**
+ * Test for {@link HandlerRateLimit}.
+ */
+public class HandlerRateLimitTest {
+	
+	@Test
+	public void notHandlerMethod() {
+		// exercise
+		HandlerRateLimit actual = HandlerRateLimit.of(new Object());
+		// verify
+		assertThat(actual.getCost(), is(100));
+		assertThat(actual.getBucket(), is(nullValue()));
+		assertThat(actual.getPriority(), is(RequestPriority.NORMAL));
+	}
+	
+	@Test
+	public void notAnnotated() throws Exception {
+		// exercise
+		HandlerRateLimit actual = HandlerRateLimit.of(new HandlerMethod(new PlainController(), "get"));
+		// verify
+		assertThat(actual.getCost(), is(100));
+		assertThat(actual.getBucket(), is(nullValue()));
+	}
+	
+	@Test
+	public void typeLevel() throws Exception {
+		// exercise
+		HandlerRateLimit actual = HandlerRateLimit.of(new HandlerMethod(new TypeLevelController(), "get"));
+		// verify
+		assertThat(actual.getCost(), is(200));
+		assertThat(actual.getCostHeaderValue(), is("200"));
+		assertThat(actual.getBucket(), is("type"));
+		assertThat(actual.getPriority(), is(RequestPriority.LOW));
+	}
+	
+	@Test
+	public void methodLevelOverridesTypeLevel() throws Exception {
+		// exercise
+		HandlerRateLimit actual = HandlerRateLimit.of(new HandlerMethod(new TypeLevelController(), "heavy"));
+		// verify
+		assertThat(actual.getCost(), is(500));
+		assertThat(actual.getBucket(), is("heavy"));
+		assertThat(actual.getPriority(), is(RequestPriority.NORMAL));
+	}
+	
+	@Test
+	public void inherited() throws Exception {
+		// exercise
+		HandlerRateLimit typeLevel = HandlerRateLimit.of(new HandlerMethod(new SubController(), "get"));
+		HandlerRateLimit overridden = HandlerRateLimit.of(new HandlerMethod(new SubController(), "heavy"));
+		// verify
+		assertThat(typeLevel.getCost(), is(200));
+		assertThat(overridden.getCost(), is(500));
+	}
+	
+	@Test
+	public void proxied() throws Exception {
+		// setup
+		ProxyFactory factory = new ProxyFactory(new TypeLevelController());
+		factory.setProxyTargetClass(true);
+		Object proxy = factory.getProxy();
+		// exercise
+		HandlerRateLimit typeLevel = HandlerRateLimit.of(new HandlerMethod(proxy, "get"));
+		HandlerRateLimit methodLevel = HandlerRateLimit.of(new HandlerMethod(proxy, "heavy"));
+		// verify
+		assertThat(proxy.getClass(), is(not(TypeLevelController.class)));
+		assertThat(typeLevel.getCost(), is(200));
+		assertThat(methodLevel.getCost(), is(500));
+	}
+	
+	@Test
+	public void cached() throws Exception {
+		// setup
+		HandlerRateLimit first = HandlerRateLimit.of(new HandlerMethod(new TypeLevelController(), "heavy"));
+		// exercise
+		HandlerRateLimit actual = HandlerRateLimit.of(new HandlerMethod(new TypeLevelController(), "heavy"));
+		// verify
+		assertThat(actual, is(sameInstance(first)));
+	}
+	
+	
+	public static class PlainController {
+		
+		public void get() {
+			// nothing to do
+		}
+	}
+	
+	@RateLimited(value = 200, bucket = "type", priority = RequestPriority.LOW)
+	public static class TypeLevelController {
+		
+		public void get() {
+			// nothing to do
+		}
+		
+		@RateLimited(value = 500, bucket = "heavy")
+		public void heavy() {
+			// nothing to do
+		}
+	}
+	
+	public static class SubController extends TypeLevelController {
+		
+		@Override
+		public void heavy() {
+			// nothing to do
+		}
+	}
+}
@@ -20,6 +20,9 @@ import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -116,6 +119,134 @@ public class InMemoryRateLimitServiceTest {
 		assertThat(actual.getCurrentBudget(), is(800L));
 	}
 	
+	@Test
+	public void consume100_consume200_previousDescriptorIsNotUpdated() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		RateLimitDescriptor previous = sut.consume(request, 100);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(previous.getCurrentBudget(), is(900L));
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consume100_recover100_expire() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(50L))); // recover 100
+		// exercise
+		sut.expireBuckets();
+		// verify
+		assertThat(sut.getBucketCount(), is(0L));
+		assertThat(sut.getExpiredBucketCount(), is(1L));
+		assertThat(sut.getEvictedBucketCount(), is(0L));
+	}
+	
+	@Test
+	public void consume100_11units_evict() {
+		// setup
+		List<Runnable> sweeps = new ArrayList<>();
+		sut.setMaxBuckets(10);
+		sut.setSweepExecutor(sweeps::add);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		for (int i = 0; i < 10; i++) {
+			when(request.getRemoteAddr()).thenReturn("192.0.2." + i);
+			sut.consume(request, 100);
+		}
+		when(request.getRemoteAddr()).thenReturn("192.0.2.10");
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.getBucketCount(), is(11L)); // not swept on the request thread
+		assertThat(sweeps.size(), is(1));
+		sweeps.get(0).run();
+		assertThat(sut.getBucketCount(), is(9L));
+		assertThat(sut.getExpiredBucketCount(), is(0L));
+		assertThat(sut.getEvictedBucketCount(), is(2L));
+	}
+	
+	@Test
+	public void consume100_11units_evictFullestButNotInserted() {
+		// setup
+		sut.setMaxBuckets(10);
+		sut.setSweepExecutor(Runnable::run);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		when(request.getRemoteAddr()).thenReturn("192.0.2.0");
+		sut.consume(request, 1500); // throttled
+		for (int i = 1; i < 10; i++) {
+			when(request.getRemoteAddr()).thenReturn("192.0.2." + i);
+			sut.consume(request, 100);
+		}
+		when(request.getRemoteAddr()).thenReturn("192.0.2.10");
+		// exercise
+		RateLimitDescriptor inserted = sut.consume(request, 100); // full while sweeping
+		when(request.getRemoteAddr()).thenReturn("192.0.2.0");
+		RateLimitDescriptor throttled = sut.get(request);
+		// verify
+		assertThat(sut.getEvictedBucketCount(), is(2L));
+		assertThat(sut.getBucketCount(), is(9L));
+		assertThat(inserted.getCurrentBudget(), is(900L));
+		assertThat(throttled.getCurrentBudget(), is(-500L)); // debt is kept
+	}
+	
+	@Test
+	public void gcra_consume100_consume1000_consume100() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		RateLimitDescriptor rejected = sut.consume(request, 1000);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(800L)); // rejected request is not charged
+	}
+	
+	@Test
+	public void slidingWindow_consume600_consume500_slide250_consume100() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm()); // window = 500ms
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 600);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(250L)));
+		RateLimitDescriptor rejected = sut.consume(request, 500);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(750L))); // previous window weighted by 1/2
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(600L));
+	}
+	
+	@Test
+	public void consumeAll100_consumeAll100_rejectedByTenant() {
+		// setup
+		sut.setRecoveryStrategies(req -> Arrays.asList(
+				new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L),
+				new RateLimitDescriptor("tenant1", 2, 150L).setCurrentBudget(150L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		List<RateLimitDescriptor> accepted = sut.consumeAll(request, 100);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(request, 100);
+		// verify
+		assertThat(accepted.get(0).getCurrentBudget(), is(900L));
+		assertThat(accepted.get(1).getCurrentBudget(), is(50L));
+		assertThat(actual.get(0).getCurrentBudget(), is(900L)); // refunded
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		List<RateLimitDescriptor> after = sut.consumeAll(request, 0);
+		assertThat(after.get(0).getCurrentBudget(), is(900L)); // refunded
+		assertThat(after.get(1).getCurrentBudget(), is(-50L)); // charged as if it were the only limitation unit
+	}
+	
 	@Test
 	public void consume10_50threads() throws InterruptedException {
 		// setup
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link LeasingRateLimitService}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class LeasingRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	RateLimitListener listener;
+	
+	LeasingRateLimitService sut;
+	
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration("localhost", 6379);
+		configuration.setDatabase(5);
+		JedisConnectionFactory jedisConnectionFactory = new JedisConnectionFactory(configuration);
+		jedisConnectionFactory.afterPropertiesSet();
+		RedisTemplate<String, Long> redisTemplate = new RedisTemplate<>();
+		redisTemplate.setKeySerializer(new StringRedisSerializer());
+		redisTemplate.setValueSerializer(new GenericToStringSerializer<>(Long.class));
+		redisTemplate.setConnectionFactory(jedisConnectionFactory);
+		redisTemplate.afterPropertiesSet();
+		
+		sut = new LeasingRateLimitService(redisTemplate);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000));
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+		sut.getRedisTemplate().execute((RedisCallback<Boolean>) connection -> {
+			connection.flushDb();
+			return true;
+		});
+	}
+	
+	@Test
+	public void consume100() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+	}
+	
+	@Test
+	public void consume100_consume200() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 200);
+		// verify
+		assertThat(actual.getMaxBudget(), is(1000L));
+		assertThat(actual.getFillRate(), is(2L));
+		assertThat(actual.getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consume100_sharedBucketIsConsumedByLease() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		RedisRateLimitService redisRateLimitService = new RedisRateLimitService(sut.getRedisTemplate());
+		redisRateLimitService.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000));
+		// exercise
+		sut.consume(request, 100);
+		// verify
+		RateLimitDescriptor actual = redisRateLimitService.get(request);
+		assertThat(actual.getCurrentBudget(), is(800L)); // leased 100 + 100
+	}
+	
+	@Test
+	public void consume100_notifyListener() {
+		// setup
+		sut.setListener(listener);
+		// exercise
+		sut.consume(request, 100); // leases synchronously
+		// verify
+		verify(listener).onRedisCall(anyLong(), eq(true));
+	}
+	
+	@Test
+	public void consume1100_rejected() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 1100);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(-100L));
+	}
+	
+	@Test
+	public void consume1100_burstWhileExhausted_isNotCharged() {
+		// setup
+		ExecutorService rejecting = Executors.newSingleThreadExecutor();
+		rejecting.shutdown();
+		sut.setExecutor(rejecting); // no asynchronous lease
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 1100); // leased 1000, shared bucket is exhausted until 100
+		// exercise
+		for (int i = 0; i < 5; i++) {
+			assertThat(sut.consume(request, 1100).getCurrentBudget(), is(-100L));
+		}
+		// verify
+		assertThat(sut.get(request).getCurrentBudget(), is(1000L)); // rejected requests are refunded
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(100L)));
+		assertThat(sut.consume(request, 1000).getCurrentBudget(), is(0L)); // no debt to lease
+	}
+	
+	@Test
+	public void consume160_rejectedLeaseIsRequestedAgain() throws Exception {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		RedisRateLimitService redisRateLimitService = new RedisRateLimitService(sut.getRedisTemplate());
+		redisRateLimitService.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000));
+		ExecutorService rejecting = Executors.newSingleThreadExecutor();
+		rejecting.shutdown();
+		sut.setExecutor(rejecting);
+		sut.consume(request, 100); // leased 100 + 100
+		sut.consume(request, 60); // lease is rejected
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		sut.setExecutor(executor);
+		// exercise
+		sut.consume(request, 0);
+		// verify
+		executor.shutdown();
+		assertThat(executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+		assertThat(redisRateLimitService.get(request).getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consume_idleLeaseIsExpiredByLaterConsumption() throws Exception {
+		// setup
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		sut.setExecutor(executor);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+		sut.consume(request, 100); // leased 100 + 100
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(60001L)));
+		when(request.getRemoteAddr()).thenReturn("192.0.2.2");
+		// exercise
+		sut.consume(request, 100);
+		// verify
+		executor.shutdown();
+		assertThat(executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+		when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+		assertThat(sut.get(request).getCurrentBudget(), is(1000L)); // local bucket is discarded
+	}
+}
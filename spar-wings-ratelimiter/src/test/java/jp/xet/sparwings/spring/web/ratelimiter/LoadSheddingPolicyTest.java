@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link LoadSheddingPolicy}.
+ */
+public class LoadSheddingPolicyTest {
+	
+	LoadSheddingPolicy sut = new LoadSheddingPolicy();
+	
+	
+	@Test
+	public void lowerPriorityReservesMoreBudget() {
+		// setup
+		RateLimitDescriptor descriptor = new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(200L);
+		// exercise
+		long critical = sut.computeReservedBudget(RequestPriority.CRITICAL, descriptor);
+		long normal = sut.computeReservedBudget(RequestPriority.NORMAL, descriptor);
+		long low = sut.computeReservedBudget(RequestPriority.LOW, descriptor);
+		// verify
+		assertThat(critical, is(0L));
+		assertThat(normal, is(100L));
+		assertThat(low, is(300L));
+	}
+	
+	@Test
+	public void configurePercentage() {
+		// exercise
+		sut.setBudgetReservePercentage(RequestPriority.NORMAL, 0);
+		sut.setConcurrencyPercentage(RequestPriority.LOW, 50);
+		// verify
+		assertThat(sut.getBudgetReservePercentage(RequestPriority.NORMAL), is(0));
+		assertThat(sut.getConcurrencyPercentage(RequestPriority.LOW), is(50));
+	}
+	
+	@Test
+	public void rejectPercentageOutOfRange() {
+		// exercise & verify
+		assertThrows(IllegalArgumentException.class,
+				() -> sut.setConcurrencyPercentage(RequestPriority.LOW, 101));
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test for {@link MicrometerRateLimitMetrics}.
+ */
+public class MicrometerRateLimitMetricsTest {
+	
+	SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	
+	MicrometerRateLimitMetrics sut = new MicrometerRateLimitMetrics();
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut.setBucketCount(() -> 42L);
+		sut.bindTo(registry);
+	}
+	
+	@Test
+	public void recordEvaluated() {
+		// setup
+		RateLimitDescriptor descriptor = new RateLimitDescriptor("192.0.2.1/export", 2, 1000L, 250L, 0L);
+		// exercise
+		sut.onEvaluated("export", descriptor, 100, false);
+		sut.onEvaluated("export", descriptor, 100, true);
+		sut.onEvaluated(null, descriptor, 100, true);
+		// verify
+		assertThat(registry.get("ratelimit.requests").tags("bucket", "export", "result", "accepted").counter().count(),
+				is(1.0));
+		assertThat(registry.get("ratelimit.requests").tags("bucket", "export", "result", "rejected").counter().count(),
+				is(1.0));
+		assertThat(registry.get("ratelimit.requests").tags("bucket", "default", "result", "rejected").counter().count(),
+				is(1.0));
+		assertThat(registry.get("ratelimit.budget.remaining").tags("bucket", "export", "unit", "default").summary().mean(),
+				is(0.25));
+	}
+	
+	@Test
+	public void recordEvaluatedByUnitType() {
+		// setup
+		sut.setUnitType(name -> name.startsWith("tenant:") ? "tenant" : "user");
+		// exercise
+		sut.onEvaluated("export", new RateLimitDescriptor("tenant:1", 2, 1000L, -100L, 0L), 100, true);
+		sut.onEvaluated("export", new RateLimitDescriptor("user:1", 2, 1000L, 500L, 0L), 100, false);
+		// verify
+		assertThat(registry.get("ratelimit.requests").tags("unit", "tenant", "result", "rejected").counter().count(),
+				is(1.0));
+		assertThat(registry.get("ratelimit.requests").tags("unit", "user", "result", "accepted").counter().count(),
+				is(1.0));
+		assertThat(registry.get("ratelimit.budget.remaining").tags("unit", "user").summary().mean(), is(0.5));
+	}
+	
+	@Test
+	public void recordRedisCallAndBuckets() {
+		// exercise
+		sut.onRedisCall(1000000L, true);
+		sut.onRedisCall(5000000L, false);
+		// verify
+		assertThat(registry.get("ratelimit.redis.calls").tags("outcome", "success").timer().count(), is(1L));
+		assertThat(registry.get("ratelimit.redis.calls").tags("outcome", "failure").timer().count(), is(1L));
+		assertThat(registry.get("ratelimit.buckets").gauge().value(), is(42.0));
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link PeerExchangeRateLimitService}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class PeerExchangeRateLimitServiceTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@TempDir
+	Path tempDir;
+	
+	PeerExchangeRateLimitService node1;
+	
+	PeerExchangeRateLimitService node2;
+	
+	
+	@BeforeEach
+	public void setUp() throws Exception {
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		node1 = createNode();
+		node2 = createNode();
+		Path peersFile = tempDir.resolve("peers.txt");
+		Files.write(peersFile, Arrays.asList(
+				"# peers",
+				"127.0.0.1:" + node1.getLocalPort(),
+				"127.0.0.1:" + node2.getLocalPort()), StandardCharsets.UTF_8);
+		node1.setPeersFile(peersFile);
+		node2.setPeersFile(peersFile);
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		node1.destroy();
+		node2.destroy();
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void consumptionIsSharedWithPeers() throws Exception {
+		// setup
+		node2.get(request); // node2 tracks user1
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitConsumption(node2);
+		assertThat(node2.get(request).getCurrentBudget(), is(700L));
+		assertThat(node1.get(request).getCurrentBudget(), is(700L)); // not charged twice
+	}
+	
+	@Test
+	public void signedConsumptionIsSharedWithPeers() throws Exception {
+		// setup
+		node1.setSecret("secret");
+		node2.setSecret("secret");
+		node2.get(request);
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitConsumption(node2);
+		assertThat(node2.get(request).getCurrentBudget(), is(700L));
+	}
+	
+	@Test
+	public void consumptionOfUntrackedUnitIsIgnored() throws Exception {
+		// setup
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		Thread.sleep(200);
+		// verify
+		assertThat(node2.get(request).getCurrentBudget(), is(1000L));
+	}
+	
+	@Test
+	public void datagramFromUnknownAddressIsDropped() throws Exception {
+		// setup
+		PeerExchangeRateLimitService stranger = createNode();
+		try {
+			stranger.setPeers(Arrays.asList(new InetSocketAddress("127.0.0.1", node2.getLocalPort())));
+			node2.get(request);
+			stranger.consume(request, 500);
+			node1.consume(request, 300);
+			// exercise
+			stranger.exchange();
+			node1.exchange();
+			// verify
+			awaitConsumption(node2);
+			assertThat(node2.get(request).getCurrentBudget(), is(700L));
+		} finally {
+			stranger.destroy();
+		}
+	}
+	
+	@Test
+	public void consumptionExceedingBudgetIsCharged_tokenBucket() throws Exception {
+		// setup
+		node2.consume(request, 900);
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitBudgetBelow(node2, 100L);
+		assertThat(node2.get(request).getCurrentBudget(), is(-200L));
+	}
+	
+	@Test
+	public void consumptionExceedingBudgetIsCharged_gcra() throws Exception {
+		// setup
+		node1.setAlgorithm(new GcraAlgorithm());
+		node2.setAlgorithm(new GcraAlgorithm());
+		node2.consume(request, 900);
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitBudgetBelow(node2, 100L);
+		assertThat(node2.get(request).getCurrentBudget(), is(0L)); // charged up to the budget
+	}
+	
+	@Test
+	public void consumptionExceedingBudgetIsCharged_slidingWindow() throws Exception {
+		// setup
+		node1.setAlgorithm(new SlidingWindowAlgorithm());
+		node2.setAlgorithm(new SlidingWindowAlgorithm());
+		node2.consume(request, 900);
+		node1.consume(request, 300);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitBudgetBelow(node2, 100L);
+		assertThat(node2.get(request).getCurrentBudget(), is(0L)); // charged up to the budget
+	}
+	
+	@Test
+	public void peersFileIsNotCheckedWithinInterval() throws Exception {
+		// setup
+		node2.setPeersFileCheckInterval(60000L);
+		node2.get(request);
+		node1.consume(request, 100);
+		node1.exchange();
+		awaitConsumption(node2);
+		Files.write(tempDir.resolve("peers.txt"), Arrays.asList(
+				"127.0.0.1:" + node2.getLocalPort()), StandardCharsets.UTF_8);
+		node1.consume(request, 200);
+		// exercise
+		node1.exchange();
+		// verify
+		awaitBudgetBelow(node2, 900L);
+		assertThat(node2.get(request).getCurrentBudget(), is(700L)); // node1 is still a known peer
+	}
+	
+	private void awaitConsumption(PeerExchangeRateLimitService node) throws InterruptedException {
+		for (int i = 0; i < 100 && node.get(request).getCurrentBudget() == 1000L; i++) {
+			Thread.sleep(10);
+		}
+	}
+	
+	private void awaitBudgetBelow(PeerExchangeRateLimitService node, long budget) throws InterruptedException {
+		for (int i = 0; i < 100 && node.get(request).getCurrentBudget() >= budget; i++) {
+			Thread.sleep(10);
+		}
+	}
+	
+	private static PeerExchangeRateLimitService createNode() throws Exception {
+		PeerExchangeRateLimitService node = new PeerExchangeRateLimitService();
+		node.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L)
+			.setCurrentBudget(1000L));
+		node.setExchangeInterval(60000L);
+		node.afterPropertiesSet();
+		return node;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.method.HandlerMethod;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * Test for {@link RateLimitingInterceptor}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class RateLimitingInterceptorTest {
+	
+	@Mock
+	RateLimitService rateLimitService;
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	HttpServletResponse response;
+	
+	Object handler = new Object();
+	
+	RateLimitingInterceptor sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new RateLimitingInterceptor(rateLimitService);
+		Map<String, Object> attributes = new HashMap<>();
+		lenient().doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+			.when(request).setAttribute(anyString(), any());
+		lenient().doAnswer(invocation -> attributes.get(invocation.getArgument(0)))
+			.when(request).getAttribute(anyString());
+		lenient().doAnswer(invocation -> attributes.remove(invocation.getArgument(0)))
+			.when(request).removeAttribute(anyString());
+		lenient().when(rateLimitService.consumeAll(request, 100)).thenReturn(Collections.singletonList(
+				new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L)));
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void chargeResponseSizeAfterCompletion() throws Exception {
+		// setup
+		sut.setBytesPerPoint(1024);
+		when(response.getHeader("Content-Length")).thenReturn("10240");
+		when(rateLimitService.chargeAll(request, 10)).thenReturn(Collections.emptyList());
+		// exercise
+		sut.preHandle(request, response, handler);
+		sut.afterCompletion(request, response, handler, null);
+		// verify
+		verify(rateLimitService).consumeAll(request, 100);
+		verify(rateLimitService).chargeAll(request, 10);
+	}
+	
+	@Test
+	public void chargeResponseSizeExceedingBudget_tokenBucket() throws Exception {
+		// setup
+		InMemoryRateLimitService service = new InMemoryRateLimitService();
+		service.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L));
+		sut = new RateLimitingInterceptor(service);
+		sut.setBytesPerPoint(1024);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		when(response.getHeader("Content-Length")).thenReturn(String.valueOf(2048 * 1024));
+		// exercise
+		sut.preHandle(request, response, handler); // 900 remains
+		sut.afterCompletion(request, response, handler, null); // 2048 is charged
+		// verify
+		assertThat(service.get(request).getCurrentBudget(), is(-1148L)); // in debt
+	}
+	
+	@Test
+	public void chargeResponseSizeExceedingBudget_gcra() throws Exception {
+		// setup
+		InMemoryRateLimitService service = new InMemoryRateLimitService();
+		service.setAlgorithm(new GcraAlgorithm());
+		service.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L).setCurrentBudget(1000L));
+		sut = new RateLimitingInterceptor(service);
+		sut.setBytesPerPoint(1024);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		when(response.getHeader("Content-Length")).thenReturn(String.valueOf(2048 * 1024));
+		// exercise
+		sut.preHandle(request, response, handler); // 900 remains
+		sut.afterCompletion(request, response, handler, null); // 2048 is charged
+		// verify
+		assertThat(service.get(request).getCurrentBudget(), is(0L)); // exhausted
+	}
+	
+	@Test
+	public void notChargeAfterCompletionByDefault() throws Exception {
+		// exercise
+		sut.preHandle(request, response, handler);
+		sut.afterCompletion(request, response, handler, null);
+		// verify
+		verify(rateLimitService, times(1)).consumeAll(eq(request), anyLong());
+		verify(rateLimitService, never()).chargeAll(eq(request), anyLong());
+	}
+	
+	@Test
+	public void typeLevelCostAndBucket() throws Exception {
+		// setup
+		HandlerMethod handlerMethod = new HandlerMethod(new HandlerRateLimitTest.TypeLevelController(), "get");
+		when(rateLimitService.consumeAll(request, 200)).thenReturn(Collections.singletonList(
+				new RateLimitDescriptor("user1", 2, 1000L, 800L, 0L)));
+		// exercise
+		sut.preHandle(request, response, handlerMethod);
+		// verify
+		verify(request).setAttribute(RateLimitingInterceptor.BUCKET_ATTRIBUTE, "type");
+		verify(response).setHeader("RateLimit-Cost", "200");
+	}
+	
+	@Test
+	public void overriddenComputeCost() throws Exception {
+		// setup
+		sut = new RateLimitingInterceptor(rateLimitService) {
+			
+			@Override
+			protected int computeCost(HttpServletRequest request, Object handler) {
+				return 300;
+			}
+		};
+		when(rateLimitService.consumeAll(request, 300)).thenReturn(Collections.singletonList(
+				new RateLimitDescriptor("user1", 2, 1000L, 700L, 0L)));
+		// exercise
+		sut.preHandle(request, response, handler);
+		// verify
+		verify(response).setHeader("RateLimit-Cost", "300");
+	}
+	
+	@Test
+	public void shedLowPriorityButAdmitCritical() throws Exception {
+		// setup
+		sut.setSheddingPolicy(new LoadSheddingPolicy()); // LOW reserves 30%, CRITICAL reserves nothing
+		when(rateLimitService.consumeAll(request, 100)).thenReturn(Collections.singletonList(
+				new RateLimitDescriptor("user1", 2, 1000L, 200L, 0L)));
+		HandlerMethod low = new HandlerMethod(new PriorityController(), "low");
+		HandlerMethod critical = new HandlerMethod(new PriorityController(), "critical");
+		// exercise
+		assertThrows(HttpTooManyRequestsException.class, () -> sut.preHandle(request, response, low));
+		boolean actual = sut.preHandle(request, response, critical);
+		// verify
+		assertThat(actual, is(true));
+	}
+	
+	
+	public static class PriorityController {
+		
+		@RateLimited(priority = RequestPriority.LOW)
+		public void low() {
+			// nothing to do
+		}
+		
+		@RateLimited(priority = RequestPriority.CRITICAL)
+		public void critical() {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+
+import jp.xet.sparwings.spring.web.httpexceptions.HttpTooManyRequestsException;
+
+/**
+ * Test for {@link RateLimitingWebFilter}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class RateLimitingWebFilterTest {
+	
+	@Mock
+	AsyncRateLimitService<ServerWebExchange> rateLimitService;
+	
+	@Mock
+	ServerWebExchange exchange;
+	
+	@Mock
+	ServerHttpResponse response;
+	
+	@Mock
+	WebFilterChain chain;
+	
+	@Mock
+	HandlerMapping handlerMapping;
+	
+	HttpHeaders headers = new HttpHeaders();
+	
+	Map<String, Object> attributes = new HashMap<>();
+	
+	RateLimitingWebFilter sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new RateLimitingWebFilter(rateLimitService);
+		lenient().when(exchange.getResponse()).thenReturn(response);
+		lenient().when(exchange.getAttributes()).thenReturn(attributes);
+		lenient().when(response.getHeaders()).thenReturn(headers);
+		lenient().when(chain.filter(exchange)).thenReturn(Mono.empty());
+	}
+	
+	private Throwable filter() {
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		sut.filter(exchange, chain)
+			.onErrorResume(e -> {
+				error.set(e);
+				return Mono.empty();
+			})
+			.block();
+		return error.get();
+	}
+	
+	@Test
+	public void accept() {
+		// setup
+		when(rateLimitService.consume(exchange, 100)).thenReturn(CompletableFuture.completedFuture(
+				new RateLimitDescriptor("user1", 2, 1000L, 900L, 0L)));
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(nullValue()));
+		verify(chain).filter(exchange);
+		assertThat(headers.getFirst("RateLimit-Unit"), is("user1"));
+		assertThat(headers.getFirst("RateLimit-Cost"), is("100"));
+		assertThat(headers.getFirst("RateLimit-CurrentBudget"), is("900"));
+		assertThat(headers.getFirst("RateLimit-MaximumBudget"), is("1000"));
+		assertThat(headers.getFirst("RateLimit-FillRate"), is("2"));
+		assertThat(headers.getFirst("Retry-After"), is(nullValue()));
+	}
+	
+	@Test
+	public void reject() {
+		// setup
+		when(rateLimitService.consume(exchange, 100)).thenReturn(CompletableFuture.completedFuture(
+				new RateLimitDescriptor("user1", 2, 1000L, -100L, 0L)));
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(instanceOf(HttpTooManyRequestsException.class)));
+		verify(chain, never()).filter(exchange);
+		assertThat(headers.getFirst("RateLimit-CurrentBudget"), is("-100"));
+		assertThat(headers.getFirst("Retry-After"), is("0")); // (100 + 100) / 2 = 100 ms
+	}
+	
+	@Test
+	public void rejectWithoutHeaders() {
+		// setup
+		sut.setResponseHeader(false);
+		when(rateLimitService.consume(exchange, 100)).thenReturn(CompletableFuture.completedFuture(
+				new RateLimitDescriptor("user1", 2, 1000L, -3000L, 0L)));
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(instanceOf(HttpTooManyRequestsException.class)));
+		assertThat(headers.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void noDescriptor() {
+		// setup
+		when(rateLimitService.consume(exchange, 100)).thenReturn(CompletableFuture.completedFuture(null));
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(nullValue()));
+		verify(chain).filter(exchange);
+		assertThat(headers.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void costAndBucketFromHandler() throws Exception {
+		// setup
+		sut.setHandlerMapping(handlerMapping);
+		when(handlerMapping.getHandler(exchange)).thenReturn(Mono.just(new HandlerMethod(new Controller(), "heavy")));
+		when(rateLimitService.consume(exchange, 500)).thenReturn(CompletableFuture.completedFuture(
+				new RateLimitDescriptor("user1", 2, 1000L, 500L, 0L)));
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(nullValue()));
+		assertThat(headers.getFirst("RateLimit-Cost"), is("500"));
+		assertThat(attributes.get(RateLimitingInterceptor.BUCKET_ATTRIBUTE), is("heavy"));
+	}
+	
+	@Test
+	public void resolvedHandlerIsReused() throws Exception {
+		// setup
+		HandlerMethod handler = new HandlerMethod(new Controller(), "heavy");
+		sut.setHandlerMapping(handlerMapping);
+		when(handlerMapping.getHandler(exchange)).thenReturn(Mono.just(handler));
+		when(rateLimitService.consume(exchange, 500)).thenReturn(CompletableFuture.completedFuture(
+				new RateLimitDescriptor("user1", 2, 1000L, 500L, 0L)));
+		filter();
+		// exercise
+		Object actual = new ResolvedHandlerMapping().getHandler(exchange).block();
+		// verify
+		assertThat(actual, is(sameInstance(handler)));
+		verify(handlerMapping, times(1)).getHandler(exchange);
+	}
+	
+	@Test
+	public void notTarget() {
+		// setup
+		sut = new RateLimitingWebFilter(rateLimitService) {
+			
+			@Override
+			protected boolean isRateLimitTarget(ServerWebExchange exchange) {
+				return false;
+			}
+		};
+		// exercise
+		Throwable actual = filter();
+		// verify
+		assertThat(actual, is(nullValue()));
+		verify(chain).filter(exchange);
+		verify(rateLimitService, never()).consume(exchange, 100);
+	}
+	
+	
+	static class Controller {
+		
+		@RateLimited(value = 500, bucket = "heavy")
+		public void heavy() {
+			// nothing to do
+		}
+	}
+}
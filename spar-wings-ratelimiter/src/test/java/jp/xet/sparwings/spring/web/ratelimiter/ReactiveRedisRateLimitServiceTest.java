@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import reactor.core.publisher.Flux;
+
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link ReactiveRedisRateLimitService}.
+ */
+@ExtendWith(MockitoExtension.class)
+public class ReactiveRedisRateLimitServiceTest {
+	
+	@Mock
+	ReactiveRedisTemplate<String, Long> redisTemplate;
+	
+	@Mock
+	RateLimitListener listener;
+	
+	ReactiveRedisRateLimitService<String> sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new ReactiveRedisRateLimitService<>(redisTemplate,
+				key -> key == null ? null : new RateLimitDescriptor(key, 2, 1000L));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(123L)));
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void consume100() {
+		// setup
+		when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList())).thenReturn(Flux.just(900L));
+		// exercise
+		RateLimitDescriptor actual = sut.consume("user1", 100).toCompletableFuture().join();
+		// verify
+		assertThat(actual.getLimitationUnitName(), is("user1"));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(actual.getLastUpdateTime(), is(123L));
+		ArgumentCaptor<List<Object>> args = ArgumentCaptor.forClass(List.class);
+		verify(redisTemplate).execute(eq(new TokenBucketAlgorithm().getRedisScript()),
+				eq(Collections.singletonList(TokenBucketAlgorithm.KEY_PREFIX + "user1")), args.capture());
+		assertThat(args.getValue(), contains(2L, 1000L, 123L, 100L));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void get() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList())).thenReturn(Flux.just(1000L));
+		// exercise
+		RateLimitDescriptor actual = sut.get("user1").toCompletableFuture().join();
+		// verify
+		assertThat(actual.getCurrentBudget(), is(1000L));
+		verify(redisTemplate).execute(eq(new GcraAlgorithm().getRedisScript()),
+				eq(Collections.singletonList(GcraAlgorithm.KEY_PREFIX + "user1")),
+				eq(Arrays.<Object> asList(2L, 1000L, 123L, 0L)));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void consume100_notifyListener() {
+		// setup
+		sut.setListener(listener);
+		when(redisTemplate.execute(any(RedisScript.class), anyList(), anyList())).thenReturn(Flux.just(900L));
+		// exercise
+		sut.consume("user1", 100).toCompletableFuture().join();
+		// verify
+		verify(listener).onRedisCall(anyLong(), eq(true));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void noDescriptor() {
+		// exercise
+		RateLimitDescriptor actual = sut.consume(null, 100).toCompletableFuture().join();
+		// verify
+		assertThat(actual, is(nullValue()));
+		verify(redisTemplate, never()).execute(any(RedisScript.class), anyList(), anyList());
+	}
+}
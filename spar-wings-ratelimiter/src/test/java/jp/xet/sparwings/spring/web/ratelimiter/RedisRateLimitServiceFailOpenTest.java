@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.spring.web.ratelimiter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jp.xet.baseunits.time.TimePoint;
+import jp.xet.baseunits.timeutil.Clock;
+import jp.xet.baseunits.timeutil.FixedTimeSource;
+import jp.xet.baseunits.timeutil.SystemClock;
+
+/**
+ * Test for {@link RedisRateLimitService} while redis is unavailable.
+ */
+@ExtendWith(MockitoExtension.class)
+public class RedisRateLimitServiceFailOpenTest {
+	
+	@Mock
+	HttpServletRequest request;
+	
+	@Mock
+	RedisTemplate<String, Long> redisTemplate;
+	
+	RedisRateLimitService sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new RedisRateLimitService(redisTemplate);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor("user1", 2, 1000L)
+			.setCurrentBudget(1000L));
+		doThrow(new RedisConnectionFailureException("unavailable")).when(redisTemplate)
+			.execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+	}
+	
+	@AfterEach
+	public void tearDown() throws Exception {
+		Clock.setTimeSource(SystemClock.timeSource());
+	}
+	
+	@Test
+	public void failureIsThrownByDefault() {
+		// exercise & verify
+		assertThrows(RedisConnectionFailureException.class, () -> sut.consume(request, 100));
+	}
+	
+	@Test
+	public void fallbackToScaledBucket_openCircuit() {
+		// setup
+		sut.setFailOpen(true);
+		sut.setFailureThreshold(2);
+		sut.setFallbackDivisor(2);
+		sut.setLatencyBudget(1000L);
+		// exercise
+		RateLimitDescriptor first = sut.consume(request, 100);
+		RateLimitDescriptor second = sut.consume(request, 100);
+		RateLimitDescriptor third = sut.consume(request, 100);
+		// verify
+		assertThat(first.getMaxBudget(), is(500L));
+		assertThat(first.getCurrentBudget(), is(400L));
+		assertThat(second.getCurrentBudget(), is(300L));
+		assertThat(third.getCurrentBudget(), is(200L));
+		assertThat(sut.isCircuitOpen(), is(true));
+		verify(redisTemplate, times(2)).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+	}
+	
+	@Test
+	public void reconcileOnlyConsumedBudget_gcra() throws Exception {
+		// setup
+		sut.setFailOpen(true);
+		sut.setFailureThreshold(1);
+		sut.setOpenDuration(0L);
+		sut.setLatencyBudget(1000L);
+		RateLimitAlgorithm algorithm = new GcraAlgorithm();
+		sut.setAlgorithm(algorithm);
+		sut.consume(request, 800); // consumed from the fallback bucket
+		RateLimitDescriptor rejected = sut.consume(request, 300); // rejected without charge
+		doReturn(900L).when(redisTemplate)
+			.execute(eq(algorithm.getRedisScript()), anyList(), any(), any(), any(), any());
+		doReturn(Collections.singletonList(100L)).when(redisTemplate)
+			.execute(eq(algorithm.getRedisChargeScript()), anyList(), any(), any(), any(), any());
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100); // probe succeeds and reconciles
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(900L));
+		assertThat(sut.isCircuitOpen(), is(false));
+		verify(redisTemplate, timeout(1000L)).execute(eq(algorithm.getRedisChargeScript()), anyList(), any(),
+				eq(800L), eq(2L), eq(1000L));
+		verify(redisTemplate, times(1)).execute(eq(algorithm.getRedisChargeScript()), anyList(), any(), any(), any(),
+				any());
+	}
+	
+	@Test
+	public void reconcileChargedRejection_tokenBucket() throws Exception {
+		// setup
+		RateLimitListener listener = mock(RateLimitListener.class);
+		sut.setListener(listener);
+		sut.setFailOpen(true);
+		sut.setFailureThreshold(1);
+		sut.setOpenDuration(0L);
+		sut.setLatencyBudget(1000L);
+		RateLimitAlgorithm algorithm = sut.getAlgorithm();
+		sut.consume(request, 1500); // rejected, but charged to the fallback bucket as debt
+		doReturn(900L).when(redisTemplate)
+			.execute(eq(algorithm.getRedisScript()), anyList(), any(), any(), any(), any());
+		doReturn(Collections.singletonList(-500L)).when(redisTemplate)
+			.execute(eq(algorithm.getRedisChargeScript()), anyList(), any(), any(), any(), any());
+		// exercise
+		sut.consume(request, 100); // probe succeeds and reconciles
+		// verify
+		verify(redisTemplate, timeout(1000L)).execute(eq(algorithm.getRedisChargeScript()), anyList(), any(),
+				eq(1500L), eq(2L), eq(1000L));
+		verify(listener, timeout(1000L).times(2)).onRedisCall(anyLong(), eq(true)); // probe and reconcile
+	}
+	
+	@Test
+	public void fallbackConsumeAll_rejectedByTenant() throws Exception {
+		// setup
+		sut.setFailOpen(true);
+		sut.setFailureThreshold(1);
+		sut.setOpenDuration(0L);
+		sut.setLatencyBudget(1000L);
+		sut.setRecoveryStrategies(req -> Arrays.asList(
+				new RateLimitDescriptor("user1", 2, 1000L),
+				new RateLimitDescriptor("tenant1", 2, 150L)));
+		RateLimitAlgorithm algorithm = sut.getAlgorithm();
+		doThrow(new RedisConnectionFailureException("unavailable")).when(redisTemplate)
+			.execute(eq(algorithm.getRedisMultiScript()), anyList(), any(), any(), any(), any(), any(), any());
+		sut.consumeAll(request, 100);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(request, 100);
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(900L)); // not consumed
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+	}
+	
+	@Test
+	public void reconcileUpToMaxFallbackBuckets() throws Exception {
+		// setup
+		sut.setFailOpen(true);
+		sut.setFailureThreshold(1);
+		sut.setOpenDuration(0L);
+		sut.setLatencyBudget(1000L);
+		sut.setMaxFallbackBuckets(1);
+		sut.setRecoveryStrategy(req -> new RateLimitDescriptor(req.getRemoteAddr(), 2, 1000L)
+			.setCurrentBudget(1000L));
+		when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+		sut.consume(request, 100); // charged to the fallback bucket
+		when(request.getRemoteAddr()).thenReturn("192.0.2.2");
+		sut.consume(request, 200); // enforced, but not tracked to reconcile
+		RateLimitAlgorithm algorithm = sut.getAlgorithm();
+		doReturn(900L).when(redisTemplate)
+			.execute(eq(algorithm.getRedisScript()), anyList(), any(), any(), any(), any());
+		doReturn(Collections.singletonList(800L)).when(redisTemplate)
+			.execute(eq(algorithm.getRedisChargeScript()), anyList(), any(), any(), any(), any());
+		// exercise
+		sut.consume(request, 100); // probe succeeds and reconciles
+		// verify
+		verify(redisTemplate, timeout(1000L)).execute(eq(algorithm.getRedisChargeScript()),
+				eq(Collections.singletonList(algorithm.getRedisKeyPrefix() + "192.0.2.1")), any(), eq(100L), eq(2L), eq(1000L));
+		verify(redisTemplate, never()).execute(eq(algorithm.getRedisChargeScript()), anyList(), any(), eq(200L),
+				any(), any());
+	}
+	
+	@Test
+	public void fallbackWithoutWaiting_tooManyConcurrentCalls() throws Exception {
+		// setup
+		sut.setFailOpen(true);
+		sut.setLatencyBudget(10L);
+		sut.setMaxConcurrentCalls(1);
+		CountDownLatch latch = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			latch.await(); // redis hangs
+			return 900L;
+		}).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+		try {
+			RateLimitDescriptor first = sut.consume(request, 100); // times out, keeps the permit
+			// exercise
+			RateLimitDescriptor second = sut.consume(request, 100);
+			// verify
+			assertThat(first.getCurrentBudget(), is(900L));
+			assertThat(second.getCurrentBudget(), is(800L));
+			verify(redisTemplate, timeout(1000L)).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+		} finally {
+			latch.countDown();
+		}
+	}
+}
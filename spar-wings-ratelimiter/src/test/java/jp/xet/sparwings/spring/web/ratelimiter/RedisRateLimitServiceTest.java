@@ -19,6 +19,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -133,6 +135,109 @@ public class RedisRateLimitServiceTest {
 		assertThat(actual.getCurrentBudget(), is(800L));
 	}
 	
+	@Test
+	public void gcra_consume100_consume1000_consume100() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		RateLimitDescriptor rejected = sut.consume(request, 1000);
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(800L)); // rejected request is not charged
+	}
+	
+	@Test
+	public void gcra_consume100_recover20_get() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 100);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(10L))); // recover 20
+		// exercise
+		RateLimitDescriptor actual = sut.get(request);
+		// verify
+		assertThat(actual.getCurrentBudget(), is(920L));
+	}
+	
+	@Test
+	public void slidingWindow_consume600_consume500_slide250_consume100() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm()); // window = 500ms
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 600);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(250L)));
+		RateLimitDescriptor rejected = sut.consume(request, 500);
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.from(750L))); // previous window weighted by 1/2
+		// exercise
+		RateLimitDescriptor actual = sut.consume(request, 100);
+		// verify
+		assertThat(rejected.getCurrentBudget(), is(-100L));
+		assertThat(actual.getCurrentBudget(), is(600L));
+	}
+	
+	@Test
+	public void slidingWindow_consumeAll_rejectedByTenant() {
+		// setup
+		sut.setAlgorithm(new SlidingWindowAlgorithm());
+		sut.setRecoveryStrategies(req -> Arrays.asList(
+				new RateLimitDescriptor("user1", 2, 1000L),
+				new RateLimitDescriptor("tenant1", 2, 150L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consumeAll(request, 100);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(request, 100);
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(900L)); // not consumed
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		assertThat(sut.consumeAll(request, 0).get(0).getCurrentBudget(), is(900L)); // not committed
+	}
+	
+	@Test
+	public void tokenBucket_consumeAll_rejectedByTenant() {
+		// setup
+		sut.setRecoveryStrategies(req -> Arrays.asList(
+				new RateLimitDescriptor("user1", 2, 1000L),
+				new RateLimitDescriptor("tenant1", 2, 150L)));
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consumeAll(request, 100);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.consumeAll(request, 100);
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(900L)); // not consumed
+		assertThat(actual.get(1).getCurrentBudget(), is(-50L));
+		List<RateLimitDescriptor> after = sut.consumeAll(request, 0);
+		assertThat(after.get(0).getCurrentBudget(), is(900L)); // not committed
+		assertThat(after.get(1).getCurrentBudget(), is(-50L)); // charged as single script does
+	}
+	
+	@Test
+	public void consume900_chargeAll500() {
+		// setup
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 900);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.chargeAll(request, 500);
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(-400L)); // in debt
+		assertThat(sut.get(request).getCurrentBudget(), is(-400L));
+	}
+	
+	@Test
+	public void gcra_consume900_chargeAll500() {
+		// setup
+		sut.setAlgorithm(new GcraAlgorithm());
+		Clock.setTimeSource(new FixedTimeSource(TimePoint.EPOCH));
+		sut.consume(request, 900);
+		// exercise
+		List<RateLimitDescriptor> actual = sut.chargeAll(request, 500);
+		// verify
+		assertThat(actual.get(0).getCurrentBudget(), is(0L)); // charged up to the budget
+		assertThat(sut.get(request).getCurrentBudget(), is(0L));
+	}
+	
 	@Test
 	public void consume10_50threads() throws InterruptedException {
 		// setup
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the pace of SQS receives.
+ * 
+ * <p>Receivers call {@link #pause()} before each receive and report the outcome of the receive. A caller which must
+ * not block (e.g. a scheduled task) checks {@link #isReceiveDue()} instead. The delay grows
+ * exponentially (with equal jitter) while receives are throttled or fail, and after
+ * {@link #setEmptyReceivesBeforeBackoff(int) emptyReceivesBeforeBackoff} consecutive empty receives. As soon as
+ * any receiver gets messages, the delay is reset and all paused receivers are woken up.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class AdaptivePollingController {
+	
+	/**
+	 * State of the controller.
+	 */
+	public enum State {
+		
+		/** Receives are not delayed. */
+		ACTIVE,
+		
+		/** Receives are delayed because the queue seems to be empty. */
+		IDLE,
+		
+		/** Receives are delayed because SQS throttled them. */
+		THROTTLED,
+		
+		/** Receives are delayed because they failed. */
+		FAILING
+	}
+	
+	
+	/**
+	 * Number of consecutive empty receives before delaying receives.
+	 */
+	@Getter
+	@Setter
+	private int emptyReceivesBeforeBackoff = 3;
+	
+	/**
+	 * Delay in milliseconds for the first backoff step.
+	 */
+	@Getter
+	@Setter
+	private long initialDelay = 100;
+	
+	/**
+	 * Maximum delay in milliseconds while the queue is idle.
+	 */
+	@Getter
+	@Setter
+	private long maxIdleDelay = 5000;
+	
+	/**
+	 * Maximum delay in milliseconds while receives are throttled or failing.
+	 */
+	@Getter
+	@Setter
+	private long maxThrottleDelay = 60000;
+	
+	@Getter
+	private volatile State state = State.ACTIVE;
+	
+	/**
+	 * The delay in milliseconds applied to the next receive.
+	 */
+	@Getter
+	private volatile long currentDelay;
+	
+	// epoch millisec when the current delay elapses
+	private volatile long nextReceiveAt;
+	
+	private int consecutiveEmptyReceives;
+	
+	private int consecutiveFailures;
+	
+	private long generation;
+	
+	
+	/**
+	 * Wait for {@link #getCurrentDelay() currentDelay}, or until messages are received by another receiver.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void pause() throws InterruptedException {
+		long start = generation;
+		long deadline = System.currentTimeMillis() + currentDelay;
+		long remaining = currentDelay;
+		while (remaining > 0 && start == generation) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Returns whether the delay since the last reported receive has elapsed, without waiting.
+	 * 
+	 * @return {@code true} if the next receive is due
+	 */
+	public boolean isReceiveDue() {
+		return System.currentTimeMillis() >= nextReceiveAt;
+	}
+	
+	/**
+	 * Report that messages were received.
+	 */
+	public synchronized void onMessagesReceived() {
+		consecutiveEmptyReceives = 0;
+		consecutiveFailures = 0;
+		state = State.ACTIVE;
+		nextReceiveAt = 0;
+		if (currentDelay > 0) {
+			currentDelay = 0;
+			generation++;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Report that a receive returned no message.
+	 */
+	public synchronized void onEmptyReceive() {
+		consecutiveFailures = 0;
+		consecutiveEmptyReceives++;
+		int step = consecutiveEmptyReceives - emptyReceivesBeforeBackoff;
+		if (step < 0) {
+			state = State.ACTIVE;
+			currentDelay = 0;
+		} else {
+			state = State.IDLE;
+			currentDelay = computeDelay(step, maxIdleDelay);
+		}
+		nextReceiveAt = System.currentTimeMillis() + currentDelay;
+	}
+	
+	/**
+	 * Report that a receive was throttled.
+	 */
+	public synchronized void onThrottled() {
+		state = State.THROTTLED;
+		currentDelay = computeDelay(consecutiveFailures++, maxThrottleDelay);
+		nextReceiveAt = System.currentTimeMillis() + currentDelay;
+	}
+	
+	/**
+	 * Report that a receive failed.
+	 */
+	public synchronized void onError() {
+		state = State.FAILING;
+		currentDelay = computeDelay(consecutiveFailures++, maxThrottleDelay);
+		nextReceiveAt = System.currentTimeMillis() + currentDelay;
+	}
+	
+	/**
+	 * Returns the number of consecutive empty receives.
+	 * 
+	 * @return the number of consecutive empty receives
+	 */
+	public synchronized int getConsecutiveEmptyReceives() {
+		return consecutiveEmptyReceives;
+	}
+	
+	/**
+	 * Returns the number of consecutive throttled or failed receives.
+	 * 
+	 * @return the number of consecutive throttled or failed receives
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+	
+	private long computeDelay(int step, long max) {
+		long delay = max;
+		if (step < 62 && initialDelay < max >> step) {
+			delay = initialDelay << step;
+		}
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+}
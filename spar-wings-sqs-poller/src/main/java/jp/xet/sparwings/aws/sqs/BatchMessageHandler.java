@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Handler which processes SQS messages in batches.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@FunctionalInterface
+public interface BatchMessageHandler {
+	
+	/**
+	 * Process the batch of messages.
+	 * 
+	 * <p>Messages whose IDs are returned are left in the queue to be redelivered, and the others are deleted.
+	 * If this method throws an exception, all messages of the batch are left in the queue.</p>
+	 * 
+	 * @param messages the batch of messages, not empty
+	 * @return message IDs of the failed messages, or empty set if all messages succeeded
+	 */
+	Set<String> handle(List<Message> messages);
+}
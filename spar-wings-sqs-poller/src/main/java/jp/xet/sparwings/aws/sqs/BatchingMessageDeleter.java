@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Buffers acknowledgements of SQS messages and deletes them by {@code DeleteMessageBatch}.
+ * 
+ * <p>A batch is sent as soon as {@value #MAX_BATCH_SIZE} acknowledgements are buffered, or when
+ * {@link #setLinger(long) linger} milliseconds have elapsed since the first buffered acknowledgement.
+ * Entries which failed because of a server-side error (or the whole request failed) are buffered again after
+ * {@link #setRetryDelay(long) retryDelay}, doubled on each attempt, until {@link #setMaxAttempts(int) maxAttempts}
+ * is reached. Retries are scheduled on the linger timer thread, not sent by the thread which acknowledged the
+ * message, so that a throttled {@code DeleteMessageBatch} does not burn the attempts in a few milliseconds.
+ * Entries which failed because of the sender (e.g. an expired receipt handle) are never retried.</p>
+ * 
+ * <p>After {@link #close()}, acknowledgements and their retries are sent synchronously by the calling thread.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class BatchingMessageDeleter {
+	
+	/** The maximum number of entries in a {@code DeleteMessageBatch} request. */
+	public static final int MAX_BATCH_SIZE = 10;
+	
+	private final AmazonSQS sqs;
+	
+	private final String queueUrl;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-batch-deleter");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final Object lock = new Object();
+	
+	private final List<Entry> pending = new ArrayList<>();
+	
+	private ScheduledFuture<?> lingerTask;
+	
+	private boolean closed;
+	
+	/**
+	 * Milliseconds to wait for more acknowledgements before sending a partial batch.
+	 */
+	@Getter
+	@Setter
+	private long linger = 100;
+	
+	/**
+	 * Maximum number of attempts to delete a message.
+	 */
+	@Getter
+	@Setter
+	private int maxAttempts = 3;
+	
+	/**
+	 * Milliseconds to wait before the first retry of a failed deletion.
+	 */
+	@Getter
+	@Setter
+	private long retryDelay = 200;
+	
+	/**
+	 * Milliseconds to wait for scheduled retries on {@link #close()}.
+	 */
+	@Getter
+	@Setter
+	private long closeTimeout = 10000;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param sqs SQS client
+	 * @param queueUrl URL of the queue to delete messages from
+	 */
+	public BatchingMessageDeleter(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+	
+	/**
+	 * Buffer the acknowledgement of the message.
+	 * 
+	 * @param message the message to delete
+	 */
+	public void delete(Message message) {
+		enqueue(new Entry(message.getMessageId(), message.getReceiptHandle(), 1));
+	}
+	
+	/**
+	 * Send all buffered acknowledgements immediately.
+	 */
+	public void flush() {
+		List<Entry> entries;
+		synchronized (lock) {
+			entries = new ArrayList<>(pending);
+			pending.clear();
+			cancelLinger();
+		}
+		sendAll(entries);
+	}
+	
+	/**
+	 * Send all buffered acknowledgements, wait for scheduled retries up to {@link #getCloseTimeout() closeTimeout},
+	 * and stop the linger timer. Acknowledgements after this are sent synchronously.
+	 */
+	public void close() {
+		List<Entry> entries;
+		synchronized (lock) {
+			closed = true;
+			entries = new ArrayList<>(pending);
+			pending.clear();
+			cancelLinger();
+		}
+		scheduler.shutdown(); // retries already scheduled still run
+		sendAll(entries);
+		try {
+			if (scheduler.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS) == false) {
+				log.error("Retries to delete SQS messages did not complete in {} ms on close", closeTimeout);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while waiting for retries to delete SQS messages");
+		}
+	}
+	
+	private void enqueue(Entry entry) {
+		List<Entry> batch = null;
+		synchronized (lock) {
+			if (closed) {
+				batch = Collections.singletonList(entry);
+			} else {
+				pending.add(entry);
+				if (pending.size() >= MAX_BATCH_SIZE) {
+					batch = new ArrayList<>(pending.subList(0, MAX_BATCH_SIZE));
+					pending.subList(0, MAX_BATCH_SIZE).clear();
+					if (pending.isEmpty()) {
+						cancelLinger();
+					}
+				} else if (lingerTask == null) {
+					lingerTask = scheduler.schedule(this::flush, linger, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (batch != null) {
+			send(batch);
+		}
+	}
+	
+	private void cancelLinger() {
+		if (lingerTask != null) {
+			lingerTask.cancel(false);
+			lingerTask = null;
+		}
+	}
+	
+	private void sendAll(List<Entry> entries) {
+		for (int i = 0; i < entries.size(); i += MAX_BATCH_SIZE) {
+			send(entries.subList(i, Math.min(i + MAX_BATCH_SIZE, entries.size())));
+		}
+	}
+	
+	private void send(List<Entry> batch) {
+		List<DeleteMessageBatchRequestEntry> requestEntries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			requestEntries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), batch.get(i).receiptHandle));
+		}
+		DeleteMessageBatchResult result;
+		try {
+			result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, requestEntries));
+		} catch (RuntimeException e) {
+			log.warn("Failed to delete {} SQS messages: {}", batch.size(), e.getMessage());
+			batch.forEach(this::retry);
+			return;
+		}
+		for (DeleteMessageBatchResultEntry succeeded : result.getSuccessful()) {
+			log.info("SQS: {} was deleted", batch.get(Integer.parseInt(succeeded.getId())).messageId);
+		}
+		for (BatchResultErrorEntry failed : result.getFailed()) {
+			Entry entry = batch.get(Integer.parseInt(failed.getId()));
+			if (Boolean.TRUE.equals(failed.getSenderFault())) {
+				log.error("SQS: {} could not be deleted: {} {}", entry.messageId, failed.getCode(), failed.getMessage());
+			} else {
+				log.warn("SQS: {} was not deleted: {} {}", entry.messageId, failed.getCode(), failed.getMessage());
+				retry(entry);
+			}
+		}
+	}
+	
+	private void retry(Entry entry) {
+		if (entry.attempt >= maxAttempts) {
+			log.error("Retry attempt exceeded to delete SQS: {}", entry.messageId);
+			return;
+		}
+		Entry next = new Entry(entry.messageId, entry.receiptHandle, entry.attempt + 1);
+		long delay = retryDelay << Math.min(entry.attempt - 1, 16);
+		try {
+			scheduler.schedule(() -> enqueue(next), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) { // closed
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				log.error("SQS: {} was not deleted because the retry was interrupted", entry.messageId);
+				return;
+			}
+			enqueue(next);
+		}
+	}
+	
+	
+	private static class Entry {
+		
+		private final String messageId;
+		
+		private final String receiptHandle;
+		
+		private final int attempt;
+		
+		
+		Entry(String messageId, String receiptHandle, int attempt) {
+			this.messageId = messageId;
+			this.receiptHandle = receiptHandle;
+			this.attempt = attempt;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Accumulates SQS messages into batches for a {@link BatchMessageHandler}.
+ * 
+ * <p>A batch is dispatched to the executor when {@link #setBatchSize(int) batchSize} messages are accumulated.
+ * When {@link #setLinger(long) linger} is positive, a partial batch is dispatched after {@code linger}
+ * milliseconds, so that a batch may span several receives. Otherwise a partial batch is dispatched at the end of
+ * each receive.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class MessageBatcher {
+	
+	private final BatchMessageHandler handler;
+	
+	private final Supplier<? extends Executor> executor;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-message-batcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final Object lock = new Object();
+	
+	private List<Pending> pending = new ArrayList<>();
+	
+	private ScheduledFuture<?> lingerTask;
+	
+	/**
+	 * Maximum number of messages in a batch.
+	 */
+	@Getter
+	@Setter
+	private int batchSize = 10;
+	
+	/**
+	 * Milliseconds to wait for more messages before dispatching a partial batch, or {@code 0} to dispatch it at
+	 * the end of each receive.
+	 */
+	@Getter
+	@Setter
+	private long linger;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param handler batch handler
+	 * @param executor supplier of the executor to run the handler on
+	 */
+	public MessageBatcher(BatchMessageHandler handler, Supplier<? extends Executor> executor) {
+		this.handler = handler;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Add the message to the current batch.
+	 * 
+	 * @param message the message to handle
+	 * @return the future which completes when the batch is handled, exceptionally if the message failed
+	 */
+	public CompletableFuture<Void> add(Message message) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		List<Pending> batch = null;
+		synchronized (lock) {
+			pending.add(new Pending(message, future));
+			if (pending.size() >= batchSize) {
+				batch = drain();
+			} else if (linger > 0 && lingerTask == null && scheduler.isShutdown() == false) {
+				lingerTask = scheduler.schedule(this::flush, linger, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (batch != null) {
+			dispatch(batch);
+		}
+		return future;
+	}
+	
+	/**
+	 * Notify the end of a receive. The partial batch is dispatched unless {@link #getLinger() linger} is
+	 * positive.
+	 */
+	public void endOfReceive() {
+		if (linger <= 0) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Dispatch the partial batch immediately.
+	 */
+	public void flush() {
+		List<Pending> batch;
+		synchronized (lock) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = drain();
+		}
+		dispatch(batch);
+	}
+	
+	/**
+	 * Dispatch the partial batch and stop the linger timer.
+	 */
+	public void close() {
+		flush();
+		scheduler.shutdown();
+	}
+	
+	private List<Pending> drain() {
+		List<Pending> batch = pending;
+		pending = new ArrayList<>();
+		if (lingerTask != null) {
+			lingerTask.cancel(false);
+			lingerTask = null;
+		}
+		return batch;
+	}
+	
+	private void dispatch(List<Pending> batch) {
+		try {
+			executor.get().execute(() -> handle(batch));
+		} catch (RuntimeException e) {
+			batch.forEach(p -> p.future.completeExceptionally(e));
+		}
+	}
+	
+	private void handle(List<Pending> batch) {
+		List<Message> messages = new ArrayList<>(batch.size());
+		batch.forEach(p -> messages.add(p.message));
+		log.debug("Batch of {} SQS messages is handled", messages.size());
+		Set<String> failed;
+		try {
+			failed = handler.handle(Collections.unmodifiableList(messages));
+		} catch (Throwable e) { // NOPMD
+			batch.forEach(p -> p.future.completeExceptionally(e));
+			return;
+		}
+		for (Pending p : batch) {
+			if (failed != null && failed.contains(p.message.getMessageId())) {
+				p.future.completeExceptionally(new IllegalStateException("Reported as failed by the batch handler"));
+			} else {
+				p.future.complete(null);
+			}
+		}
+	}
+	
+	
+	private static class Pending {
+		
+		private final Message message;
+		
+		private final CompletableFuture<Void> future;
+		
+		
+		Pending(Message message, CompletableFuture<Void> future) {
+			this.message = message;
+			this.future = future;
+		}
+	}
+}
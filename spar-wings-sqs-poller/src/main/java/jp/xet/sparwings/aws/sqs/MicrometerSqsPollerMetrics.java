@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.Locale;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * {@link MeterBinder} to expose the state of a {@link SqsMessagePoller} to Micrometer.
+ * 
+ * <p>All meters are tagged by {@code queue} (the queue URL). The following meters are registered:</p>
+ * 
+ * <ul>
+ *   <li>{@code sqs.poller.handlers.running}: number of messages holding a handler permit</li>
+ *   <li>{@code sqs.poller.handlers.limit}: maximum number of concurrent handlers</li>
+ *   <li>{@code sqs.poller.receivers}: number of live receivers</li>
+ *   <li>{@code sqs.poller.prefetch.size}: number of prefetched messages waiting for a handler permit</li>
+ *   <li>{@code sqs.poller.polling.delay}: delay in milliseconds applied to the next receive</li>
+ *   <li>{@code sqs.poller.polling.state}: {@code 1} for the current {@link AdaptivePollingController.State},
+ *     tagged by {@code state}</li>
+ * </ul>
+ * 
+ * <p>If {@link #setAutoscaler(QueueDepthAutoscaler) autoscaler} is set, its decisions are registered too:</p>
+ * 
+ * <ul>
+ *   <li>{@code sqs.queue.messages}: queue depth at the last evaluation, tagged by {@code visibility}
+ *     ({@code visible} or {@code notvisible})</li>
+ *   <li>{@code sqs.poller.autoscaler.concurrency} and {@code sqs.poller.autoscaler.receivers}: applied values</li>
+ *   <li>{@code sqs.poller.autoscaler.decisions}: evaluations which scaled, tagged by {@code direction}
+ *     ({@code up} or {@code down})</li>
+ * </ul>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class MicrometerSqsPollerMetrics implements MeterBinder {
+	
+	private final SqsMessagePoller poller;
+	
+	/**
+	 * Autoscaler of the poller, or {@code null} not to record its decisions.
+	 */
+	@Getter
+	@Setter
+	private QueueDepthAutoscaler autoscaler;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param poller the poller to observe
+	 */
+	public MicrometerSqsPollerMetrics(SqsMessagePoller poller) {
+		this.poller = poller;
+	}
+	
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Tags tags = Tags.of("queue", poller.getWorkerQueueUrl());
+		Gauge.builder("sqs.poller.handlers.running", poller, SqsMessagePoller::getRunningCount)
+			.description("Number of messages holding a handler permit")
+			.tags(tags)
+			.register(registry);
+		Gauge.builder("sqs.poller.handlers.limit", poller, SqsMessagePoller::getMaxConcurrency)
+			.description("Maximum number of concurrent handlers")
+			.tags(tags)
+			.register(registry);
+		Gauge.builder("sqs.poller.receivers", poller, SqsMessagePoller::getActiveReceiverCount)
+			.description("Number of live receivers")
+			.tags(tags)
+			.register(registry);
+		Gauge.builder("sqs.poller.prefetch.size", poller, p -> p.getPrefetchBuffer() == null ? 0 : p.getPrefetchBuffer().size())
+			.description("Number of prefetched messages waiting for a handler permit")
+			.tags(tags)
+			.register(registry);
+		AdaptivePollingController controller = poller.getPollingController();
+		Gauge.builder("sqs.poller.polling.delay", controller, AdaptivePollingController::getCurrentDelay)
+			.description("Delay in milliseconds applied to the next receive")
+			.tags(tags)
+			.register(registry);
+		for (AdaptivePollingController.State state : AdaptivePollingController.State.values()) {
+			Gauge.builder("sqs.poller.polling.state", controller, c -> c.getState() == state ? 1 : 0)
+				.description("Current state of the polling controller")
+				.tags(tags.and(Tag.of("state", state.name().toLowerCase(Locale.ROOT))))
+				.register(registry);
+		}
+		
+		QueueDepthAutoscaler scaler = autoscaler;
+		if (scaler == null) {
+			return;
+		}
+		Gauge.builder("sqs.queue.messages", scaler, QueueDepthAutoscaler::getBacklog)
+			.description("Approximate number of messages in the queue at the last evaluation")
+			.tags(tags.and("visibility", "visible"))
+			.register(registry);
+		Gauge.builder("sqs.queue.messages", scaler, QueueDepthAutoscaler::getInFlight)
+			.description("Approximate number of messages in the queue at the last evaluation")
+			.tags(tags.and("visibility", "notvisible"))
+			.register(registry);
+		Gauge.builder("sqs.poller.autoscaler.concurrency", scaler, QueueDepthAutoscaler::getConcurrency)
+			.description("Handler concurrency applied by the autoscaler")
+			.tags(tags)
+			.register(registry);
+		Gauge.builder("sqs.poller.autoscaler.receivers", scaler, QueueDepthAutoscaler::getReceivers)
+			.description("Number of receivers applied by the autoscaler")
+			.tags(tags)
+			.register(registry);
+		FunctionCounter.builder("sqs.poller.autoscaler.decisions", scaler, QueueDepthAutoscaler::getScaleUpCount)
+			.description("Evaluations which scaled the poller")
+			.tags(tags.and("direction", "up"))
+			.register(registry);
+		FunctionCounter.builder("sqs.poller.autoscaler.decisions", scaler, QueueDepthAutoscaler::getScaleDownCount)
+			.description("Evaluations which scaled the poller")
+			.tags(tags.and("direction", "down"))
+			.register(registry);
+	}
+}
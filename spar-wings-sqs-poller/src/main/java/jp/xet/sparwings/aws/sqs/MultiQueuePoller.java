@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Polls several SQS queues with shared receivers and a shared, bounded handler pool.
+ * 
+ * <p>Each queue is represented by a {@link SqsMessagePoller}, which keeps its own handler, visibility heartbeat
+ * and batch deleter, but is never started itself. The receivers of this poller reserve handler permits from the
+ * shared {@link #setMaxConcurrency(int) maxConcurrency}, and then short-poll the queues in the order decided by
+ * {@link #setMode(Mode) mode} until the reserved permits are used up. While the previous rounds received nothing,
+ * the first queue of a round is long-polled for its {@link SqsMessagePoller#getWaitTimeSeconds() waitTimeSeconds}
+ * instead, so that idle receivers do not keep sending empty receives. The other queues are still short-polled,
+ * and a message arriving at them waits for the long-poll to return:</p>
+ * 
+ * <ul>
+ *   <li>{@link Mode#WEIGHTED}: the first queue is chosen by smooth weighted round-robin, so each queue gets its
+ *     share of the first pick in proportion to its weight.</li>
+ *   <li>{@link Mode#STRICT_PRIORITY}: queues are tried in the order they were added. A queue which has not been
+ *     polled for {@link #setMaxSkips(int) maxSkips} rounds is tried first, which bounds its starvation.</li>
+ * </ul>
+ * 
+ * <p>Queues which are throttled are skipped until their backoff delay elapses. When a whole round receives no
+ * message, receivers back off by {@link #getPollingController() pollingController}.</p>
+ * 
+ * <p>The heartbeat, the deleter and the batcher of each queue are not shared, so each queue keeps up to three
+ * threads of its own (a scheduler thread each, the batcher only for a batch handler). This suits a handful of
+ * queues rather than hundreds.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class MultiQueuePoller implements DisposableBean {
+	
+	/**
+	 * Order in which queues are polled.
+	 */
+	public enum Mode {
+		
+		/** Smooth weighted round-robin. */
+		WEIGHTED,
+		
+		/** Registration order, with bounded starvation. */
+		STRICT_PRIORITY
+	}
+	
+	
+	private final List<QueueEntry> queues = new CopyOnWriteArrayList<>();
+	
+	private final ResizableSemaphore permits = new ResizableSemaphore(100);
+	
+	// receivers of the current generation
+	private final Set<Thread> receivers = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Delays rounds while all queues are idle.
+	 */
+	@Getter
+	private final AdaptivePollingController pollingController = new AdaptivePollingController();
+	
+	/**
+	 * Executor shared by the handlers of all queues.
+	 */
+	@Getter
+	private ExecutorService executor = SqsMessagePoller.newPlatformThreadExecutor();
+	
+	// whether executor is created by this poller, and shut down by it
+	private boolean ownedExecutor = true;
+	
+	@Getter
+	@Setter
+	private Mode mode = Mode.WEIGHTED;
+	
+	/**
+	 * Number of rounds a queue may be left unpolled in {@link Mode#STRICT_PRIORITY} mode.
+	 */
+	@Getter
+	@Setter
+	private int maxSkips = 10;
+	
+	/**
+	 * Number of concurrent receivers.
+	 */
+	@Getter
+	private int receiverCount = 1;
+	
+	/**
+	 * Maximum number of messages to receive per round.
+	 */
+	@Getter
+	@Setter
+	private int maxNumberOfMessages = 10;
+	
+	private volatile boolean running;
+	
+	// incremented by stop(), so that receivers of the previous start retire even if restarted quickly
+	private volatile int generation;
+	
+	
+	/**
+	 * Add a queue with weight {@code 1}.
+	 * 
+	 * @param poller poller of the queue, which must not be started
+	 */
+	public void addQueue(SqsMessagePoller poller) {
+		addQueue(poller, 1);
+	}
+	
+	/**
+	 * Add a queue. In {@link Mode#STRICT_PRIORITY} mode, queues added earlier have higher priority and the weight
+	 * is ignored. The poller's executor and handler permits are replaced by the shared ones.
+	 * 
+	 * @param poller poller of the queue, which must not be started
+	 * @param weight weight of the queue in {@link Mode#WEIGHTED} mode
+	 * @throws IllegalArgumentException if the weight is less than 1
+	 */
+	public void addQueue(SqsMessagePoller poller, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be positive: " + weight);
+		}
+		poller.setExecutor(executor);
+		poller.setPermits(permits);
+		queues.add(new QueueEntry(poller, weight));
+	}
+	
+	/**
+	 * Set the executor shared by the handlers of all queues. The caller is responsible for shutting it down.
+	 * 
+	 * @param executor the executor
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		ExecutorService previous = this.executor;
+		boolean previousOwned = ownedExecutor;
+		this.executor = executor;
+		ownedExecutor = false;
+		queues.forEach(q -> q.poller.setExecutor(executor));
+		if (previousOwned && previous != executor) {
+			previous.shutdown();
+		}
+	}
+	
+	/**
+	 * Returns the maximum number of concurrently running handlers of all queues.
+	 * 
+	 * @return the maximum number of concurrently running handlers
+	 */
+	public int getMaxConcurrency() {
+		return permits.getLimit();
+	}
+	
+	/**
+	 * Set the maximum number of concurrently running handlers of all queues.
+	 * 
+	 * @param maxConcurrency the maximum number of concurrently running handlers
+	 * @throws IllegalArgumentException if the argument is less than 1
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		permits.setLimit(maxConcurrency);
+	}
+	
+	/**
+	 * Set the number of concurrent receivers. This can be changed while receivers are running;
+	 * excess receivers stop after their current round.
+	 * 
+	 * @param receiverCount the number of receivers
+	 * @throws IllegalArgumentException if the argument is less than 1
+	 */
+	public synchronized void setReceiverCount(int receiverCount) {
+		if (receiverCount < 1) {
+			throw new IllegalArgumentException("receiverCount must be positive: " + receiverCount);
+		}
+		this.receiverCount = receiverCount;
+		if (running) {
+			startReceivers();
+		}
+	}
+	
+	/**
+	 * Returns the number of live receivers.
+	 * 
+	 * @return the number of live receivers
+	 */
+	public int getActiveReceiverCount() {
+		return receivers.size();
+	}
+	
+	/**
+	 * Returns the number of running handlers of all queues.
+	 * 
+	 * @return the number of running handlers
+	 */
+	public int getRunningCount() {
+		return permits.getHeldPermits();
+	}
+	
+	/**
+	 * Start receivers.
+	 */
+	public synchronized void start() {
+		running = true;
+		startReceivers();
+	}
+	
+	/**
+	 * Stop receivers. Running handlers are not interrupted.
+	 * 
+	 * <p>This does not wait for receivers blocked in a long-poll. They retire when the long-poll returns, even if
+	 * {@link #start()} is called again in the meantime, and are not counted by {@link #getActiveReceiverCount()}.</p>
+	 */
+	public synchronized void stop() {
+		running = false;
+		generation++;
+		receivers.forEach(Thread::interrupt);
+		receivers.clear();
+	}
+	
+	@Override
+	public synchronized void destroy() {
+		stop();
+		queues.forEach(q -> q.poller.destroy());
+		if (ownedExecutor) {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Receive one round: reserve permits, and poll queues in order until the permits are used up. Messages received
+	 * after the receiver is stopped are released instead of dispatched.
+	 * 
+	 * @param receiverGeneration the generation of the receiver
+	 * @throws InterruptedException if interrupted while waiting for permits
+	 */
+	void receiveRound(int receiverGeneration) throws InterruptedException {
+		permits.acquire();
+		int remaining = 1;
+		while (remaining < maxNumberOfMessages && permits.tryAcquire()) {
+			remaining++;
+		}
+		boolean received = false;
+		boolean longPoll = pollingController.getConsecutiveEmptyReceives() > 0;
+		try {
+			for (QueueEntry queue : order()) {
+				if (remaining == 0) {
+					queue.skipped++;
+					continue;
+				}
+				if (queue.isBackingOff()) {
+					continue;
+				}
+				queue.skipped = 0;
+				List<Message> messages;
+				int waitTime = longPoll ? queue.poller.getWaitTimeSeconds() : 0;
+				longPoll = false;
+				try {
+					messages = queue.poller.receiveMessages(remaining, waitTime);
+				} catch (RuntimeException e) {
+					log.error("Failed to receive SQS messages from {}", queue.poller.getWorkerQueueUrl(), e);
+					messages = Collections.emptyList();
+				}
+				queue.updateBackoff();
+				if (isStopped(receiverGeneration) && messages.isEmpty() == false) {
+					queue.poller.releaseLate(messages);
+					break; // the other queues are not polled any more
+				}
+				remaining -= messages.size();
+				if (messages.isEmpty() == false) {
+					received = true;
+					queue.poller.dispatch(messages);
+				}
+			}
+		} finally {
+			permits.release(remaining);
+		}
+		if (received) {
+			pollingController.onMessagesReceived();
+		} else {
+			pollingController.onEmptyReceive();
+		}
+	}
+	
+	/**
+	 * Returns the queues in the order to poll in this round.
+	 * 
+	 * @return the ordered queues
+	 */
+	synchronized List<QueueEntry> order() {
+		List<QueueEntry> ordered = new ArrayList<>(queues);
+		if (ordered.isEmpty()) {
+			return ordered;
+		}
+		if (mode == Mode.STRICT_PRIORITY) {
+			List<QueueEntry> starving = new ArrayList<>();
+			for (QueueEntry queue : ordered) {
+				if (queue.skipped >= maxSkips) {
+					starving.add(queue);
+				}
+			}
+			ordered.removeAll(starving);
+			starving.addAll(ordered);
+			return starving;
+		}
+		int total = 0;
+		QueueEntry best = null;
+		for (QueueEntry queue : ordered) {
+			queue.current += queue.weight;
+			total += queue.weight;
+			if (best == null || queue.current > best.current) {
+				best = queue;
+			}
+		}
+		best.current -= total;
+		ordered.remove(best);
+		ordered.sort((a, b) -> Integer.compare(b.weight, a.weight));
+		ordered.add(0, best);
+		return ordered;
+	}
+	
+	private synchronized void startReceivers() {
+		int current = generation;
+		for (int i = receivers.size(); i < receiverCount; i++) {
+			Thread receiver = Thread.ofPlatform().daemon().name("sqs-multi-receiver-" + i)
+				.uncaughtExceptionHandler(SqsMessagePoller::logUncaughtException)
+				.unstarted(() -> receive(current));
+			receivers.add(receiver);
+			receiver.start();
+		}
+	}
+	
+	private synchronized boolean retire(int receiverGeneration) {
+		if (running && receiverGeneration == generation && receivers.size() <= receiverCount) {
+			return false;
+		}
+		receivers.remove(Thread.currentThread());
+		return true;
+	}
+	
+	// stop() always increments the generation
+	private boolean isStopped(int receiverGeneration) {
+		return receiverGeneration != generation;
+	}
+	
+	private void receive(int receiverGeneration) {
+		try {
+			while (retire(receiverGeneration) == false) {
+				pollingController.pause();
+				receiveRound(receiverGeneration);
+			}
+		} catch (InterruptedException e) {
+			log.debug("Receiver was interrupted");
+		} finally {
+			receivers.remove(Thread.currentThread());
+		}
+	}
+	
+	
+	/**
+	 * A queue and its scheduling state.
+	 */
+	static final class QueueEntry {
+		
+		@Getter
+		private final SqsMessagePoller poller;
+		
+		private final int weight;
+		
+		private int current;
+		
+		private volatile int skipped;
+		
+		private volatile long retryAt;
+		
+		
+		QueueEntry(SqsMessagePoller poller, int weight) {
+			this.poller = poller;
+			this.weight = weight;
+		}
+		
+		boolean isBackingOff() {
+			return System.currentTimeMillis() < retryAt;
+		}
+		
+		void updateBackoff() {
+			AdaptivePollingController controller = poller.getPollingController();
+			AdaptivePollingController.State state = controller.getState();
+			if (state == AdaptivePollingController.State.THROTTLED || state == AdaptivePollingController.State.FAILING) {
+				retryAt = System.currentTimeMillis() + controller.getCurrentDelay();
+			} else {
+				retryAt = 0;
+			}
+		}
+	}
+}
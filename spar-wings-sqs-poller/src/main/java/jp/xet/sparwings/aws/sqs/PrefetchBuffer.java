@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+import lombok.Getter;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Bounded buffer of messages received ahead of handler capacity.
+ * 
+ * <p>A prefetched message must be handled before it is {@link #getMaxAge() maxAge} milliseconds old, because its
+ * visibility timeout runs from the receive. The effective {@link #getCapacity() capacity} is therefore tuned by
+ * Little's law: it is the number of messages the handlers can start within {@code maxAge}, i.e.
+ * {@code concurrency * maxAge / averageHandlingTime}, clamped between {@code 1} and {@link #getMaxSize() maxSize}.
+ * Until the first handling time is recorded, the capacity is {@code maxSize}.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class PrefetchBuffer {
+	
+	private static final double SMOOTHING = 0.2;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition notEmpty = lock.newCondition();
+	
+	private final Condition notFull = lock.newCondition();
+	
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	
+	private final IntSupplier concurrency;
+	
+	private final LongAdder staleCount = new LongAdder();
+	
+	// guarded by lock
+	private boolean closed;
+	
+	/**
+	 * Upper bound of the capacity.
+	 */
+	@Getter
+	private final int maxSize;
+	
+	/**
+	 * Maximum age in milliseconds of a prefetched message.
+	 */
+	@Getter
+	private final long maxAge;
+	
+	/**
+	 * Average handling time in nanoseconds, or {@code 0} if not recorded yet.
+	 */
+	@Getter
+	private volatile double averageHandlingTime;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param maxSize upper bound of the capacity
+	 * @param maxAge maximum age in milliseconds of a prefetched message
+	 * @param concurrency supplier of the maximum number of concurrent handlers
+	 */
+	public PrefetchBuffer(int maxSize, long maxAge, IntSupplier concurrency) {
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		this.concurrency = concurrency;
+	}
+	
+	/**
+	 * Returns the effective capacity.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		double average = averageHandlingTime;
+		if (average <= 0) {
+			return maxSize;
+		}
+		double capacity = Math.ceil(concurrency.getAsInt() * TimeUnit.MILLISECONDS.toNanos(maxAge) / average);
+		return (int) Math.max(1, Math.min(maxSize, capacity));
+	}
+	
+	/**
+	 * Returns the number of buffered messages.
+	 * 
+	 * @return the number of buffered messages
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of messages removed because they became stale.
+	 * 
+	 * @return the number of stale messages
+	 */
+	public long getStaleCount() {
+		return staleCount.sum();
+	}
+	
+	/**
+	 * Record the time taken to handle a message.
+	 * 
+	 * @param nanos handling time in nanoseconds
+	 */
+	public void recordHandlingTime(long nanos) {
+		double average = averageHandlingTime;
+		if (average <= 0) {
+			averageHandlingTime = nanos;
+		} else {
+			averageHandlingTime = average + SMOOTHING * (nanos - average);
+		}
+	}
+	
+	/**
+	 * Wait until the buffer has room.
+	 * 
+	 * @param max the maximum number of messages to return
+	 * @return the number of messages which can be added, between {@code 1} and {@code max}
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int awaitCapacity(int max) throws InterruptedException {
+		lock.lock();
+		try {
+			int room = getCapacity() - entries.size();
+			while (room <= 0) {
+				notFull.await(100, TimeUnit.MILLISECONDS); // the capacity changes without signal
+				room = getCapacity() - entries.size();
+			}
+			return Math.min(max, room);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Add received messages, unless the buffer is {@link #close() closed}.
+	 * 
+	 * @param messages received messages
+	 * @param receivedAt time in milliseconds when the messages were received
+	 * @return {@code false} if the buffer is closed and the messages are not added
+	 */
+	public boolean addAll(List<Message> messages, long receivedAt) {
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			messages.forEach(m -> entries.add(new Entry(m, receivedAt)));
+			if (messages.isEmpty() == false) {
+				notEmpty.signalAll();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove the oldest message, waiting up to the timeout.
+	 * 
+	 * @param timeout the timeout
+	 * @param unit the unit of the timeout
+	 * @return the oldest entry, or {@code null} if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Entry poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (entries.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Entry entry = entries.poll();
+			notFull.signalAll();
+			return entry;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove the messages which are {@link #getMaxAge() maxAge} old or older.
+	 * 
+	 * @param now current time in milliseconds
+	 * @return the stale messages
+	 */
+	public List<Message> drainStale(long now) {
+		List<Message> stale = new ArrayList<>();
+		lock.lock();
+		try {
+			while (entries.isEmpty() == false && entries.peek().isStale(now)) {
+				stale.add(entries.poll().getMessage());
+			}
+			if (stale.isEmpty() == false) {
+				notFull.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		staleCount.add(stale.size());
+		return stale;
+	}
+	
+	/**
+	 * Remove all messages.
+	 * 
+	 * @return the removed messages
+	 */
+	public List<Message> drainAll() {
+		List<Message> all = new ArrayList<>();
+		lock.lock();
+		try {
+			entries.forEach(e -> all.add(e.getMessage()));
+			entries.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return all;
+	}
+	
+	/**
+	 * Remove all messages and close the buffer, so that messages received afterwards are not added.
+	 * 
+	 * @return the removed messages
+	 */
+	public List<Message> close() {
+		lock.lock();
+		try {
+			closed = true;
+			return drainAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Prefetched message.
+	 */
+	public final class Entry {
+		
+		@Getter
+		private final Message message;
+		
+		/**
+		 * Time in milliseconds when the message was received.
+		 */
+		@Getter
+		private final long receivedAt;
+		
+		
+		Entry(Message message, long receivedAt) {
+			this.message = message;
+			this.receivedAt = receivedAt;
+		}
+		
+		/**
+		 * Returns whether the message is {@link PrefetchBuffer#getMaxAge() maxAge} old or older, and must be
+		 * released instead of handled.
+		 * 
+		 * @param now current time in milliseconds
+		 * @return {@code true} if the message is stale
+		 */
+		public boolean isStale(long now) {
+			return now - receivedAt >= maxAge;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+
+/**
+ * Scales the receivers and handler permits of a {@link SqsMessagePoller} by the depth of its queue.
+ * 
+ * <p>Every {@link #setInterval(long) interval} milliseconds, {@code ApproximateNumberOfMessages} (backlog) and
+ * {@code ApproximateNumberOfMessagesNotVisible} (in flight) are read by {@code GetQueueAttributes}. The desired
+ * concurrency is {@code inFlight + ceil(backlog / backlogPerHandler)}, and the desired number of receivers is the
+ * number of receives needed to fill it. Both are clamped between their minimum and maximum. Scaling up is applied
+ * at once, while scaling down is limited to halving per evaluation so that a short lull does not drop capacity
+ * needed by the next burst.</p>
+ * 
+ * <p>The attributes are queue-wide: when several nodes consume the queue, the maximums should be set per node.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class QueueDepthAutoscaler {
+	
+	private final SqsMessagePoller poller;
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-queue-depth-autoscaler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private final LongAdder scaleUpCount = new LongAdder();
+	
+	private final LongAdder scaleDownCount = new LongAdder();
+	
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * Milliseconds between evaluations.
+	 */
+	@Getter
+	@Setter
+	private long interval = 30000;
+	
+	@Getter
+	private int minConcurrency = 1;
+	
+	@Getter
+	private int maxConcurrency = 100;
+	
+	@Getter
+	private int minReceivers = 1;
+	
+	@Getter
+	private int maxReceivers = 10;
+	
+	/**
+	 * Number of queued messages a handler permit is added for.
+	 */
+	@Getter
+	@Setter
+	private int backlogPerHandler = 1;
+	
+	/**
+	 * {@code ApproximateNumberOfMessages} at the last evaluation.
+	 */
+	@Getter
+	private volatile long backlog;
+	
+	/**
+	 * {@code ApproximateNumberOfMessagesNotVisible} at the last evaluation.
+	 */
+	@Getter
+	private volatile long inFlight;
+	
+	/**
+	 * The concurrency applied at the last evaluation.
+	 */
+	@Getter
+	private volatile int concurrency;
+	
+	/**
+	 * The number of receivers applied at the last evaluation.
+	 */
+	@Getter
+	private volatile int receivers;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param poller poller to scale
+	 */
+	public QueueDepthAutoscaler(SqsMessagePoller poller) {
+		this.poller = poller;
+		concurrency = poller.getMaxConcurrency();
+		receivers = poller.getReceiverCount();
+	}
+	
+	/**
+	 * Start periodic evaluations.
+	 */
+	public synchronized void start() {
+		if (task == null && scheduler.isShutdown() == false) {
+			task = scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					evaluate();
+				} catch (Exception e) { // NOPMD - keep the autoscaler alive
+					log.error("Failed to scale {}", poller.getWorkerQueueUrl(), e);
+				}
+			}, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stop periodic evaluations. The autoscaler cannot be started again.
+	 */
+	public synchronized void stop() {
+		scheduler.shutdownNow();
+	}
+	
+	/**
+	 * Read the queue depth and scale the poller.
+	 */
+	public synchronized void evaluate() {
+		Map<String, String> attributes;
+		try {
+			attributes = poller.getSqs().getQueueAttributes(new GetQueueAttributesRequest(poller.getWorkerQueueUrl())
+				.withAttributeNames(QueueAttributeName.ApproximateNumberOfMessages,
+						QueueAttributeName.ApproximateNumberOfMessagesNotVisible))
+				.getAttributes();
+		} catch (RuntimeException e) {
+			log.warn("Failed to get queue attributes of {}: {}", poller.getWorkerQueueUrl(), e.getMessage());
+			return;
+		}
+		backlog = parse(attributes.get(QueueAttributeName.ApproximateNumberOfMessages.toString()));
+		inFlight = parse(attributes.get(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString()));
+		
+		long demand = inFlight + (backlog + backlogPerHandler - 1) / Math.max(1, backlogPerHandler);
+		int desiredConcurrency = damp(poller.getMaxConcurrency(),
+				clamp(demand, minConcurrency, maxConcurrency), maxConcurrency);
+		int batch = Math.max(1, poller.getMaxNumberOfMessages());
+		int desiredReceivers = damp(poller.getReceiverCount(),
+				clamp((desiredConcurrency + batch - 1) / batch, minReceivers, maxReceivers), maxReceivers);
+		
+		if (desiredConcurrency > concurrency || desiredReceivers > receivers) {
+			scaleUpCount.increment();
+		} else if (desiredConcurrency < concurrency || desiredReceivers < receivers) {
+			scaleDownCount.increment();
+		}
+		if (desiredConcurrency != concurrency || desiredReceivers != receivers) {
+			log.info("Scale {}: backlog={} inFlight={} concurrency={}->{} receivers={}->{}",
+					poller.getWorkerQueueUrl(), backlog, inFlight,
+					concurrency, desiredConcurrency, receivers, desiredReceivers);
+		}
+		poller.setMaxConcurrency(desiredConcurrency);
+		poller.setReceiverCount(desiredReceivers);
+		concurrency = desiredConcurrency;
+		receivers = desiredReceivers;
+	}
+	
+	/**
+	 * Set the minimum concurrency.
+	 * 
+	 * @param minConcurrency the minimum concurrency
+	 * @throws IllegalArgumentException if the argument is less than 1 or greater than the maximum concurrency
+	 */
+	public synchronized void setMinConcurrency(int minConcurrency) {
+		validate("concurrency", minConcurrency, maxConcurrency);
+		this.minConcurrency = minConcurrency;
+	}
+	
+	/**
+	 * Set the maximum concurrency.
+	 * 
+	 * @param maxConcurrency the maximum concurrency
+	 * @throws IllegalArgumentException if the argument is less than the minimum concurrency
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		validate("concurrency", minConcurrency, maxConcurrency);
+		this.maxConcurrency = maxConcurrency;
+	}
+	
+	/**
+	 * Set the minimum number of receivers.
+	 * 
+	 * @param minReceivers the minimum number of receivers
+	 * @throws IllegalArgumentException if the argument is less than 1 or greater than the maximum number of receivers
+	 */
+	public synchronized void setMinReceivers(int minReceivers) {
+		validate("receivers", minReceivers, maxReceivers);
+		this.minReceivers = minReceivers;
+	}
+	
+	/**
+	 * Set the maximum number of receivers.
+	 * 
+	 * @param maxReceivers the maximum number of receivers
+	 * @throws IllegalArgumentException if the argument is less than the minimum number of receivers
+	 */
+	public synchronized void setMaxReceivers(int maxReceivers) {
+		validate("receivers", minReceivers, maxReceivers);
+		this.maxReceivers = maxReceivers;
+	}
+	
+	/**
+	 * Returns the number of evaluations which scaled up.
+	 * 
+	 * @return the number of scale-ups
+	 */
+	public long getScaleUpCount() {
+		return scaleUpCount.sum();
+	}
+	
+	/**
+	 * Returns the number of evaluations which scaled down.
+	 * 
+	 * @return the number of scale-downs
+	 */
+	public long getScaleDownCount() {
+		return scaleDownCount.sum();
+	}
+	
+	private static void validate(String name, int min, int max) {
+		if (min < 1) {
+			throw new IllegalArgumentException("min " + name + " must be positive: " + min);
+		}
+		if (min > max) {
+			throw new IllegalArgumentException("min " + name + " must not exceed max: " + min + " > " + max);
+		}
+	}
+	
+	private static long parse(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	private static int clamp(long value, int min, int max) {
+		return (int) Math.max(min, Math.min(max, value));
+	}
+	
+	private static int damp(int current, int desired, int max) {
+		return Math.min(max, Math.max(desired, current / 2));
+	}
+}
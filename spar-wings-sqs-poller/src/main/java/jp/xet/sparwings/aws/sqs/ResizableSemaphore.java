@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link Semaphore} whose number of permits can be changed while permits are held.
+ * 
+ * <p>When the limit is reduced below the number of held permits, {@link #availablePermits()} becomes negative and
+ * no permit is granted until enough permits are released.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+class ResizableSemaphore extends Semaphore {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private int limit;
+	
+	
+	ResizableSemaphore(int limit) {
+		super(limit);
+		this.limit = limit;
+	}
+	
+	/**
+	 * Returns the number of permits.
+	 * 
+	 * @return the limit
+	 */
+	synchronized int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * Change the number of permits.
+	 * 
+	 * @param newLimit the limit
+	 * @throws IllegalArgumentException if the limit is less than 1
+	 */
+	synchronized void setLimit(int newLimit) {
+		if (newLimit < 1) {
+			throw new IllegalArgumentException("limit must be positive: " + newLimit);
+		}
+		int delta = newLimit - limit;
+		limit = newLimit;
+		if (delta > 0) {
+			release(delta);
+		} else if (delta < 0) {
+			reducePermits(-delta);
+		}
+	}
+	
+	/**
+	 * Returns the number of held permits.
+	 * 
+	 * @return the number of held permits
+	 */
+	int getHeldPermits() {
+		return getLimit() - availablePermits();
+	}
+}
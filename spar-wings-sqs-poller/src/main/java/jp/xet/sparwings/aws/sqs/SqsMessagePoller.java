@@ -16,12 +16,16 @@
 package jp.xet.sparwings.aws.sqs;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
@@ -30,17 +34,17 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.util.DigestUtils;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.OverLimitException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
 /**
  * SQS をポーリングして受け取ったメッセージに対してハンドラの処理を行う
@@ -50,7 +54,7 @@ import com.amazonaws.services.sqs.model.ReceiveMessageResult;
  * @author daisuke
  */
 @Slf4j
-public class SqsMessagePoller { // NOPMD - cc
+public class SqsMessagePoller implements DisposableBean { // NOPMD - cc
 	
 	@Getter
 	private final AmazonSQS sqs;
@@ -64,24 +68,120 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Getter
 	private final Consumer<Message> messageHandler;
 	
+	/**
+	 * Accumulates messages into batches when this poller has a {@link BatchMessageHandler}, otherwise {@code null}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final MessageBatcher batcher;
+	
+	/**
+	 * Buffers acknowledgements and deletes them by {@code DeleteMessageBatch}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final BatchingMessageDeleter deleter;
+	
+	/**
+	 * Extends the visibility timeout of in-flight messages by {@code ChangeMessageVisibilityBatch}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final VisibilityHeartbeat heartbeat;
+	
+	/**
+	 * Delays receives while the queue is idle or SQS throttles receives.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private final AdaptivePollingController pollingController = new AdaptivePollingController();
+	
 	/**
 	 * メッセージハンドラーの名称（ログ出力用）
-	 *
+	 * 
 	 * <p>この SqsMessagePoller のインスタンスが具体的にどのような処理を行うのかが判断できる文字列を指定します</p>
 	 */
 	private String handlerName;
 	
+	@Getter
+	private volatile ExecutorService executor = newPlatformThreadExecutor();
+	
+	// whether executor is created by this poller, and shut down by it
+	private volatile boolean ownedExecutor = true;
+	
+	/**
+	 * Whether handlers run on virtual threads.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private boolean virtualThreads;
+	
+	/**
+	 * Whether messages of the same message group are handled sequentially.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private boolean fifo;
+	
+	private final ConcurrentHashMap<String, CompletableFuture<Void>> groupTails = new ConcurrentHashMap<>();
+	
+	// completions of submitted messages, awaited by destroy()
+	private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+	
+	private volatile ResizableSemaphore permits = new ResizableSemaphore(100);
+	
+	// receivers of the current generation
+	private final Set<Thread> receivers = ConcurrentHashMap.newKeySet();
+	
+	private volatile boolean running;
+	
+	// incremented by stop(), so that receivers of the previous start retire even if restarted quickly
+	private volatile int generation;
+	
+	private Thread dispatcher;
+	
+	/**
+	 * Buffer of prefetched messages while receivers are started with {@link #setPrefetchSize(int) prefetchSize},
+	 * otherwise {@code null}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private volatile PrefetchBuffer prefetchBuffer;
+	
+	/**
+	 * Maximum number of messages which receivers prefetch ahead of handler permits, or {@code 0} to receive only
+	 * for reserved permits. This takes effect on the next {@link #start()}.
+	 * 
+	 * @since 0.38
+	 */
 	@Getter
 	@Setter
-	private ExecutorService executor = Executors.newCachedThreadPool(r -> {
-		Thread thread = new Thread(r);
-		thread.setUncaughtExceptionHandler((t, e) -> {
-			synchronized (SqsMessagePoller.class) {
-				log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
-			}
-		});
-		return thread;
-	});
+	private int prefetchSize;
+	
+	/**
+	 * Fraction of {@link #getVisibilityTimeout() visibilityTimeout} which a prefetched message may wait before its
+	 * handler starts.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private double prefetchAgeRatio = 0.5;
+	
+	/**
+	 * Number of concurrent long-poll receivers started by {@link #start()}.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	private int receiverCount = 1;
 	
 	@Getter
 	@Setter
@@ -99,47 +199,102 @@ public class SqsMessagePoller { // NOPMD - cc
 	@Setter
 	private int maxNumberOfMessages = 10;
 	
+	/**
+	 * Milliseconds which {@link #destroy()} waits for running handlers before closing the deleter.
+	 * 
+	 * @since 0.38
+	 */
+	@Getter
+	@Setter
+	private long shutdownTimeout = 30000;
+	
 	
 	/**
 	 * コンストラクタ
 	 */
 	public SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl, Consumer<Message> messageHandler,
 			String handlerName) {
-		this.sqs = sqs;
-		this.retry = retry;
-		this.workerQueueUrl = workerQueueUrl;
-		this.messageHandler = messageHandler;
-		this.handlerName = handlerName;
+		this(sqs, retry, workerQueueUrl, messageHandler, null, handlerName);
 	}
 	
 	/**
 	 * コンストラクタ
-	 *
+	 * 
 	 * @deprecated handlerName を初期化するコンストラクタの利用を推奨
 	 */
 	public SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
 			Consumer<Message> messageHandler) {
+		this(sqs, retry, workerQueueUrl, messageHandler, null, null);
+	}
+	
+	private SqsMessagePoller(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			Consumer<Message> messageHandler, BatchMessageHandler batchHandler, String handlerName) {
 		this.sqs = sqs;
 		this.retry = retry;
 		this.workerQueueUrl = workerQueueUrl;
 		this.messageHandler = messageHandler;
+		this.handlerName = handlerName;
+		deleter = new BatchingMessageDeleter(sqs, workerQueueUrl);
+		heartbeat = new VisibilityHeartbeat(sqs, workerQueueUrl);
+		if (batchHandler != null) {
+			batcher = new MessageBatcher(batchHandler, this::getExecutor);
+		} else {
+			batcher = null;
+		}
+	}
+	
+	/**
+	 * Create poller which handles messages in batches.
+	 * 
+	 * <p>Messages are accumulated by {@link #getBatcher() batcher}, and each message still holds a handler
+	 * permit and has its visibility extended until its batch is handled. Only the messages reported as failed
+	 * (or all messages of a batch whose handler threw an exception) are left for redelivery.</p>
+	 * 
+	 * @param sqs SQS client
+	 * @param retry retry template for SQS calls
+	 * @param workerQueueUrl URL of the queue to poll
+	 * @param batchHandler batch handler
+	 * @param handlerName name of the handler for logging
+	 * @return the poller
+	 * @since 0.38
+	 */
+	public static SqsMessagePoller forBatchHandler(AmazonSQS sqs, RetryTemplate retry, String workerQueueUrl,
+			BatchMessageHandler batchHandler, String handlerName) {
+		return new SqsMessagePoller(sqs, retry, workerQueueUrl, null, batchHandler, handlerName);
 	}
 	
 	/**
-	 * TODO for daisuke
+	 * Receive one batch of messages and wait for all handlers of the batch to complete.
+	 * 
+	 * <p>Either schedule this method or call {@link #start()}, not both. While
+	 * {@link #getPollingController() pollingController} delays receives, this method returns immediately instead of
+	 * blocking the scheduler thread.</p>
 	 * 
 	 * @since 0.3
 	 */
 	@Scheduled(fixedDelay = 1) // SUPPRESS CHECKSTYLE bug?
 	public void loop() { // NOPMD - cc
+		if (pollingController.isReceiveDue() == false) {
+			return;
+		}
 		try {
-			List<Message> messages = receiveMessages();
+			List<Message> messages = receiveMessages(maxNumberOfMessages);
 			if (messages.isEmpty()) {
 				log.trace("No SQS message received for {}", handlerName);
 				return;
 			}
 			log.debug("{} SQS messages are received for {}", messages.size(), handlerName);
-			messages.stream().parallel().forEach(this::handleMessage);
+			List<CompletableFuture<Void>> futures = new ArrayList<>(messages.size());
+			for (Message message : messages) {
+				futures.add(handleMessage(message));
+			}
+			if (batcher != null) {
+				batcher.endOfReceive();
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Polling for {} was interrupted", handlerName);
 		} catch (Throwable e) { // NOPMD
 			log.error("Exception occurred while processing Handler: {}. Error Message: {}", handlerName, e.getMessage(),
 					e);
@@ -147,78 +302,595 @@ public class SqsMessagePoller { // NOPMD - cc
 		}
 	}
 	
-	private List<Message> receiveMessages() {
-		ReceiveMessageResult receiveMessageResult;
+	/**
+	 * Start {@link #setReceiverCount(int) receiverCount} receivers, each of which long-polls the queue
+	 * continuously.
+	 * 
+	 * <p>Unlike {@link #loop()}, a receiver does not wait for the received batch to complete. Before each
+	 * long-poll it reserves up to {@link #getMaxNumberOfMessages() maxNumberOfMessages} handler permits, so that
+	 * polling pauses while {@link #getMaxConcurrency() maxConcurrency} handlers are running and resumes as soon as
+	 * any of them completes.</p>
+	 * 
+	 * <p>When {@link #setPrefetchSize(int) prefetchSize} is positive, receivers instead keep a
+	 * {@link PrefetchBuffer} topped up regardless of handler permits, and a dispatcher thread hands buffered
+	 * messages to handlers as permits become available, so that handlers do not wait for a receive round trip.
+	 * A message which has waited in the buffer for {@link #setPrefetchAgeRatio(double) prefetchAgeRatio} of
+	 * {@link #getVisibilityTimeout() visibilityTimeout} is released with visibility timeout {@code 0} instead of
+	 * being handled, as are buffered messages on {@link #stop()}. Messages which a receiver gets from a long-poll
+	 * returning after {@link #stop()} are released in the same way, with or without prefetching.</p>
+	 * 
+	 * @since 0.38
+	 */
+	public synchronized void start() {
+		running = true;
+		if (prefetchSize > 0 && dispatcher == null) {
+			PrefetchBuffer buffer = new PrefetchBuffer(prefetchSize,
+					(long) (visibilityTimeout * 1000L * prefetchAgeRatio), this::getMaxConcurrency);
+			prefetchBuffer = buffer;
+			int current = generation;
+			dispatcher = newThreadBuilder().name("sqs-dispatcher-" + handlerName)
+				.uncaughtExceptionHandler(SqsMessagePoller::logUncaughtException)
+				.start(() -> dispatchPrefetched(buffer, current));
+		}
+		startReceivers();
+	}
+	
+	/**
+	 * Stop all receivers. Running handlers are not interrupted.
+	 * 
+	 * <p>This does not wait for receivers blocked in a long-poll. They retire when the long-poll returns, even if
+	 * {@link #start()} is called again in the meantime, and are not counted by {@link #getActiveReceiverCount()}.</p>
+	 * 
+	 * @since 0.38
+	 */
+	public synchronized void stop() {
+		running = false;
+		generation++;
+		receivers.forEach(Thread::interrupt);
+		receivers.clear();
+		if (dispatcher != null) {
+			dispatcher.interrupt();
+			dispatcher = null;
+		}
+		prefetchBuffer = null; // closed by the dispatcher on exit
+	}
+	
+	/**
+	 * Returns whether receivers are started.
+	 * 
+	 * @return {@code true} if receivers are started
+	 * @since 0.38
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Set the number of concurrent long-poll receivers. This can be changed while receivers are running;
+	 * excess receivers stop after their current long-poll.
+	 * 
+	 * @param receiverCount the number of receivers
+	 * @throws IllegalArgumentException if the argument is less than 1
+	 * @since 0.38
+	 */
+	public synchronized void setReceiverCount(int receiverCount) {
+		if (receiverCount < 1) {
+			throw new IllegalArgumentException("receiverCount must be positive: " + receiverCount);
+		}
+		this.receiverCount = receiverCount;
+		if (running) {
+			startReceivers();
+		}
+	}
+	
+	/**
+	 * Returns the number of live receivers.
+	 * 
+	 * @return the number of live receivers
+	 * @since 0.38
+	 */
+	public int getActiveReceiverCount() {
+		return receivers.size();
+	}
+	
+	/**
+	 * Set the executor to run handlers. The caller is responsible for shutting it down.
+	 * 
+	 * <p>The default executor created by this poller is shut down after its running handlers complete.</p>
+	 * 
+	 * @param executor the executor
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		ExecutorService previous = this.executor;
+		boolean previousOwned = ownedExecutor;
+		this.executor = executor;
+		ownedExecutor = false;
+		if (previousOwned && previous != executor) {
+			previous.shutdown();
+		}
+	}
+	
+	/**
+	 * Run handlers on virtual threads instead of the platform thread pool.
+	 * 
+	 * <p>This replaces the default {@link #getExecutor() executor} with a virtual-thread-per-task executor (or a
+	 * cached thread pool when {@code false} is given), and shuts down the replaced one after its running handlers
+	 * complete. Receivers also run on virtual threads. The number of concurrent handlers is still bounded by
+	 * {@link #setMaxConcurrency(int) maxConcurrency}.</p>
+	 * 
+	 * @param virtualThreads {@code true} to use virtual threads
+	 * @throws IllegalStateException if the executor is set by {@link #setExecutor(ExecutorService)}
+	 * @since 0.38
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads == this.virtualThreads) {
+			return;
+		}
+		if (ownedExecutor == false) {
+			throw new IllegalStateException("Handlers run on the executor given by setExecutor");
+		}
+		ExecutorService previous = executor;
+		if (virtualThreads) {
+			executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+				.name("sqs-handler-", 0)
+				.uncaughtExceptionHandler(SqsMessagePoller::logUncaughtException)
+				.factory());
+		} else {
+			executor = newPlatformThreadExecutor();
+		}
+		this.virtualThreads = virtualThreads;
+		previous.shutdown();
+	}
+	
+	/**
+	 * Handle messages of the same {@code MessageGroupId} sequentially, in the order they were received, while
+	 * messages of different groups run in parallel. This is intended for FIFO queues.
+	 * 
+	 * <p>Each group has a chain of handlers: a message is handled after the previous message of its group has
+	 * completed. When a handler fails, the following messages of the group which are already received are not
+	 * handled nor deleted, so that they are redelivered after the failed message. Messages in a chain hold their
+	 * handler permits while waiting.</p>
+	 * 
+	 * @param fifo {@code true} to enable FIFO mode
+	 * @throws IllegalStateException if this poller has a {@link BatchMessageHandler}
+	 * @since 0.38
+	 */
+	public void setFifo(boolean fifo) {
+		if (fifo && batcher != null) {
+			throw new IllegalStateException("FIFO mode is not supported with a batch handler");
+		}
+		this.fifo = fifo;
+	}
+	
+	/**
+	 * Returns the maximum number of concurrently running handlers.
+	 * 
+	 * @return the maximum number of concurrently running handlers
+	 * @since 0.38
+	 */
+	public int getMaxConcurrency() {
+		return permits.getLimit();
+	}
+	
+	/**
+	 * Returns the maximum number of visibility extensions per message.
+	 * 
+	 * @return the maximum number of extensions
+	 * @since 0.38
+	 */
+	public int getMaxExtensions() {
+		return heartbeat.getMaxExtensions();
+	}
+	
+	/**
+	 * Set the maximum number of visibility extensions per message. After the extensions, the handler may keep
+	 * running, but the message becomes visible to other consumers and is not deleted by this poller.
+	 * 
+	 * <p>This used to be the number of attempts of the {@link RetryTemplate} given to the constructor, which was
+	 * {@code 3} by default. The retry template is no longer consulted for visibility extensions.</p>
+	 * 
+	 * @param maxExtensions the maximum number of extensions
+	 * @since 0.38
+	 */
+	public void setMaxExtensions(int maxExtensions) {
+		heartbeat.setMaxExtensions(maxExtensions);
+	}
+	
+	/**
+	 * Set the maximum number of concurrently running handlers. Received messages wait for a permit before
+	 * their handler is submitted to the executor. This can be changed while handlers are running.
+	 * 
+	 * @param maxConcurrency the maximum number of concurrently running handlers
+	 * @throws IllegalArgumentException if the argument is less than 1
+	 * @since 0.38
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		permits.setLimit(maxConcurrency);
+	}
+	
+	/**
+	 * Returns the number of running handlers.
+	 * 
+	 * @return the number of running handlers
+	 * @since 0.38
+	 */
+	public int getRunningCount() {
+		return permits.getHeldPermits();
+	}
+	
+	/**
+	 * Stop receivers, wait for running handlers up to {@link #setShutdownTimeout(long) shutdownTimeout}, then stop
+	 * visibility extensions, delete all buffered acknowledgements, and shut down the default executor.
+	 * 
+	 * <p>Handlers still running after the timeout keep running. Their messages are not extended anymore, and they
+	 * are deleted synchronously when the handlers complete.</p>
+	 * 
+	 * @since 0.38
+	 */
+	@Override
+	public void destroy() {
+		stop();
+		if (batcher != null) {
+			batcher.close();
+		}
+		awaitHandlers();
+		heartbeat.close();
+		deleter.close();
+		if (ownedExecutor) {
+			executor.shutdown();
+		}
+	}
+	
+	private void awaitHandlers() {
+		CompletableFuture<?>[] running = inFlight.toArray(new CompletableFuture[0]);
+		if (running.length == 0) {
+			return;
+		}
+		log.debug("Waiting for {} handlers for {}", running.length, handlerName);
+		try {
+			CompletableFuture.allOf(running).get(shutdownTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("Interrupted while waiting for handlers for {}", handlerName);
+		} catch (TimeoutException e) {
+			log.warn("{} handlers for {} are still running after {} ms", inFlight.size(), handlerName,
+					shutdownTimeout);
+		} catch (ExecutionException e) {
+			log.warn("Failed to complete handlers for {}", handlerName, e.getCause());
+		}
+	}
+	
+	private synchronized void startReceivers() {
+		int current = generation;
+		for (int i = receivers.size(); i < receiverCount; i++) {
+			Thread receiver = newThreadBuilder().name("sqs-receiver-" + handlerName + "-" + i)
+				.uncaughtExceptionHandler(SqsMessagePoller::logUncaughtException)
+				.unstarted(() -> receive(current));
+			receivers.add(receiver);
+			receiver.start();
+		}
+	}
+	
+	private Thread.Builder newThreadBuilder() {
+		if (virtualThreads) {
+			return Thread.ofVirtual();
+		}
+		return Thread.ofPlatform().daemon();
+	}
+	
+	private synchronized boolean retire(int receiverGeneration) {
+		if (running && receiverGeneration == generation && receivers.size() <= receiverCount) {
+			return false;
+		}
+		receivers.remove(Thread.currentThread());
+		return true;
+	}
+	
+	private boolean isStopped(int receiverGeneration) {
+		return running == false || receiverGeneration != generation;
+	}
+	
+	/**
+	 * Release messages received after the receiver is stopped, to be received again without waiting for the
+	 * visibility timeout.
+	 * 
+	 * @param messages the messages
+	 */
+	void releaseLate(List<Message> messages) {
+		log.debug("{} SQS messages received after stop for {} are released", messages.size(), handlerName);
+		heartbeat.release(messages);
+	}
+	
+	private void receive(int receiverGeneration) {
+		log.debug("Receiver for {} is started", handlerName);
+		try {
+			while (retire(receiverGeneration) == false) {
+				pollingController.pause();
+				PrefetchBuffer buffer = prefetchBuffer;
+				if (buffer != null) {
+					prefetch(buffer, receiverGeneration);
+					continue;
+				}
+				int reserved = reservePermits();
+				List<Message> messages = Collections.emptyList();
+				try {
+					messages = receiveMessages(reserved);
+				} catch (RuntimeException e) {
+					if (running) {
+						log.error("Failed to receive SQS messages for {}", handlerName, e);
+					}
+				} finally {
+					permits.release(reserved - messages.size());
+				}
+				if (isStopped(receiverGeneration) && messages.isEmpty() == false) {
+					permits.release(messages.size());
+					releaseLate(messages);
+					continue;
+				}
+				dispatch(messages);
+			}
+		} catch (InterruptedException e) {
+			log.debug("Receiver for {} was interrupted", handlerName);
+		} finally {
+			receivers.remove(Thread.currentThread());
+		}
+		log.debug("Receiver for {} is stopped", handlerName);
+	}
+	
+	private void prefetch(PrefetchBuffer buffer, int receiverGeneration) throws InterruptedException {
+		int max = buffer.awaitCapacity(maxNumberOfMessages);
+		try {
+			List<Message> messages = receiveMessages(max);
+			if (messages.isEmpty()) {
+				return;
+			}
+			// the dispatcher closes the buffer on stop(), possibly before this long-poll returned
+			if (isStopped(receiverGeneration) || buffer.addAll(messages, System.currentTimeMillis()) == false) {
+				releaseLate(messages);
+			}
+		} catch (RuntimeException e) {
+			if (running) {
+				log.error("Failed to receive SQS messages for {}", handlerName, e);
+			}
+		}
+	}
+	
+	private void dispatchPrefetched(PrefetchBuffer buffer, int dispatcherGeneration) { // NOPMD - cc
+		log.debug("Dispatcher for {} is started", handlerName);
+		try {
+			while (running && dispatcherGeneration == generation) {
+				boolean acquired = permits.tryAcquire(1, TimeUnit.SECONDS);
+				releaseStale(buffer); // also while all handlers are busy
+				if (acquired == false) {
+					if (batcher != null) {
+						batcher.flush(); // accumulated messages hold the permits
+					}
+					continue;
+				}
+				PrefetchBuffer.Entry entry;
+				try {
+					entry = buffer.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					permits.release();
+					throw e;
+				}
+				if (entry == null) {
+					permits.release();
+					continue;
+				}
+				dispatchPrefetched(buffer, entry);
+			}
+		} catch (InterruptedException e) {
+			log.debug("Dispatcher for {} was interrupted", handlerName);
+		} finally {
+			List<Message> remaining = buffer.close();
+			if (remaining.isEmpty() == false) {
+				log.debug("{} prefetched SQS messages for {} are released", remaining.size(), handlerName);
+				heartbeat.release(remaining);
+			}
+		}
+		log.debug("Dispatcher for {} is stopped", handlerName);
+	}
+	
+	private void dispatchPrefetched(PrefetchBuffer buffer, PrefetchBuffer.Entry entry) {
+		Message message = entry.getMessage();
+		track(message, entry.getReceivedAt());
+		long start = System.nanoTime();
+		try {
+			submit(message).whenComplete((result, error) -> buffer.recordHandlingTime(System.nanoTime() - start));
+		} catch (RuntimeException e) {
+			log.error("Failed to submit SQS: {}", message.getMessageId(), e);
+		}
+		if (batcher != null && buffer.size() == 0) {
+			batcher.endOfReceive();
+		}
+	}
+	
+	private void releaseStale(PrefetchBuffer buffer) {
+		List<Message> stale = buffer.drainStale(System.currentTimeMillis());
+		if (stale.isEmpty() == false) {
+			log.warn("{} prefetched SQS messages for {} are released without handling", stale.size(), handlerName);
+			heartbeat.release(stale);
+		}
+	}
+	
+	private int reservePermits() throws InterruptedException {
+		permits.acquire();
+		int reserved = 1;
+		while (reserved < maxNumberOfMessages && permits.tryAcquire()) {
+			reserved++;
+		}
+		return reserved;
+	}
+	
+	private List<Message> receiveMessages(int max) {
+		return receiveMessages(max, waitTimeSeconds);
+	}
+	
+	/**
+	 * Receive messages and report the outcome to {@link #getPollingController() pollingController}.
+	 * Throttled receives return an empty list.
+	 * 
+	 * @param max the maximum number of messages, for which the caller holds handler permits
+	 * @param waitTime long polling wait time in seconds
+	 * @return the received messages
+	 */
+	List<Message> receiveMessages(int max, int waitTime) {
+		List<Message> messages;
 		try {
 			log.trace("Start SQS long polling");
-			receiveMessageResult = sqs.receiveMessage(new ReceiveMessageRequest(workerQueueUrl)
-				.withWaitTimeSeconds(waitTimeSeconds)
-				.withMaxNumberOfMessages(maxNumberOfMessages)
+			messages = sqs.receiveMessage(new ReceiveMessageRequest(workerQueueUrl)
+				.withWaitTimeSeconds(waitTime)
+				.withMaxNumberOfMessages(max)
 				.withVisibilityTimeout(visibilityTimeout)
-				.withAttributeNames("ApproximateReceiveCount"));
-			return receiveMessageResult.getMessages();
-		} catch (OverLimitException e) {
-			log.error("SQS over limit", e);
+				.withAttributeNames("ApproximateReceiveCount", "MessageGroupId")).getMessages();
+		} catch (AmazonServiceException e) {
+			if (e instanceof OverLimitException || RetryUtils.isThrottlingException(e)) {
+				pollingController.onThrottled();
+				log.warn("SQS receive for {} was throttled, retry after {} ms: {}", handlerName,
+						pollingController.getCurrentDelay(), e.getMessage());
+				return Collections.emptyList();
+			}
+			pollingController.onError();
+			throw e;
+		} catch (RuntimeException e) {
+			pollingController.onError();
+			throw e;
+		}
+		if (messages.isEmpty()) {
+			pollingController.onEmptyReceive();
+		} else {
+			pollingController.onMessagesReceived();
+		}
+		return messages;
+	}
+	
+	/**
+	 * Submit received messages to the handler. The caller must hold a handler permit for each message.
+	 * 
+	 * @param messages the received messages
+	 */
+	void dispatch(List<Message> messages) {
+		for (Message message : messages) {
+			track(message);
 			try {
-				Thread.sleep(60000);
-			} catch (InterruptedException e1) {
-				log.error("interrupted", e1);
-				throw new AssertionError(e1); // NOPMD - lost OverLimitException's stacktrace
+				submit(message);
+			} catch (RuntimeException e) {
+				log.error("Failed to submit SQS: {}", message.getMessageId(), e);
 			}
 		}
-		return Collections.emptyList();
+		if (batcher != null) {
+			batcher.endOfReceive();
+		}
+	}
+	
+	/**
+	 * Share the handler permits with other pollers.
+	 * 
+	 * @param permits the shared permits
+	 */
+	void setPermits(ResizableSemaphore permits) {
+		this.permits = permits;
+	}
+	
+	private CompletableFuture<Void> handleMessage(Message message) throws InterruptedException {
+		track(message);
+		try {
+			if (permits.tryAcquire() == false) {
+				if (batcher != null) {
+					batcher.flush(); // accumulated messages hold the permits
+				}
+				permits.acquire();
+			}
+		} catch (InterruptedException e) {
+			heartbeat.untrack(message);
+			throw e;
+		}
+		return submit(message);
+	}
+	
+	private void track(Message message) {
+		track(message, System.currentTimeMillis());
 	}
 	
-	private void handleMessage(Message message) {
+	private void track(Message message, long receivedAt) {
 		log.info("SQS message for {} was received: {}", handlerName, message.getMessageId());
 		log.debug("Receive SQS: {} C: {} RHD: {}",
 				message.getMessageId(),
 				message.getAttributes().get("ApproximateReceiveCount"),
 				computeReceiptHandleDigest(message));
-		
-		Future<Message> future = executor.submit(() -> messageHandler.accept(message), message);
+		heartbeat.track(message, visibilityTimeout, changeVisibilityThreshold, receivedAt);
+	}
+	
+	private CompletableFuture<Void> submit(Message message) {
+		CompletableFuture<Void> future;
+		try {
+			if (batcher != null) {
+				future = batcher.add(message);
+			} else if (fifo && message.getAttributes().get("MessageGroupId") != null) {
+				future = submitInGroup(message, message.getAttributes().get("MessageGroupId"));
+			} else {
+				future = CompletableFuture.runAsync(() -> messageHandler.accept(message), executor);
+			}
+		} catch (RuntimeException e) {
+			permits.release();
+			heartbeat.untrack(message);
+			throw e;
+		}
 		log.debug("Main task for {} is submitted", message.getMessageId());
 		
-		doFollowup(message, future);
+		CompletableFuture<Void> completion = future.handle((result, error) -> {
+			complete(message, error);
+			return null;
+		});
+		inFlight.add(completion);
+		completion.whenComplete((result, error) -> inFlight.remove(completion));
+		return completion;
 	}
 	
-	private void doFollowup(Message message, Future<Message> future) {
-		log.debug("Start visibility timeout follow-up task for {}", message.getMessageId());
+	private CompletableFuture<Void> submitInGroup(Message message, String groupId) {
+		CompletableFuture<Void> future = groupTails.compute(groupId, (g, tail) -> {
+			if (tail == null) {
+				return CompletableFuture.runAsync(() -> messageHandler.accept(message), executor);
+			}
+			// not run if the previous message of the group failed
+			return tail.thenRunAsync(() -> messageHandler.accept(message), executor);
+		});
+		future.whenComplete((result, error) -> groupTails.remove(groupId, future));
+		return future;
+	}
+	
+	private void complete(Message message, Throwable error) {
 		try {
-			retry.execute(context -> {
-				try {
-					future.get(changeVisibilityThreshold, TimeUnit.SECONDS);
-					log.debug("Job for SQS: {} was done", message.getMessageId());
-					sqs.deleteMessage(new DeleteMessageRequest(workerQueueUrl, message.getReceiptHandle()));
-					log.info("SQS: {} was deleted", message.getMessageId());
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					log.warn("Job for SQS: {} was interrupted", message.getMessageId());
-				} catch (ExecutionException e) { // handle e.getCause()
-					log.error("Job for SQS: {} was failed", message.getMessageId(), e.getCause());
-				} catch (TimeoutException e) { // we need more time
-					extendTimeout(message);
-					throw e;
+			boolean tracked = heartbeat.untrack(message);
+			if (error != null) {
+				Throwable cause = error;
+				if (error instanceof CompletionException) {
+					cause = error.getCause();
 				}
-				return null;
-			});
-		} catch (Exception e) { // NOPMD - cc
-			log.error("Retry attempt exceeded?", e);
-		}
-		log.debug("Visibility timeout follow-up task for {} was finished", message.getMessageId());
-	}
-	
-	private void extendTimeout(Message message) {
-		log.debug("Job for SQS:{} was timeout RHD:{}", message.getMessageId(), computeReceiptHandleDigest(message));
-		sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(
-				workerQueueUrl, message.getReceiptHandle(), visibilityTimeout));
-		if (log.isDebugEnabled()) {
-			log.debug("Visibility for SQS: {} was updated VT: {}", message.getMessageId(), visibilityTimeout);
-		} else if (log.isTraceEnabled()) {
-			log.trace("Visibility for SQS: {} was updated VT: {} RHD: {}",
-					message.getMessageId(),
-					visibilityTimeout,
-					computeReceiptHandleDigest(message));
+				log.error("Job for SQS: {} was failed", message.getMessageId(), cause);
+			} else if (tracked == false) {
+				log.warn("Job for SQS: {} was done after it was abandoned", message.getMessageId());
+			} else {
+				log.debug("Job for SQS: {} was done", message.getMessageId());
+				deleter.delete(message);
+			}
+		} finally {
+			permits.release(); // after the acknowledgement is buffered
+		}
+	}
+	
+	static ExecutorService newPlatformThreadExecutor() {
+		return Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r);
+			thread.setUncaughtExceptionHandler(SqsMessagePoller::logUncaughtException);
+			return thread;
+		});
+	}
+	
+	static void logUncaughtException(Thread t, Throwable e) {
+		synchronized (SqsMessagePoller.class) {
+			log.error("Uncaught exception in thread '{}': {}", t.getName(), e.getMessage());
 		}
 	}
 	
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Extends the visibility timeout of in-flight SQS messages from a single scheduler thread.
+ * 
+ * <p>Every {@link #setInterval(long) interval} milliseconds, all tracked messages whose extension is due are
+ * extended by {@code ChangeMessageVisibilityBatch} requests of up to {@value #MAX_BATCH_SIZE} entries. A message
+ * is abandoned after {@link #setMaxExtensions(int) maxExtensions} extensions, or when SQS rejects its receipt
+ * handle; {@link #untrack(Message)} returns {@code false} for abandoned messages.</p>
+ * 
+ * <p>Messages are tracked by receipt handle, so that a message received again (e.g. a duplicate delivery) is tracked
+ * separately. Each batch request is retried at most {@value #BATCH_ATTEMPTS} times, so that an unavailable SQS
+ * never blocks the scheduler thread for long; extensions which are still due are tried again on the next check.</p>
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@Slf4j
+public class VisibilityHeartbeat {
+	
+	/** The maximum number of entries in a {@code ChangeMessageVisibilityBatch} request. */
+	public static final int MAX_BATCH_SIZE = 10;
+	
+	private static final int BATCH_ATTEMPTS = 3;
+	
+	private static final long BATCH_BACKOFF = 100L;
+	
+	private final AmazonSQS sqs;
+	
+	private final String queueUrl;
+	
+	private final RetryTemplate retry = RetryTemplate.builder()
+		.maxAttempts(BATCH_ATTEMPTS)
+		.fixedBackoff(BATCH_BACKOFF)
+		.build();
+	
+	// keyed by receipt handle
+	private final ConcurrentMap<String, InFlight> inFlights = new ConcurrentHashMap<>();
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sqs-visibility-heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * Milliseconds between checks for due extensions.
+	 */
+	@Getter
+	@Setter
+	private long interval = 1000;
+	
+	/**
+	 * Maximum number of extensions per message.
+	 */
+	@Getter
+	@Setter
+	private int maxExtensions = 3;
+	
+	
+	/**
+	 * Create instance.
+	 * 
+	 * @param sqs SQS client
+	 * @param queueUrl URL of the queue which the messages are received from
+	 */
+	public VisibilityHeartbeat(AmazonSQS sqs, String queueUrl) {
+		this.sqs = sqs;
+		this.queueUrl = queueUrl;
+	}
+	
+	/**
+	 * Start tracking the message.
+	 * 
+	 * @param message received message
+	 * @param visibilityTimeout visibility timeout in seconds to set on each extension
+	 * @param threshold seconds from receipt (or the last extension) to the next extension
+	 */
+	public void track(Message message, int visibilityTimeout, int threshold) {
+		track(message, visibilityTimeout, threshold, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Start tracking the message which was received at the given time.
+	 * 
+	 * @param message received message
+	 * @param visibilityTimeout visibility timeout in seconds to set on each extension
+	 * @param threshold seconds from receipt (or the last extension) to the next extension
+	 * @param receivedAt time in milliseconds when the message was received
+	 */
+	public void track(Message message, int visibilityTimeout, int threshold, long receivedAt) {
+		inFlights.put(message.getReceiptHandle(), new InFlight(message, visibilityTimeout, threshold * 1000L,
+				receivedAt + threshold * 1000L));
+		start();
+	}
+	
+	/**
+	 * Stop tracking the message.
+	 * 
+	 * @param message tracked message
+	 * @return {@code true} if the message was tracked, {@code false} if it has been abandoned
+	 */
+	public boolean untrack(Message message) {
+		return inFlights.remove(message.getReceiptHandle()) != null;
+	}
+	
+	/**
+	 * Returns the number of tracked messages.
+	 * 
+	 * @return the number of in-flight messages
+	 */
+	public int getInFlightCount() {
+		return inFlights.size();
+	}
+	
+	/**
+	 * Extend the visibility timeout of all messages whose extension is due.
+	 */
+	public synchronized void extendDueMessages() {
+		long now = System.currentTimeMillis();
+		List<InFlight> due = new ArrayList<>();
+		for (InFlight inFlight : inFlights.values()) {
+			if (inFlight.nextExtensionAt <= now) {
+				due.add(inFlight);
+			}
+		}
+		for (int i = 0; i < due.size(); i += MAX_BATCH_SIZE) {
+			extend(due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size())));
+		}
+	}
+	
+	/**
+	 * Make untracked messages visible immediately by setting their visibility timeout to {@code 0}, so that other
+	 * consumers can receive them without waiting for the visibility timeout.
+	 * 
+	 * @param messages messages to release
+	 */
+	public void release(List<Message> messages) {
+		for (int i = 0; i < messages.size(); i += MAX_BATCH_SIZE) {
+			List<Message> batch = messages.subList(i, Math.min(i + MAX_BATCH_SIZE, messages.size()));
+			List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+			for (int j = 0; j < batch.size(); j++) {
+				entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(j),
+						batch.get(j).getReceiptHandle()).withVisibilityTimeout(0));
+			}
+			try {
+				ChangeMessageVisibilityBatchResult result = retry.execute(context -> sqs.changeMessageVisibilityBatch(
+						new ChangeMessageVisibilityBatchRequest(queueUrl, entries)));
+				for (BatchResultErrorEntry failed : result.getFailed()) {
+					log.warn("SQS: {} could not be released: {} {}",
+							batch.get(Integer.parseInt(failed.getId())).getMessageId(), failed.getCode(), failed.getMessage());
+				}
+			} catch (RuntimeException e) {
+				// they become visible after the visibility timeout anyway
+				log.warn("Failed to release {} SQS messages", batch.size(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Stop the scheduler. Tracked messages are no longer extended.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+	}
+	
+	private synchronized void start() {
+		if (task == null && scheduler.isShutdown() == false) {
+			task = scheduler.scheduleWithFixedDelay(() -> {
+				try {
+					extendDueMessages();
+				} catch (Exception e) { // NOPMD - keep the heartbeat alive
+					log.error("Failed to extend visibility timeout", e);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void extend(List<InFlight> batch) {
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			InFlight inFlight = batch.get(i);
+			entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i),
+					inFlight.message.getReceiptHandle()).withVisibilityTimeout(inFlight.visibilityTimeout));
+		}
+		ChangeMessageVisibilityBatchResult result;
+		try {
+			result = retry.execute(context -> sqs.changeMessageVisibilityBatch(
+					new ChangeMessageVisibilityBatchRequest(queueUrl, entries)));
+		} catch (RuntimeException e) {
+			log.error("Failed to extend visibility timeout of {} SQS messages", batch.size(), e);
+			return; // extensions are still due, try again on the next tick
+		}
+		long now = System.currentTimeMillis();
+		for (ChangeMessageVisibilityBatchResultEntry succeeded : result.getSuccessful()) {
+			InFlight inFlight = batch.get(Integer.parseInt(succeeded.getId()));
+			inFlight.extensions++;
+			inFlight.nextExtensionAt = now + inFlight.threshold;
+			log.debug("Visibility for SQS: {} was updated VT: {}", inFlight.message.getMessageId(),
+					inFlight.visibilityTimeout);
+			if (inFlight.extensions >= maxExtensions) {
+				log.error("Retry attempt exceeded for SQS: {}", inFlight.message.getMessageId());
+				inFlights.remove(inFlight.message.getReceiptHandle(), inFlight);
+			}
+		}
+		for (BatchResultErrorEntry failed : result.getFailed()) {
+			InFlight inFlight = batch.get(Integer.parseInt(failed.getId()));
+			if (Boolean.TRUE.equals(failed.getSenderFault())) {
+				log.error("Visibility for SQS: {} could not be updated: {} {}", inFlight.message.getMessageId(),
+						failed.getCode(), failed.getMessage());
+				inFlights.remove(inFlight.message.getReceiptHandle(), inFlight);
+			} else {
+				log.warn("Visibility for SQS: {} was not updated: {} {}", inFlight.message.getMessageId(),
+						failed.getCode(), failed.getMessage());
+			}
+		}
+	}
+	
+	
+	private static class InFlight {
+		
+		private final Message message;
+		
+		private final int visibilityTimeout;
+		
+		private final long threshold;
+		
+		private volatile long nextExtensionAt;
+		
+		private int extensions;
+		
+		
+		InFlight(Message message, int visibilityTimeout, long threshold, long nextExtensionAt) {
+			this.message = message;
+			this.visibilityTimeout = visibilityTimeout;
+			this.threshold = threshold;
+			this.nextExtensionAt = nextExtensionAt;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jp.xet.sparwings.aws.sqs.AdaptivePollingController.State;
+
+/**
+ * Test for {@link AdaptivePollingController}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class AdaptivePollingControllerTest {
+	
+	AdaptivePollingController sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new AdaptivePollingController();
+		sut.setEmptyReceivesBeforeBackoff(2);
+		sut.setInitialDelay(100);
+		sut.setMaxIdleDelay(400);
+		sut.setMaxThrottleDelay(1000);
+	}
+	
+	@Test
+	public void testEmptyReceives() {
+		// exercise
+		sut.onEmptyReceive();
+		// verify
+		assertThat(sut.getState(), is(State.ACTIVE));
+		assertThat(sut.getCurrentDelay(), is(0L));
+		
+		// exercise
+		sut.onEmptyReceive();
+		// verify
+		assertThat(sut.getState(), is(State.IDLE));
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(50L), lessThanOrEqualTo(100L))));
+		
+		// exercise
+		sut.onEmptyReceive();
+		// verify
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(100L), lessThanOrEqualTo(200L))));
+		
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.onEmptyReceive();
+		}
+		// verify
+		assertThat(sut.getConsecutiveEmptyReceives(), is(103));
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(200L), lessThanOrEqualTo(400L))));
+	}
+	
+	@Test
+	public void testThrottled() {
+		// exercise
+		sut.onThrottled();
+		// verify
+		assertThat(sut.getState(), is(State.THROTTLED));
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(50L), lessThanOrEqualTo(100L))));
+		
+		// exercise
+		sut.onError();
+		// verify
+		assertThat(sut.getState(), is(State.FAILING));
+		assertThat(sut.getConsecutiveFailures(), is(2));
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(100L), lessThanOrEqualTo(200L))));
+		
+		// exercise
+		for (int i = 0; i < 100; i++) {
+			sut.onThrottled();
+		}
+		// verify
+		assertThat(sut.getCurrentDelay(), is(allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(1000L))));
+	}
+	
+	@Test
+	public void testRampUpImmediately() {
+		// setup
+		sut.onThrottled();
+		sut.onThrottled();
+		// exercise
+		sut.onMessagesReceived();
+		// verify
+		assertThat(sut.getState(), is(State.ACTIVE));
+		assertThat(sut.getCurrentDelay(), is(0L));
+		assertThat(sut.getConsecutiveFailures(), is(0));
+	}
+	
+	@Test
+	public void testReceiveIsDueAfterDelay() throws Exception {
+		// setup
+		sut.onThrottled(); // 50-100 ms
+		// exercise & verify
+		assertThat(sut.isReceiveDue(), is(false));
+		Thread.sleep(150);
+		assertThat(sut.isReceiveDue(), is(true));
+		
+		// setup
+		sut.onThrottled(); // 100-200 ms
+		// exercise
+		sut.onMessagesReceived();
+		// verify
+		assertThat(sut.isReceiveDue(), is(true));
+	}
+	
+	@Test
+	public void testPauseIsWokenUpByMessages() throws Exception {
+		// setup
+		sut.setMaxThrottleDelay(60000);
+		sut.setInitialDelay(60000);
+		sut.onThrottled();
+		long start = System.nanoTime();
+		CompletableFuture<Void> paused = CompletableFuture.runAsync(() -> {
+			try {
+				sut.pause();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		Thread.sleep(50);
+		// exercise
+		sut.onMessagesReceived();
+		// verify
+		paused.get(5, TimeUnit.SECONDS);
+		assertThat(System.nanoTime() - start, is(lessThan(TimeUnit.SECONDS.toNanos(5))));
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link BatchingMessageDeleter}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ExtendWith(MockitoExtension.class)
+public class BatchingMessageDeleterTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	BatchingMessageDeleter sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new BatchingMessageDeleter(sqs, Q_URL);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		sut.close();
+	}
+	
+	private static Message createMessage(int i) {
+		return new Message().withMessageId("mid-" + i).withReceiptHandle("rh-" + i);
+	}
+	
+	private List<List<String>> sentReceiptHandles(int times) {
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs, times(times)).deleteMessageBatch(captor.capture());
+		return captor.getAllValues().stream()
+			.map(request -> request.getEntries().stream()
+				.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+				.collect(Collectors.toList()))
+			.collect(Collectors.toList());
+	}
+	
+	@Test
+	public void testFlushOnSize() {
+		// setup
+		sut.setLinger(60000);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+		// exercise
+		for (int i = 0; i < 11; i++) {
+			sut.delete(createMessage(i));
+		}
+		// verify
+		List<List<String>> sent = sentReceiptHandles(1);
+		assertThat(sent.get(0), hasSize(BatchingMessageDeleter.MAX_BATCH_SIZE));
+		assertThat(sent.get(0).get(0), is("rh-0"));
+		assertThat(sent.get(0).get(9), is("rh-9"));
+	}
+	
+	@Test
+	public void testFlushOnLinger() {
+		// setup
+		sut.setLinger(10);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+		// exercise
+		sut.delete(createMessage(1));
+		sut.delete(createMessage(2));
+		// verify
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs, timeout(5000)).deleteMessageBatch(captor.capture());
+		assertThat(captor.getValue().getQueueUrl(), is(Q_URL));
+		assertThat(captor.getValue().getEntries(), hasSize(2));
+	}
+	
+	@Test
+	public void testRetryServerFailure() {
+		// setup
+		sut.setLinger(10);
+		sut.setRetryDelay(10);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenReturn(new DeleteMessageBatchResult().withFailed(new BatchResultErrorEntry()
+				.withId("1").withSenderFault(false).withCode("InternalError")))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+		sut.delete(createMessage(1));
+		sut.delete(createMessage(2));
+		// exercise
+		sut.flush();
+		// verify
+		verify(sqs, timeout(5000).times(2)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		List<List<String>> sent = sentReceiptHandles(2);
+		assertThat(sent.get(0), contains("rh-1", "rh-2"));
+		assertThat(sent.get(1), contains("rh-2"));
+	}
+	
+	@Test
+	public void testRetryIsDelayed() {
+		// setup
+		sut.setLinger(10);
+		sut.setRetryDelay(500);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenThrow(new AmazonSQSException("throttled"))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+		// exercise
+		sut.delete(createMessage(1));
+		// verify
+		verify(sqs, after(300).times(1)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		verify(sqs, timeout(5000).times(2)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+	}
+	
+	@Test
+	public void testSenderFaultIsNotRetried() {
+		// setup
+		sut.setLinger(60000);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenReturn(new DeleteMessageBatchResult().withFailed(new BatchResultErrorEntry()
+				.withId("0").withSenderFault(true).withCode("ReceiptHandleIsInvalid")));
+		sut.delete(createMessage(1));
+		// exercise
+		sut.flush();
+		sut.flush();
+		// verify
+		assertThat(sentReceiptHandles(1).get(0), contains("rh-1"));
+	}
+	
+	@Test
+	public void testRequestFailureIsRetriedUpToMaxAttempts() {
+		// setup
+		sut.setLinger(60000);
+		sut.setRetryDelay(1);
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenThrow(new AmazonSQSException("unavailable"));
+		sut.delete(createMessage(1));
+		// exercise
+		sut.close();
+		// verify
+		List<List<String>> sent = sentReceiptHandles(3);
+		sent.forEach(handles -> assertThat(handles, contains("rh-1")));
+	}
+	
+	@Test
+	public void testDeleteAfterCloseIsSentSynchronously() {
+		// setup
+		when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+		sut.close();
+		// exercise
+		sut.delete(createMessage(1));
+		// verify
+		assertThat(sentReceiptHandles(1).get(0), contains("rh-1"));
+	}
+	
+	@Test
+	public void testNothingToFlush() {
+		// exercise
+		sut.flush();
+		// verify
+		verify(sqs, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+	}
+}
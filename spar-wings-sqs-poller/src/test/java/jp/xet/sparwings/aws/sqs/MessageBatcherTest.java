@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link MessageBatcher}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class MessageBatcherTest {
+	
+	List<List<String>> batches = new CopyOnWriteArrayList<>();
+	
+	MessageBatcher sut;
+	
+	
+	@AfterEach
+	public void tearDown() {
+		sut.close();
+	}
+	
+	private static Message createMessage(int i) {
+		return new Message().withMessageId("mid-" + i).withReceiptHandle("rh-" + i);
+	}
+	
+	private BatchMessageHandler recordingHandler(String... failed) {
+		return messages -> {
+			batches.add(messages.stream().map(Message::getMessageId).collect(Collectors.toList()));
+			return Set.of(failed);
+		};
+	}
+	
+	@Test
+	public void testDispatchOnSize() throws Exception {
+		// setup
+		sut = new MessageBatcher(recordingHandler(), () -> Runnable::run);
+		sut.setBatchSize(2);
+		sut.setLinger(60000);
+		// exercise
+		CompletableFuture<Void> f1 = sut.add(createMessage(1));
+		CompletableFuture<Void> f2 = sut.add(createMessage(2));
+		CompletableFuture<Void> f3 = sut.add(createMessage(3));
+		// verify
+		assertThat(batches, contains(List.of("mid-1", "mid-2")));
+		assertThat(f1.isDone() && f2.isDone(), is(true));
+		assertThat(f3.isDone(), is(false));
+	}
+	
+	@Test
+	public void testDispatchOnEndOfReceive() throws Exception {
+		// setup
+		sut = new MessageBatcher(recordingHandler(), () -> Runnable::run);
+		sut.add(createMessage(1));
+		sut.add(createMessage(2));
+		// exercise
+		sut.endOfReceive();
+		// verify
+		assertThat(batches, contains(List.of("mid-1", "mid-2")));
+	}
+	
+	@Test
+	public void testDispatchOnLingerAcrossReceives() throws Exception {
+		// setup
+		sut = new MessageBatcher(recordingHandler(), () -> Runnable::run);
+		sut.setLinger(50);
+		CompletableFuture<Void> f1 = sut.add(createMessage(1));
+		sut.endOfReceive();
+		CompletableFuture<Void> f2 = sut.add(createMessage(2));
+		sut.endOfReceive();
+		// exercise
+		f2.get(5, TimeUnit.SECONDS);
+		// verify
+		assertThat(f1.isDone(), is(true));
+		assertThat(batches, contains(List.of("mid-1", "mid-2")));
+	}
+	
+	@Test
+	public void testPartialFailure() throws Exception {
+		// setup
+		sut = new MessageBatcher(recordingHandler("mid-2"), () -> Runnable::run);
+		CompletableFuture<Void> f1 = sut.add(createMessage(1));
+		CompletableFuture<Void> f2 = sut.add(createMessage(2));
+		// exercise
+		sut.flush();
+		// verify
+		assertThat(f1.isCompletedExceptionally(), is(false));
+		assertThat(f2.isCompletedExceptionally(), is(true));
+	}
+	
+	@Test
+	public void testHandlerException() throws Exception {
+		// setup
+		sut = new MessageBatcher(messages -> {
+			throw new IllegalStateException();
+		}, () -> Runnable::run);
+		CompletableFuture<Void> f1 = sut.add(createMessage(1));
+		// exercise
+		sut.flush();
+		// verify
+		ExecutionException e = assertThrows(ExecutionException.class, () -> f1.get());
+		assertThat(e.getCause() instanceof IllegalStateException, is(true));
+		assertThat(batches, hasSize(0));
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test for {@link MicrometerSqsPollerMetrics}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ExtendWith(MockitoExtension.class)
+public class MicrometerSqsPollerMetricsTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	@Mock
+	Consumer<Message> messageHandler;
+	
+	SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	
+	SqsMessagePoller poller;
+	
+	MicrometerSqsPollerMetrics sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		poller = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler, "testHandler");
+		sut = new MicrometerSqsPollerMetrics(poller);
+	}
+	
+	@Test
+	public void testPollerMeters() {
+		// setup
+		poller.setMaxConcurrency(7);
+		poller.getPollingController().onThrottled();
+		// exercise
+		sut.bindTo(registry);
+		// verify
+		assertThat(registry.get("sqs.poller.handlers.limit").tag("queue", Q_URL).gauge().value(), is(7.0));
+		assertThat(registry.get("sqs.poller.handlers.running").gauge().value(), is(0.0));
+		assertThat(registry.get("sqs.poller.receivers").gauge().value(), is(0.0));
+		assertThat(registry.get("sqs.poller.prefetch.size").gauge().value(), is(0.0));
+		assertThat(registry.get("sqs.poller.polling.state").tag("state", "throttled").gauge().value(), is(1.0));
+		assertThat(registry.get("sqs.poller.polling.state").tag("state", "active").gauge().value(), is(0.0));
+		assertThat(registry.get("sqs.poller.polling.delay").gauge().value() > 0, is(true));
+		assertThat(registry.find("sqs.poller.autoscaler.concurrency").gauge() == null, is(true));
+	}
+	
+	@Test
+	public void testAutoscalerMeters() {
+		// setup
+		when(sqs.getQueueAttributes(any(GetQueueAttributesRequest.class)))
+			.thenReturn(new GetQueueAttributesResult().withAttributes(Map.of(
+					"ApproximateNumberOfMessages", "12",
+					"ApproximateNumberOfMessagesNotVisible", "3")));
+		poller.setMaxConcurrency(4);
+		QueueDepthAutoscaler autoscaler = new QueueDepthAutoscaler(poller);
+		sut.setAutoscaler(autoscaler);
+		sut.bindTo(registry);
+		// exercise
+		autoscaler.evaluate();
+		// verify
+		assertThat(registry.get("sqs.queue.messages").tag("visibility", "visible").gauge().value(), is(12.0));
+		assertThat(registry.get("sqs.queue.messages").tag("visibility", "notvisible").gauge().value(), is(3.0));
+		assertThat(registry.get("sqs.poller.autoscaler.concurrency").gauge().value(), is(15.0));
+		assertThat(registry.get("sqs.poller.autoscaler.receivers").gauge().value(), is(2.0));
+		assertThat(registry.get("sqs.poller.autoscaler.decisions").tag("direction", "up").functionCounter().count(),
+				is(1.0));
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.OverLimitException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+import jp.xet.sparwings.aws.sqs.MultiQueuePoller.Mode;
+import jp.xet.sparwings.aws.sqs.MultiQueuePoller.QueueEntry;
+
+/**
+ * Test for {@link MultiQueuePoller}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ExtendWith(MockitoExtension.class)
+public class MultiQueuePollerTest {
+	
+	private static final String HIGH_URL = "http://example.com/high";
+	
+	private static final String LOW_URL = "http://example.com/low";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	@Mock
+	Consumer<Message> highHandler;
+	
+	@Mock
+	Consumer<Message> lowHandler;
+	
+	List<String> polled = Collections.synchronizedList(new ArrayList<>());
+	
+	SqsMessagePoller high;
+	
+	SqsMessagePoller low;
+	
+	MultiQueuePoller sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new MultiQueuePoller();
+		high = new SqsMessagePoller(sqs, new RetryTemplate(), HIGH_URL, highHandler, "high");
+		low = new SqsMessagePoller(sqs, new RetryTemplate(), LOW_URL, lowHandler, "low");
+		lenient().when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.succeedAll(invocation.getArgument(0)));
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		sut.destroy();
+	}
+	
+	private void addQueues(int highWeight, int lowWeight) {
+		sut.addQueue(high, highWeight);
+		sut.addQueue(low, lowWeight);
+	}
+	
+	private void givenQueuesAlwaysHaveMessages() {
+		AtomicInteger sequence = new AtomicInteger();
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			polled.add(request.getQueueUrl());
+			List<Message> messages = new ArrayList<>();
+			for (int i = 0; i < request.getMaxNumberOfMessages(); i++) {
+				int id = sequence.incrementAndGet();
+				messages.add(new Message().withMessageId("mid-" + id).withReceiptHandle("rh-" + id));
+			}
+			return new ReceiveMessageResult().withMessages(messages);
+		});
+	}
+	
+	private AtomicInteger givenQueueIsLongPolledUntil(CountDownLatch returns, Message... messages) {
+		AtomicInteger polling = new AtomicInteger();
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			polling.incrementAndGet();
+			boolean interrupted = false;
+			while (returns.getCount() > 0) {
+				try {
+					returns.await(); // long polling, which is not interrupted
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			polling.decrementAndGet();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return new ReceiveMessageResult().withMessages(messages);
+		});
+		return polling;
+	}
+	
+	private void receiveRound() throws InterruptedException {
+		sut.receiveRound(0); // as a receiver of the first generation
+	}
+	
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (condition.getAsBoolean() == false) {
+			assertThat("timed out", System.currentTimeMillis() < deadline, is(true));
+			Thread.sleep(10);
+		}
+	}
+	
+	private List<String> firstQueues(int rounds) {
+		List<String> firsts = new ArrayList<>();
+		for (int i = 0; i < rounds; i++) {
+			List<QueueEntry> order = sut.order();
+			firsts.add(order.get(0).getPoller().getWorkerQueueUrl());
+		}
+		return firsts;
+	}
+	
+	@Test
+	public void testWeightedOrder() {
+		// setup
+		addQueues(3, 1);
+		// exercise
+		List<String> firsts = firstQueues(8);
+		// verify
+		assertThat(Collections.frequency(firsts, HIGH_URL), is(6));
+		assertThat(Collections.frequency(firsts, LOW_URL), is(2));
+	}
+	
+	@Test
+	public void testStrictPriorityIsBoundedByMaxSkips() throws Exception {
+		// setup
+		sut.setMode(Mode.STRICT_PRIORITY);
+		sut.setMaxSkips(2);
+		sut.setMaxNumberOfMessages(1);
+		addQueues(1, 1);
+		givenQueuesAlwaysHaveMessages();
+		// exercise
+		for (int i = 0; i < 6; i++) {
+			receiveRound();
+		}
+		// verify
+		assertThat(polled, contains(HIGH_URL, HIGH_URL, LOW_URL, HIGH_URL, HIGH_URL, LOW_URL));
+		verify(highHandler, timeout(5000).times(4)).accept(any(Message.class));
+		verify(lowHandler, timeout(5000).times(2)).accept(any(Message.class));
+	}
+	
+	@Test
+	public void testRemainingPermitsFallToNextQueue() throws Exception {
+		// setup
+		sut.setMode(Mode.STRICT_PRIORITY);
+		sut.setMaxConcurrency(3);
+		addQueues(1, 1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			polled.add(request.getQueueUrl() + ":" + request.getMaxNumberOfMessages());
+			assertThat(request.getWaitTimeSeconds(), is(0));
+			if (request.getQueueUrl().equals(HIGH_URL)) {
+				return new ReceiveMessageResult().withMessages(new Message().withMessageId("h").withReceiptHandle("h"));
+			}
+			return new ReceiveMessageResult();
+		});
+		// exercise
+		receiveRound();
+		// verify
+		assertThat(polled, contains(HIGH_URL + ":3", LOW_URL + ":2"));
+		verify(highHandler, timeout(5000)).accept(any(Message.class));
+		assertThat(sut.getPollingController().getState(), is(AdaptivePollingController.State.ACTIVE));
+	}
+	
+	@Test
+	public void testLongPollFirstQueueWhileIdle() throws Exception {
+		// setup
+		sut.setMode(Mode.STRICT_PRIORITY);
+		addQueues(1, 1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			polled.add(request.getQueueUrl() + ":" + request.getWaitTimeSeconds());
+			return new ReceiveMessageResult();
+		});
+		// exercise
+		receiveRound();
+		receiveRound();
+		// verify
+		assertThat(polled, contains(HIGH_URL + ":0", LOW_URL + ":0", HIGH_URL + ":20", LOW_URL + ":0"));
+	}
+	
+	@Test
+	public void testThrottledQueueIsSkipped() throws Exception {
+		// setup
+		sut.setMode(Mode.STRICT_PRIORITY);
+		addQueues(1, 1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			polled.add(request.getQueueUrl());
+			if (request.getQueueUrl().equals(HIGH_URL)) {
+				throw new OverLimitException("over limit");
+			}
+			return new ReceiveMessageResult();
+		});
+		high.getPollingController().setInitialDelay(60000);
+		// exercise
+		receiveRound();
+		receiveRound();
+		// verify
+		assertThat(polled, contains(HIGH_URL, LOW_URL, LOW_URL));
+		verify(sqs, times(3)).receiveMessage(any(ReceiveMessageRequest.class));
+	}
+	
+	@Test
+	public void testStartAndStop() throws Exception {
+		// setup
+		sut.setReceiverCount(2);
+		sut.setMaxNumberOfMessages(1);
+		addQueues(1, 1);
+		givenQueuesAlwaysHaveMessages();
+		// exercise
+		sut.start();
+		// verify
+		verify(highHandler, timeout(5000).atLeast(3)).accept(any(Message.class));
+		verify(lowHandler, timeout(5000).atLeast(3)).accept(any(Message.class));
+		sut.stop();
+	}
+	
+	@Test
+	public void testRestartWhileReceiving() throws Exception {
+		// setup
+		sut.setReceiverCount(2);
+		sut.addQueue(high);
+		CountDownLatch returns = new CountDownLatch(1);
+		AtomicInteger polling = givenQueueIsLongPolledUntil(returns);
+		sut.start();
+		await(() -> polling.get() == 2);
+		// exercise
+		sut.stop();
+		sut.start();
+		// verify
+		await(() -> polling.get() == 4); // previous receivers are still polling
+		assertThat(sut.getActiveReceiverCount(), is(2));
+		returns.countDown();
+		Thread.sleep(100);
+		assertThat(sut.getActiveReceiverCount(), is(2));
+		sut.stop();
+		await(() -> sut.getActiveReceiverCount() == 0);
+	}
+	
+	@Test
+	public void testSetReceiverCountWhileRunning() throws Exception {
+		// setup
+		sut.addQueue(high);
+		CountDownLatch returns = new CountDownLatch(1);
+		AtomicInteger polling = givenQueueIsLongPolledUntil(returns);
+		sut.start();
+		await(() -> polling.get() == 1);
+		// exercise
+		sut.setReceiverCount(3);
+		// verify
+		await(() -> polling.get() == 3);
+		assertThat(sut.getActiveReceiverCount(), is(3));
+		sut.setReceiverCount(1);
+		returns.countDown();
+		await(() -> sut.getActiveReceiverCount() == 1);
+	}
+	
+	@Test
+	public void testMessagesReceivedAfterStopAreReleased() throws Exception {
+		// setup
+		sut.addQueue(high);
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		CountDownLatch returns = new CountDownLatch(1);
+		AtomicInteger polling = givenQueueIsLongPolledUntil(returns,
+				new Message().withMessageId("mid-1").withReceiptHandle("rh-1"));
+		sut.start();
+		await(() -> polling.get() == 1);
+		// exercise
+		sut.stop();
+		returns.countDown();
+		// verify
+		verify(sqs, timeout(5000)).changeMessageVisibilityBatch(argThat((ChangeMessageVisibilityBatchRequest r) ->
+				r.getEntries().size() == 1 && r.getEntries().get(0).getVisibilityTimeout() == 0));
+		verify(highHandler, never()).accept(any(Message.class));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link PrefetchBuffer}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class PrefetchBufferTest {
+	
+	private static Message createMessage(int i) {
+		return new Message().withMessageId("mid-" + i).withReceiptHandle("rh-" + i);
+	}
+	
+	@Test
+	public void testCapacityBeforeHandlingTimeIsRecorded() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(20, 1000, () -> 4);
+		// exercise
+		int room = sut.awaitCapacity(10);
+		// verify
+		assertThat(sut.getCapacity(), is(20));
+		assertThat(room, is(10));
+	}
+	
+	@Test
+	public void testCapacityIsTunedByHandlingTime() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(20, 1000, () -> 4);
+		// exercise
+		sut.recordHandlingTime(TimeUnit.MILLISECONDS.toNanos(500));
+		// verify
+		assertThat(sut.getCapacity(), is(8)); // 4 handlers can start 8 messages within 1000 ms
+		
+		// exercise
+		sut.recordHandlingTime(TimeUnit.SECONDS.toNanos(60));
+		// verify
+		assertThat(sut.getCapacity(), is(1));
+		
+		// exercise
+		sut.recordHandlingTime(1);
+		sut.recordHandlingTime(1);
+		// verify
+		assertThat(sut.getCapacity(), is(20));
+	}
+	
+	@Test
+	public void testAwaitCapacityReturnsRoom() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(5, 1000, () -> 1);
+		sut.addAll(List.of(createMessage(1), createMessage(2), createMessage(3)), System.currentTimeMillis());
+		// exercise
+		int room = sut.awaitCapacity(10);
+		// verify
+		assertThat(room, is(2));
+		assertThat(sut.size(), is(3));
+	}
+	
+	@Test
+	public void testPollInReceivedOrder() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(5, 1000, () -> 1);
+		sut.addAll(List.of(createMessage(1), createMessage(2)), 123L);
+		// exercise
+		PrefetchBuffer.Entry first = sut.poll(0, TimeUnit.MILLISECONDS);
+		PrefetchBuffer.Entry second = sut.poll(0, TimeUnit.MILLISECONDS);
+		PrefetchBuffer.Entry third = sut.poll(10, TimeUnit.MILLISECONDS);
+		// verify
+		assertThat(first.getMessage().getMessageId(), is("mid-1"));
+		assertThat(first.getReceivedAt(), is(123L));
+		assertThat(second.getMessage().getMessageId(), is("mid-2"));
+		assertThat(third, is(nullValue()));
+	}
+	
+	@Test
+	public void testDrainStale() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(5, 1000, () -> 1);
+		sut.addAll(List.of(createMessage(1), createMessage(2)), 10000L);
+		sut.addAll(List.of(createMessage(3)), 10500L);
+		// exercise
+		List<Message> stale = sut.drainStale(11000L);
+		// verify
+		assertThat(stale, contains(createMessage(1), createMessage(2)));
+		assertThat(sut.size(), is(1));
+		assertThat(sut.getStaleCount(), is(2L));
+		assertThat(sut.drainStale(11000L), is(empty()));
+		assertThat(sut.drainAll(), contains(createMessage(3)));
+		assertThat(sut.size(), is(0));
+	}
+	
+	@Test
+	public void testAddAllAfterClose() throws Exception {
+		// setup
+		PrefetchBuffer sut = new PrefetchBuffer(5, 1000, () -> 1);
+		sut.addAll(List.of(createMessage(1)), 10000L);
+		// exercise
+		List<Message> remaining = sut.close();
+		boolean added = sut.addAll(List.of(createMessage(2)), 10500L);
+		// verify
+		assertThat(remaining, contains(createMessage(1)));
+		assertThat(added, is(false));
+		assertThat(sut.size(), is(0));
+	}
+}
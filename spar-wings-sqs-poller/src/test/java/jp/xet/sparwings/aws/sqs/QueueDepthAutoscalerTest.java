@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.retry.support.RetryTemplate;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link QueueDepthAutoscaler}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ExtendWith(MockitoExtension.class)
+public class QueueDepthAutoscalerTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	@Mock
+	Consumer<Message> messageHandler;
+	
+	SqsMessagePoller poller;
+	
+	QueueDepthAutoscaler sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		poller = new SqsMessagePoller(sqs, new RetryTemplate(), Q_URL, messageHandler, "testHandler");
+		poller.setMaxConcurrency(4);
+		sut = new QueueDepthAutoscaler(poller);
+		sut.setMinConcurrency(2);
+		sut.setMaxConcurrency(50);
+		sut.setMinReceivers(1);
+		sut.setMaxReceivers(4);
+	}
+	
+	private void givenQueueDepth(long visible, long notVisible) {
+		when(sqs.getQueueAttributes(any(GetQueueAttributesRequest.class)))
+			.thenReturn(new GetQueueAttributesResult().withAttributes(Map.of(
+					"ApproximateNumberOfMessages", Long.toString(visible),
+					"ApproximateNumberOfMessagesNotVisible", Long.toString(notVisible))));
+	}
+	
+	@Test
+	public void testScaleUp() {
+		// setup
+		givenQueueDepth(25, 5);
+		// exercise
+		sut.evaluate();
+		// verify
+		assertThat(sut.getBacklog(), is(25L));
+		assertThat(sut.getInFlight(), is(5L));
+		assertThat(poller.getMaxConcurrency(), is(30));
+		assertThat(poller.getReceiverCount(), is(3));
+		assertThat(sut.getConcurrency(), is(30));
+		assertThat(sut.getReceivers(), is(3));
+		assertThat(sut.getScaleUpCount(), is(1L));
+	}
+	
+	@Test
+	public void testScaleUpToMax() {
+		// setup
+		givenQueueDepth(10000, 0);
+		// exercise
+		sut.evaluate();
+		// verify
+		assertThat(poller.getMaxConcurrency(), is(50));
+		assertThat(poller.getReceiverCount(), is(4));
+	}
+	
+	@Test
+	public void testScaleDownGradually() {
+		// setup
+		givenQueueDepth(10000, 0);
+		sut.evaluate();
+		givenQueueDepth(0, 0);
+		// exercise
+		sut.evaluate();
+		// verify
+		assertThat(poller.getMaxConcurrency(), is(25));
+		assertThat(poller.getReceiverCount(), is(3));
+		assertThat(sut.getScaleDownCount(), is(1L));
+		
+		// exercise
+		for (int i = 0; i < 10; i++) {
+			sut.evaluate();
+		}
+		// verify
+		assertThat(poller.getMaxConcurrency(), is(2));
+		assertThat(poller.getReceiverCount(), is(1));
+	}
+	
+	@Test
+	public void testBacklogPerHandler() {
+		// setup
+		sut.setBacklogPerHandler(10);
+		givenQueueDepth(95, 3);
+		// exercise
+		sut.evaluate();
+		// verify
+		assertThat(poller.getMaxConcurrency(), is(13));
+		assertThat(poller.getReceiverCount(), is(2));
+	}
+	
+	@Test
+	public void testKeepCurrentOnFailure() {
+		// setup
+		when(sqs.getQueueAttributes(any(GetQueueAttributesRequest.class)))
+			.thenThrow(new AmazonSQSException("unavailable"));
+		// exercise
+		sut.evaluate();
+		// verify
+		assertThat(poller.getMaxConcurrency(), is(4));
+		assertThat(poller.getReceiverCount(), is(1));
+		assertThat(sut.getScaleUpCount() + sut.getScaleDownCount(), is(0L));
+	}
+	
+	@Test
+	public void testInvalidBounds() {
+		// exercise & verify
+		assertThrows(IllegalArgumentException.class, () -> sut.setMinConcurrency(0));
+		assertThrows(IllegalArgumentException.class, () -> sut.setMinConcurrency(51));
+		assertThrows(IllegalArgumentException.class, () -> sut.setMaxConcurrency(1));
+		assertThrows(IllegalArgumentException.class, () -> sut.setMinReceivers(0));
+		assertThrows(IllegalArgumentException.class, () -> sut.setMinReceivers(5));
+		assertThrows(IllegalArgumentException.class, () -> sut.setMaxReceivers(0));
+		assertThat(sut.getMinConcurrency(), is(2));
+		assertThat(sut.getMaxConcurrency(), is(50));
+		assertThat(sut.getMinReceivers(), is(1));
+		assertThat(sut.getMaxReceivers(), is(4));
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test for {@link ResizableSemaphore}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+public class ResizableSemaphoreTest {
+	
+	@Test
+	public void testGrow() throws Exception {
+		// setup
+		ResizableSemaphore sut = new ResizableSemaphore(1);
+		sut.acquire();
+		// exercise
+		sut.setLimit(3);
+		// verify
+		assertThat(sut.getLimit(), is(3));
+		assertThat(sut.availablePermits(), is(2));
+		assertThat(sut.getHeldPermits(), is(1));
+	}
+	
+	@Test
+	public void testShrinkBelowHeldPermits() throws Exception {
+		// setup
+		ResizableSemaphore sut = new ResizableSemaphore(3);
+		sut.acquire(3);
+		// exercise
+		sut.setLimit(1);
+		// verify
+		assertThat(sut.tryAcquire(), is(false));
+		assertThat(sut.getHeldPermits(), is(3));
+		sut.release(2);
+		assertThat(sut.tryAcquire(), is(false));
+		sut.release();
+		assertThat(sut.tryAcquire(), is(true));
+	}
+	
+	@Test
+	public void testInvalidLimit() {
+		// setup
+		ResizableSemaphore sut = new ResizableSemaphore(1);
+		// exercise
+		assertThrows(IllegalArgumentException.class, () -> sut.setLimit(0));
+	}
+}
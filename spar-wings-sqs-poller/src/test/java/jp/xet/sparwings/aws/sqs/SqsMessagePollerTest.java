@@ -16,19 +16,43 @@
 package jp.xet.sparwings.aws.sqs;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -43,9 +67,16 @@ import org.springframework.retry.support.RetryTemplate;
 import org.springframework.util.DigestUtils;
 
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.OverLimitException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 
@@ -81,6 +112,28 @@ public class SqsMessagePollerTest {
 		sut = new SqsMessagePoller(sqs, retry, Q_URL, messageHandler, "testHandler");
 		sut.setVisibilityTimeout(10);
 		sut.setChangeVisibilityThreshold(1);
+		sut.getHeartbeat().setInterval(50);
+		lenient().when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class)))
+			.thenAnswer(invocation -> succeedAll(invocation.getArgument(0)));
+		lenient().when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> extendAll(invocation.getArgument(0)));
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		sut.destroy();
+	}
+	
+	static DeleteMessageBatchResult succeedAll(DeleteMessageBatchRequest request) {
+		return new DeleteMessageBatchResult().withSuccessful(request.getEntries().stream()
+			.map(entry -> new DeleteMessageBatchResultEntry().withId(entry.getId()))
+			.collect(Collectors.toList()));
+	}
+	
+	static ChangeMessageVisibilityBatchResult extendAll(ChangeMessageVisibilityBatchRequest request) {
+		return new ChangeMessageVisibilityBatchResult().withSuccessful(request.getEntries().stream()
+			.map(entry -> new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()))
+			.collect(Collectors.toList()));
 	}
 	
 	private ReceiveMessageResult receiveMessageResultOf(Message... msgs) {
@@ -96,10 +149,52 @@ public class SqsMessagePollerTest {
 			.withMD5OfBody(DigestUtils.md5DigestAsHex(body.getBytes()));
 	}
 	
-	private DeleteMessageRequest createDeleteMessageRequest(int i) {
-		return new DeleteMessageRequest()
-			.withQueueUrl(Q_URL)
-			.withReceiptHandle("rh-" + i);
+	private List<String> deletedReceiptHandles() {
+		ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqs, atLeast(0)).deleteMessageBatch(captor.capture());
+		captor.getAllValues().forEach(request -> assertThat(request.getQueueUrl(), is(Q_URL)));
+		return captor.getAllValues().stream()
+			.flatMap(request -> request.getEntries().stream())
+			.map(DeleteMessageBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList());
+	}
+	
+	private List<ChangeMessageVisibilityBatchRequestEntry> extendedEntries() {
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs, atLeast(0)).changeMessageVisibilityBatch(captor.capture());
+		captor.getAllValues().forEach(request -> assertThat(request.getQueueUrl(), is(Q_URL)));
+		return captor.getAllValues().stream()
+			.flatMap(request -> request.getEntries().stream())
+			.collect(Collectors.toList());
+	}
+	
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (condition.getAsBoolean() == false) {
+			assertThat("timed out", System.currentTimeMillis() < deadline, is(true));
+			Thread.sleep(10);
+		}
+	}
+	
+	private Answer<ReceiveMessageResult> createReceiveAnswer(int total, AtomicInteger maxRequested) {
+		AtomicInteger received = new AtomicInteger();
+		return invocation -> {
+			ReceiveMessageRequest request = invocation.getArgument(0);
+			maxRequested.accumulateAndGet(request.getMaxNumberOfMessages(), Math::max);
+			List<Message> messages = new ArrayList<>();
+			while (messages.size() < request.getMaxNumberOfMessages()) {
+				int i = received.incrementAndGet();
+				if (i > total) {
+					break;
+				}
+				messages.add(createMessage(i));
+			}
+			if (messages.isEmpty()) {
+				Thread.sleep(10); // long polling
+			}
+			return receiveMessageResultOf(messages.toArray(new Message[0]));
+		};
 	}
 	
 	private Answer<?> createHeavyJobAnswer(int size, boolean excepiton) {
@@ -125,23 +220,24 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler, never()).accept(any(Message.class));
-		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty()));
+		assertThat(extendedEntries(), is(empty()));
 	}
 	
 	@Test
 	public void test_1Message() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		// exercise
 		sut.loop();
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1"));
+		assertThat(extendedEntries(), is(empty()));
 	}
 	
 	@Test
@@ -150,9 +246,6 @@ public class SqsMessagePollerTest {
 		Message msg1 = createMessage(1);
 		Message msg2 = createMessage(2);
 		Message msg3 = createMessage(3);
-		DeleteMessageRequest expectedDmr1 = createDeleteMessageRequest(1);
-		DeleteMessageRequest expectedDmr2 = createDeleteMessageRequest(2);
-		DeleteMessageRequest expectedDmr3 = createDeleteMessageRequest(3);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
 			.thenReturn(receiveMessageResultOf(msg1, msg2, msg3));
 		// exercise
@@ -162,17 +255,15 @@ public class SqsMessagePollerTest {
 		verify(messageHandler).accept(eq(msg1));
 		verify(messageHandler).accept(eq(msg2));
 		verify(messageHandler).accept(eq(msg3));
-		verify(sqs).deleteMessage(eq(expectedDmr1));
-		verify(sqs).deleteMessage(eq(expectedDmr2));
-		verify(sqs).deleteMessage(eq(expectedDmr3));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		assertThat(extendedEntries(), is(empty()));
 	}
 	
 	@Test
 	public void test_1HeavyMessage() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(4, false)).when(messageHandler).accept(any(Message.class));
 		// exercise
@@ -180,15 +271,13 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1"));
 		
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(1)).changeMessageVisibility(captor.capture());
-		ChangeMessageVisibilityRequest cmvReq = captor.getValue();
-		assertThat(cmvReq.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq.getVisibilityTimeout(), is(10));
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = extendedEntries();
+		assertThat(entries, hasSize(1));
+		assertThat(entries.get(0).getReceiptHandle(), is("rh-1"));
+		assertThat(entries.get(0).getVisibilityTimeout(), is(10));
 	}
 	
 	@Test
@@ -197,9 +286,6 @@ public class SqsMessagePollerTest {
 		Message msg1 = createMessage(1);
 		Message msg2 = createMessage(2);
 		Message msg3 = createMessage(3);
-		DeleteMessageRequest expectedDmr1 = createDeleteMessageRequest(1);
-		DeleteMessageRequest expectedDmr2 = createDeleteMessageRequest(2);
-		DeleteMessageRequest expectedDmr3 = createDeleteMessageRequest(3);
 		doReturn(receiveMessageResultOf(msg1, msg2, msg3))
 			.when(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		doAnswer(createHeavyJobAnswer(4, false))
@@ -211,36 +297,18 @@ public class SqsMessagePollerTest {
 		verify(messageHandler).accept(eq(msg1));
 		verify(messageHandler).accept(eq(msg2));
 		verify(messageHandler).accept(eq(msg3));
-		verify(sqs).deleteMessage(eq(expectedDmr1));
-		verify(sqs).deleteMessage(eq(expectedDmr2));
-		verify(sqs).deleteMessage(eq(expectedDmr3));
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(3)).changeMessageVisibility(captor.capture());
-		
-		ChangeMessageVisibilityRequest cmvReq1 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-1")).findFirst().get();
-		assertThat(cmvReq1.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq1.getVisibilityTimeout(), is(10));
-		
-		ChangeMessageVisibilityRequest cmvReq2 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-2")).findFirst().get();
-		assertThat(cmvReq2.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq2.getReceiptHandle(), is("rh-2"));
-		assertThat(cmvReq2.getVisibilityTimeout(), is(10));
-		
-		ChangeMessageVisibilityRequest cmvReq3 = captor.getAllValues().stream()
-			.filter(r -> r.getReceiptHandle().equals("rh-3")).findFirst().get();
-		assertThat(cmvReq3.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq3.getReceiptHandle(), is("rh-3"));
-		assertThat(cmvReq3.getVisibilityTimeout(), is(10));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = extendedEntries();
+		assertThat(entries.stream().map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		entries.forEach(entry -> assertThat(entry.getVisibilityTimeout(), is(10)));
 	}
 	
 	@Test
 	public void test_1VeryHeavyMessage() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(7, false)).when(messageHandler).accept(any(Message.class));
 		// exercise
@@ -248,21 +316,15 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs).deleteMessage(eq(expectedDmr));
-		
-		ArgumentCaptor<ChangeMessageVisibilityRequest> captor =
-				ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
-		verify(sqs, times(2)).changeMessageVisibility(captor.capture());
-		
-		ChangeMessageVisibilityRequest cmvReq1 = captor.getAllValues().get(0);
-		assertThat(cmvReq1.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq1.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq1.getVisibilityTimeout(), is(10));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1"));
 		
-		ChangeMessageVisibilityRequest cmvReq2 = captor.getAllValues().get(1);
-		assertThat(cmvReq2.getQueueUrl(), is(Q_URL));
-		assertThat(cmvReq2.getReceiptHandle(), is("rh-1"));
-		assertThat(cmvReq2.getVisibilityTimeout(), is(10));
+		List<ChangeMessageVisibilityBatchRequestEntry> entries = extendedEntries();
+		assertThat(entries, hasSize(2));
+		entries.forEach(entry -> {
+			assertThat(entry.getReceiptHandle(), is("rh-1"));
+			assertThat(entry.getVisibilityTimeout(), is(10));
+		});
 	}
 	
 	@Test
@@ -271,7 +333,6 @@ public class SqsMessagePollerTest {
 		sut.setVisibilityTimeout(60);
 		sut.setChangeVisibilityThreshold(1);
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(24, false)).when(messageHandler).accept(any(Message.class));
 		// exercise
@@ -279,15 +340,15 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr)); // retry attempt exceeded
-		verify(sqs, times(3)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty())); // retry attempt exceeded
+		assertThat(extendedEntries(), hasSize(3));
 	}
 	
 	@Test
 	public void test_1MessageWithFailureHandler() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doThrow(RuntimeException.class).when(messageHandler).accept(any(Message.class));
 		// exercise
@@ -295,15 +356,15 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty()));
+		assertThat(extendedEntries(), is(empty()));
 	}
 	
 	@Test
 	public void test_1HeavyMessageWithFailureHandler() throws Exception {
 		// setup
 		Message msg1 = createMessage(1);
-		DeleteMessageRequest expectedDmr = createDeleteMessageRequest(1);
 		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(msg1));
 		doAnswer(createHeavyJobAnswer(4, true)).when(messageHandler).accept(any(Message.class));
 		// exercise
@@ -311,8 +372,9 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler).accept(eq(msg1));
-		verify(sqs, never()).deleteMessage(eq(expectedDmr));
-		verify(sqs).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty()));
+		assertThat(extendedEntries(), hasSize(1));
 	}
 	
 	@Test
@@ -325,7 +387,426 @@ public class SqsMessagePollerTest {
 		// verify
 		verify(sqs).receiveMessage(any(ReceiveMessageRequest.class));
 		verify(messageHandler, never()).accept(any(Message.class));
-		verify(sqs, never()).deleteMessage(any(DeleteMessageRequest.class));
-		verify(sqs, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty()));
+		assertThat(extendedEntries(), is(empty()));
+	}
+	
+	@Test
+	public void test_VirtualThreads() throws Exception {
+		// setup
+		sut.setVirtualThreads(true);
+		Set<Boolean> virtual = ConcurrentHashMap.newKeySet();
+		doAnswer(invocation -> virtual.add(Thread.currentThread().isVirtual()))
+			.when(messageHandler).accept(any(Message.class));
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(sut.isVirtualThreads(), is(true));
+		assertThat(virtual, containsInAnyOrder(true));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+		assertThat(sut.getRunningCount(), is(0));
+	}
+	
+	@Test
+	public void test_VirtualThreads_shutDownDefaultExecutor() {
+		// setup
+		ExecutorService platform = sut.getExecutor();
+		// exercise
+		sut.setVirtualThreads(true);
+		ExecutorService virtual = sut.getExecutor();
+		sut.setVirtualThreads(true);
+		// verify
+		assertThat(platform.isShutdown(), is(true));
+		assertThat(sut.getExecutor(), is(sameInstance(virtual))); // not replaced again
+		sut.destroy();
+		assertThat(virtual.isShutdown(), is(true));
+	}
+	
+	@Test
+	public void test_VirtualThreads_customExecutor() {
+		// setup
+		ExecutorService custom = Executors.newSingleThreadExecutor();
+		try {
+			sut.setExecutor(custom);
+			// exercise & verify
+			assertThrows(IllegalStateException.class, () -> sut.setVirtualThreads(true));
+			sut.setVirtualThreads(false); // nothing to change
+			sut.destroy();
+			assertThat(sut.getExecutor(), is(sameInstance(custom)));
+			assertThat(custom.isShutdown(), is(false));
+		} finally {
+			custom.shutdown();
+		}
+	}
+	
+	@Test
+	public void test_MaxConcurrency() throws Exception {
+		// setup
+		sut.setMaxConcurrency(2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		doAnswer(invocation -> {
+			peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(100);
+			running.decrementAndGet();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3),
+					createMessage(4), createMessage(5)));
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(peak.get(), is(2));
+		assertThat(sut.getMaxConcurrency(), is(2));
+		assertThat(sut.getRunningCount(), is(0));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), hasSize(5));
+	}
+	
+	@Test
+	public void test_Receivers() throws Exception {
+		// setup
+		sut.setMaxConcurrency(3);
+		sut.setReceiverCount(2);
+		AtomicInteger maxRequested = new AtomicInteger();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(createReceiveAnswer(6, maxRequested));
+		doAnswer(invocation -> {
+			peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(100);
+			running.decrementAndGet();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.start();
+		// verify
+		verify(messageHandler, timeout(5000).times(6)).accept(any(Message.class));
+		await(() -> sut.getRunningCount() == 0);
+		assertThat(sut.isRunning(), is(true));
+		assertThat(sut.getActiveReceiverCount(), is(2));
+		assertThat(peak.get(), is(lessThanOrEqualTo(3)));
+		assertThat(maxRequested.get(), is(lessThanOrEqualTo(3)));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), hasSize(6));
+		sut.stop();
+		await(() -> sut.getActiveReceiverCount() == 0);
+		assertThat(sut.isRunning(), is(false));
+	}
+	
+	@Test
+	public void test_ChangeReceiverCount() throws Exception {
+		// setup
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenAnswer(createReceiveAnswer(0, new AtomicInteger()));
+		sut.start();
+		// exercise
+		sut.setReceiverCount(3);
+		// verify
+		assertThat(sut.getActiveReceiverCount(), is(3));
+		// exercise
+		sut.setReceiverCount(1);
+		// verify
+		await(() -> sut.getActiveReceiverCount() == 1);
+		sut.stop();
+		await(() -> sut.getActiveReceiverCount() == 0);
+	}
+	
+	@Test
+	public void test_RestartWhileReceiving() throws Exception {
+		// setup
+		sut.setReceiverCount(2);
+		AtomicInteger polling = new AtomicInteger();
+		CountDownLatch returns = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			polling.incrementAndGet();
+			boolean interrupted = false;
+			while (returns.getCount() > 0) {
+				try {
+					returns.await(); // long polling, which is not interrupted
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			polling.decrementAndGet();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return receiveMessageResultOf();
+		});
+		sut.start();
+		await(() -> polling.get() == 2);
+		// exercise
+		sut.stop();
+		sut.start();
+		// verify
+		await(() -> polling.get() == 4); // previous receivers are still polling
+		assertThat(sut.getActiveReceiverCount(), is(2));
+		returns.countDown();
+		Thread.sleep(100);
+		assertThat(sut.getActiveReceiverCount(), is(2));
+		sut.stop();
+		await(() -> sut.getActiveReceiverCount() == 0);
+	}
+	
+	@Test
+	public void test_DestroyWaitsForRunningHandlers() throws Exception {
+		// setup
+		CountDownLatch started = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenAnswer(createReceiveAnswer(1, new AtomicInteger()));
+		doAnswer(invocation -> {
+			started.countDown();
+			Thread.sleep(300);
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		sut.start();
+		started.await();
+		// exercise
+		sut.destroy();
+		// verify
+		assertThat(sut.getRunningCount(), is(0));
+		assertThat(deletedReceiptHandles(), contains("rh-1")); // deleted after the handler completed
+	}
+	
+	@Test
+	public void test_BatchHandler() throws Exception {
+		// setup
+		List<List<Message>> batches = new ArrayList<>();
+		sut = SqsMessagePoller.forBatchHandler(sqs, retry, Q_URL, messages -> {
+			batches.add(messages);
+			return Set.of("mid-2");
+		}, "testBatchHandler");
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(batches, hasSize(1));
+		assertThat(batches.get(0), hasSize(3));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-3"));
+		assertThat(sut.getRunningCount(), is(0));
+	}
+	
+	@Test
+	public void test_BatchHandlerWithFewerPermits() throws Exception {
+		// setup
+		List<List<Message>> batches = new ArrayList<>();
+		sut = SqsMessagePoller.forBatchHandler(sqs, retry, Q_URL, messages -> {
+			batches.add(messages);
+			return Set.of();
+		}, "testBatchHandler");
+		sut.setMaxConcurrency(2);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenReturn(receiveMessageResultOf(createMessage(1), createMessage(2), createMessage(3)));
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(batches, hasSize(2));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-2", "rh-3"));
+	}
+	
+	@Test
+	public void test_ReceiveMessageThrottled() throws Exception {
+		// setup
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenThrow(new OverLimitException("over limit"));
+		// exercise
+		sut.loop();
+		// verify
+		verify(messageHandler, never()).accept(any(Message.class));
+		assertThat(sut.getPollingController().getState(), is(AdaptivePollingController.State.THROTTLED));
+		assertThat(sut.getPollingController().getCurrentDelay(), is(greaterThan(0L)));
+		
+		// setup
+		doReturn(receiveMessageResultOf(createMessage(1)))
+			.when(sqs).receiveMessage(any(ReceiveMessageRequest.class));
+		// exercise
+		sut.loop(); // returns without waiting for the delay
+		// verify
+		verify(sqs, times(1)).receiveMessage(any(ReceiveMessageRequest.class));
+		
+		// exercise
+		await(() -> sut.getPollingController().isReceiveDue());
+		sut.loop();
+		// verify
+		verify(messageHandler).accept(any(Message.class));
+		assertThat(sut.getPollingController().getState(), is(AdaptivePollingController.State.ACTIVE));
+		assertThat(sut.getPollingController().getCurrentDelay(), is(0L));
+	}
+	
+	private Message createGroupMessage(int i, String groupId) {
+		Message message = createMessage(i);
+		message.addAttributesEntry("MessageGroupId", groupId);
+		return message;
+	}
+	
+	@Test
+	public void test_Fifo() throws Exception {
+		// setup
+		sut.setFifo(true);
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		doAnswer(invocation -> {
+			Message message = invocation.getArgument(0);
+			events.add("start-" + message.getMessageId());
+			peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(100);
+			running.decrementAndGet();
+			events.add("end-" + message.getMessageId());
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(
+				createGroupMessage(1, "a"), createGroupMessage(2, "b"), createGroupMessage(3, "a"),
+				createGroupMessage(4, "b"), createGroupMessage(5, "a")));
+		// exercise
+		sut.loop();
+		// verify
+		assertThat(sut.isFifo(), is(true));
+		List<String> groupA = events.stream()
+			.filter(e -> e.endsWith("mid-1") || e.endsWith("mid-3") || e.endsWith("mid-5"))
+			.collect(Collectors.toList());
+		assertThat(groupA, contains("start-mid-1", "end-mid-1", "start-mid-3", "end-mid-3", "start-mid-5", "end-mid-5"));
+		List<String> groupB = events.stream()
+			.filter(e -> e.endsWith("mid-2") || e.endsWith("mid-4"))
+			.collect(Collectors.toList());
+		assertThat(groupB, contains("start-mid-2", "end-mid-2", "start-mid-4", "end-mid-4"));
+		assertThat(peak.get(), is(2));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-1", "rh-2", "rh-3", "rh-4", "rh-5"));
+	}
+	
+	@Test
+	public void test_FifoStopsGroupOnFailure() throws Exception {
+		// setup
+		sut.setFifo(true);
+		doAnswer(invocation -> {
+			Message message = invocation.getArgument(0);
+			if (message.getMessageId().equals("mid-1")) {
+				throw new IllegalStateException();
+			}
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(receiveMessageResultOf(
+				createGroupMessage(1, "a"), createGroupMessage(2, "b"), createGroupMessage(3, "a")));
+		// exercise
+		sut.loop();
+		// verify
+		verify(messageHandler, times(2)).accept(any(Message.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), containsInAnyOrder("rh-2"));
+		assertThat(sut.getRunningCount(), is(0));
+	}
+	
+	@Test
+	public void test_FifoIsNotSupportedWithBatchHandler() throws Exception {
+		// setup
+		sut = SqsMessagePoller.forBatchHandler(sqs, retry, Q_URL, messages -> Set.of(), "testBatchHandler");
+		// exercise
+		assertThrows(IllegalStateException.class, () -> sut.setFifo(true));
+	}
+	
+	@Test
+	public void test_Prefetch() throws Exception {
+		// setup
+		sut.setMaxConcurrency(2);
+		sut.setPrefetchSize(4);
+		AtomicInteger maxRequested = new AtomicInteger();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		AtomicInteger peakPrefetched = new AtomicInteger();
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(createReceiveAnswer(8, maxRequested));
+		doAnswer(invocation -> {
+			peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+			Thread.sleep(100);
+			peakPrefetched.accumulateAndGet(sut.getPrefetchBuffer().size(), Math::max);
+			running.decrementAndGet();
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.start();
+		// verify
+		verify(messageHandler, timeout(5000).times(8)).accept(any(Message.class));
+		await(() -> sut.getRunningCount() == 0);
+		assertThat(peak.get(), is(lessThanOrEqualTo(2)));
+		assertThat(peakPrefetched.get(), is(greaterThan(0)));
+		assertThat(maxRequested.get(), is(lessThanOrEqualTo(4)));
+		assertThat(sut.getPrefetchBuffer().getAverageHandlingTime() > 0, is(true));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), hasSize(8));
+	}
+	
+	@Test
+	public void test_PrefetchReleasesStaleMessages() throws Exception {
+		// setup
+		sut.setVisibilityTimeout(1);
+		sut.setPrefetchAgeRatio(0.2); // 200 ms
+		sut.setMaxConcurrency(1);
+		sut.setPrefetchSize(3);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+			.thenAnswer(createReceiveAnswer(3, new AtomicInteger()));
+		doAnswer(invocation -> {
+			Thread.sleep(500);
+			return null;
+		}).when(messageHandler).accept(any(Message.class));
+		// exercise
+		sut.start();
+		// verify
+		await(() -> sut.getPrefetchBuffer().getStaleCount() == 2);
+		await(() -> sut.getRunningCount() == 0);
+		verify(messageHandler).accept(any(Message.class));
+		assertThat(extendedEntries().stream()
+			.filter(entry -> entry.getVisibilityTimeout() == 0)
+			.map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), containsInAnyOrder("rh-2", "rh-3"));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), contains("rh-1"));
+	}
+	
+	@Test
+	public void test_PrefetchReleasesMessagesReceivedAfterStop() throws Exception {
+		// setup
+		sut.setPrefetchSize(2);
+		AtomicInteger polling = new AtomicInteger();
+		CountDownLatch returns = new CountDownLatch(1);
+		when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(invocation -> {
+			polling.incrementAndGet();
+			boolean interrupted = false;
+			while (returns.getCount() > 0) {
+				try {
+					returns.await(); // long polling, which is not interrupted
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return receiveMessageResultOf(createMessage(1), createMessage(2));
+		});
+		sut.start();
+		await(() -> polling.get() == 1);
+		// exercise
+		sut.stop();
+		returns.countDown();
+		// verify
+		assertThat(sut.getPrefetchBuffer(), is(nullValue()));
+		await(() -> sut.getActiveReceiverCount() == 0);
+		await(() -> extendedEntries().size() == 2);
+		assertThat(extendedEntries().stream()
+			.filter(entry -> entry.getVisibilityTimeout() == 0)
+			.map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), containsInAnyOrder("rh-1", "rh-2"));
+		verify(messageHandler, never()).accept(any(Message.class));
+		sut.getDeleter().flush(); // send buffered acknowledgements
+		assertThat(deletedReceiptHandles(), is(empty()));
 	}
 }
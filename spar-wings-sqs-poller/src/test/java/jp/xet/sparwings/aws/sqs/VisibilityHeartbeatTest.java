@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.xet.sparwings.aws.sqs;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Test for {@link VisibilityHeartbeat}.
+ * 
+ * @since 0.38
+ * @author daisuke
+ */
+@ExtendWith(MockitoExtension.class)
+public class VisibilityHeartbeatTest {
+	
+	private static final String Q_URL = "http://example.com";
+	
+	@Mock
+	AmazonSQS sqs;
+	
+	VisibilityHeartbeat sut;
+	
+	
+	@BeforeEach
+	public void setUp() {
+		sut = new VisibilityHeartbeat(sqs, Q_URL);
+		sut.setInterval(60000); // extend manually
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		sut.close();
+	}
+	
+	private static Message createMessage(int i) {
+		return new Message().withMessageId("mid-" + i).withReceiptHandle("rh-" + i);
+	}
+	
+	@Test
+	public void testExtendDueMessagesInOneBatch() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		sut.track(createMessage(1), 30, 0);
+		sut.track(createMessage(2), 30, 0);
+		sut.track(createMessage(3), 30, 60);
+		// exercise
+		sut.extendDueMessages();
+		// verify
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs).changeMessageVisibilityBatch(captor.capture());
+		assertThat(captor.getValue().getQueueUrl(), is(Q_URL));
+		assertThat(captor.getValue().getEntries().stream()
+			.map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.sorted()
+			.collect(Collectors.toList()), contains("rh-1", "rh-2"));
+		assertThat(captor.getValue().getEntries().get(0).getVisibilityTimeout(), is(30));
+		assertThat(sut.getInFlightCount(), is(3));
+	}
+	
+	@Test
+	public void testNothingDue() {
+		// setup
+		sut.track(createMessage(1), 30, 60);
+		// exercise
+		sut.extendDueMessages();
+		// verify
+		verify(sqs, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.untrack(createMessage(1)), is(true));
+		assertThat(sut.getInFlightCount(), is(0));
+	}
+	
+	@Test
+	public void testAbandonAfterMaxExtensions() {
+		// setup
+		sut.setMaxExtensions(2);
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		sut.track(createMessage(1), 30, 0);
+		// exercise
+		sut.extendDueMessages();
+		sut.extendDueMessages();
+		sut.extendDueMessages();
+		// verify
+		verify(sqs, times(2)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.untrack(createMessage(1)), is(false));
+	}
+	
+	@Test
+	public void testAbandonOnSenderFault() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenReturn(new ChangeMessageVisibilityBatchResult().withFailed(new BatchResultErrorEntry()
+				.withId("0").withSenderFault(true).withCode("ReceiptHandleIsInvalid")));
+		sut.track(createMessage(1), 30, 0);
+		// exercise
+		sut.extendDueMessages();
+		// verify
+		assertThat(sut.getInFlightCount(), is(0));
+		assertThat(sut.untrack(createMessage(1)), is(false));
+	}
+	
+	@Test
+	public void testKeepDueOnServerFault() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenReturn(new ChangeMessageVisibilityBatchResult().withFailed(new BatchResultErrorEntry()
+				.withId("0").withSenderFault(false).withCode("InternalError")))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		sut.track(createMessage(1), 30, 0);
+		// exercise
+		sut.extendDueMessages();
+		sut.extendDueMessages();
+		// verify
+		verify(sqs, times(2)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.untrack(createMessage(1)), is(true));
+	}
+	
+	@Test
+	public void testBoundedRetryOnError() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenThrow(new AmazonServiceException("unavailable"));
+		sut.track(createMessage(1), 30, 0);
+		// exercise
+		sut.extendDueMessages();
+		// verify
+		verify(sqs, times(3)).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+		assertThat(sut.untrack(createMessage(1)), is(true)); // still due
+	}
+	
+	@Test
+	public void testTrackDuplicateDeliveriesSeparately() {
+		// setup
+		Message first = createMessage(1);
+		Message duplicate = createMessage(1).withReceiptHandle("rh-1-dup");
+		sut.track(first, 30, 60);
+		sut.track(duplicate, 30, 60);
+		// exercise
+		boolean actual = sut.untrack(first);
+		// verify
+		assertThat(actual, is(true));
+		assertThat(sut.getInFlightCount(), is(1));
+		assertThat(sut.untrack(duplicate), is(true));
+	}
+	
+	@Test
+	public void testRelease() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		List<Message> messages = IntStream.rangeClosed(1, 12).mapToObj(i -> createMessage(i))
+			.collect(Collectors.toList());
+		// exercise
+		sut.release(messages);
+		// verify
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs, times(2)).changeMessageVisibilityBatch(captor.capture());
+		assertThat(captor.getAllValues().get(0).getEntries().size(), is(10));
+		assertThat(captor.getAllValues().stream()
+			.flatMap(request -> request.getEntries().stream())
+			.map(ChangeMessageVisibilityBatchRequestEntry::getVisibilityTimeout)
+			.distinct()
+			.collect(Collectors.toList()), contains(0));
+		assertThat(sut.getInFlightCount(), is(0));
+	}
+	
+	@Test
+	public void testTrackWithReceivedAt() {
+		// setup
+		when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+			.thenAnswer(invocation -> SqsMessagePollerTest.extendAll(invocation.getArgument(0)));
+		sut.track(createMessage(1), 30, 10, System.currentTimeMillis() - 10000); // prefetched 10 seconds ago
+		sut.track(createMessage(2), 30, 10);
+		// exercise
+		sut.extendDueMessages();
+		// verify
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor =
+				ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqs).changeMessageVisibilityBatch(captor.capture());
+		assertThat(captor.getValue().getEntries().stream()
+			.map(ChangeMessageVisibilityBatchRequestEntry::getReceiptHandle)
+			.collect(Collectors.toList()), contains("rh-1"));
+	}
+}